@@ -0,0 +1,37 @@
+package com.hsbc.cranker.mucranker;
+
+/**
+ * Why a connector socket could not be acquired for a request.
+ * <p>This is available to {@link ProxyListener#onFailureToAcquireProxySocket(ProxyInfo)} from
+ * {@link ProxyInfo#acquireFailureReason()}.</p>
+ */
+public enum AcquireFailureReason {
+
+    /**
+     * No route matched the request, so a <code>404 Not Found</code> was returned.
+     */
+    NO_ROUTE,
+
+    /**
+     * The request waited for a connector socket to become available, but none did within the
+     * {@link CrankerRouterBuilder#withConnectorMaxWaitInMillis(long) maximum wait time}.
+     */
+    TIMEOUT,
+
+    /**
+     * The route already had the maximum number of requests waiting for a connector socket, so the request was
+     * rejected immediately. See {@link CrankerRouterBuilder#withMaxWaitingRequestsPerRoute(int)}.
+     */
+    ROUTE_WAITING_LIMIT_REACHED,
+
+    /**
+     * The router already had the maximum number of requests waiting for a connector socket across all routes, so
+     * the request was rejected immediately. See {@link CrankerRouterBuilder#withMaxWaitingRequests(int)}.
+     */
+    WAITING_LIMIT_REACHED,
+
+    /**
+     * The route is served by cranker protocol 3 connectors but none had a socket available.
+     */
+    NO_CONNECTOR_AVAILABLE
+}
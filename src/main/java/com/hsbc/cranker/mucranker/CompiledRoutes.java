@@ -0,0 +1,217 @@
+package com.hsbc.cranker.mucranker;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * An immutable snapshot of a farm's routes that resolves request paths to route keys.
+ * <p>For the built-in resolvers (the default {@link RouteResolver#resolve(Set, String)} and
+ * {@link LongestFirstRouteResolver}) the routes are compiled into a trie of path segments, which is walked over
+ * the request path without allocating. Custom resolvers are called with the snapshot of routes instead.</p>
+ * <p>A new instance is compiled whenever routes are added or removed, so the per-request cost does not depend on
+ * the number of routes or the depth of the path.</p>
+ */
+final class CompiledRoutes {
+
+    private static final String CATCH_ALL = "*";
+
+    private final Set<String> routes;
+    private final RouteResolver customResolver;
+    private final boolean longestPrefix;
+    private final Node root;
+
+    private CompiledRoutes(Set<String> routes, RouteResolver customResolver, boolean longestPrefix, Node root) {
+        this.routes = routes;
+        this.customResolver = customResolver;
+        this.longestPrefix = longestPrefix;
+        this.root = root;
+    }
+
+    static CompiledRoutes empty(RouteResolver resolver) {
+        return compile(resolver, Collections.emptySet());
+    }
+
+    static CompiledRoutes compile(RouteResolver resolver, Set<String> routes) {
+        final Set<String> snapshot = Set.copyOf(routes);
+        final Class<?> implementation = resolveMethodOwner(resolver);
+        if (implementation == RouteResolver.class) {
+            return new CompiledRoutes(snapshot, null, false, Node.build(snapshot, false));
+        } else if (implementation == LongestFirstRouteResolver.class) {
+            return new CompiledRoutes(snapshot, null, true, Node.build(snapshot, true));
+        } else {
+            return new CompiledRoutes(snapshot, resolver, false, null);
+        }
+    }
+
+    private static Class<?> resolveMethodOwner(RouteResolver resolver) {
+        try {
+            Method method = resolver.getClass().getMethod("resolve", Set.class, String.class);
+            return method.getDeclaringClass();
+        } catch (NoSuchMethodException e) {
+            return resolver.getClass();
+        }
+    }
+
+    /**
+     * Resolves the target the same way as the resolver this was compiled from.
+     *
+     * @param target request uri path, e.g. /my-service/api
+     * @return the route, or &quot;*&quot; (or null for custom resolvers) if no route matches
+     */
+    String resolve(String target) {
+        if (customResolver != null) {
+            return customResolver.resolve(routes, target);
+        }
+        return longestPrefix ? resolveLongest(target) : resolveFirstSegment(target);
+    }
+
+    /**
+     * Converts a resolved route into the key of the route to use.
+     *
+     * @param resolved    the result of {@link #resolve(String)}
+     * @param useCatchAll true to fall back to the catch-all route if no specific route matched
+     * @return the route key, or null if no specific route matched and <code>useCatchAll</code> is false
+     */
+    static String routeKey(String resolved, boolean useCatchAll) {
+        if (resolved == null || CATCH_ALL.equals(resolved)) {
+            return useCatchAll ? CATCH_ALL : null;
+        }
+        return resolved;
+    }
+
+    /**
+     * Same semantics as {@link RouteResolver#resolve(Set, String)}: the second element of
+     * <code>target.split("/")</code> must exactly match a route.
+     */
+    private String resolveFirstSegment(String target) {
+        final int slash = target.indexOf('/');
+        if (slash < 0) {
+            return CATCH_ALL;
+        }
+        final int start = slash + 1;
+        int end = target.indexOf('/', start);
+        if (end < 0) end = target.length();
+        if (end == start && !hasNonSlashAfter(target, end)) {
+            return CATCH_ALL; // split() drops trailing empty strings, so there is no second element
+        }
+        final Node child = root.child(target, start, end);
+        return child != null && child.route != null ? child.route : CATCH_ALL;
+    }
+
+    private static boolean hasNonSlashAfter(String target, int from) {
+        for (int i = from; i < target.length(); i++) {
+            if (target.charAt(i) != '/') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same semantics as {@link LongestFirstRouteResolver#resolve(Set, String)}: the full target, or else the
+     * longest prefix of the target (without its leading slash) that ends on a segment boundary.
+     */
+    private String resolveLongest(String target) {
+        if (routes.contains(target)) {
+            return target;
+        }
+        int start = (!target.isEmpty() && target.charAt(0) == '/') ? 1 : 0;
+        final int length = target.length();
+        String match = CATCH_ALL;
+        Node node = root;
+        while (true) {
+            int end = target.indexOf('/', start);
+            if (end < 0) end = length;
+            node = node.child(target, start, end);
+            if (node == null) {
+                return match;
+            }
+            if (node.route != null) {
+                match = node.route;
+            }
+            if (end == length) {
+                return match;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * A trie node keyed by path segment. Children are held in an open-addressed table so that a segment can be
+     * looked up directly from a region of the request path.
+     */
+    private static final class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private final String segment;
+        private String route;
+        private Map<String, Node> building = new HashMap<>();
+        private Node[] children = NO_CHILDREN;
+        private int mask;
+
+        private Node(String segment) {
+            this.segment = segment;
+        }
+
+        static Node build(Set<String> routes, boolean allSegments) {
+            final Node root = new Node("");
+            for (String route : routes) {
+                if (route == null || CATCH_ALL.equals(route)) {
+                    continue;
+                }
+                if (allSegments) {
+                    Node node = root;
+                    for (String segment : route.split("/", -1)) {
+                        node = node.building.computeIfAbsent(segment, Node::new);
+                    }
+                    node.route = route;
+                } else if (route.indexOf('/') < 0) {
+                    root.building.computeIfAbsent(route, Node::new).route = route;
+                }
+            }
+            root.freeze();
+            return root;
+        }
+
+        private void freeze() {
+            if (!building.isEmpty()) {
+                int capacity = Integer.highestOneBit(building.size() * 2 - 1) << 1;
+                children = new Node[capacity];
+                mask = capacity - 1;
+                for (Node child : building.values()) {
+                    int index = spread(child.segment.hashCode()) & mask;
+                    while (children[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    children[index] = child;
+                    child.freeze();
+                }
+            }
+            building = null;
+        }
+
+        Node child(String path, int start, int end) {
+            if (children.length == 0) {
+                return null;
+            }
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            final int length = end - start;
+            int index = spread(hash) & mask;
+            Node candidate;
+            while ((candidate = children[index]) != null) {
+                if (candidate.segment.length() == length && candidate.segment.regionMatches(0, path, start, length)) {
+                    return candidate;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
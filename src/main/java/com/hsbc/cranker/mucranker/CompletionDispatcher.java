@@ -0,0 +1,175 @@
+package com.hsbc.cranker.mucranker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Calls the {@link ProxyListener#onComplete(ProxyInfo)} listeners on worker threads rather than on the thread that
+ * completed the request, which is normally a socket's IO thread.
+ * <p>Completed requests are copied into a {@link ProxyInfoSnapshot} and put on a bounded {@link MpmcRingBuffer}, which
+ * the workers take them from in order. When the ring is full the {@link CompletionOverflowPolicy} decides whether the
+ * event is dropped or the completing thread waits. A worker that finds the ring empty spins briefly and then parks
+ * until a completed request is published, so an idle router has no threads waking up.</p>
+ * <p>After {@link #close()} the workers deliver what is queued and stop, and later events are delivered on the
+ * thread that completed the request.</p>
+ */
+final class CompletionDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(CompletionDispatcher.class);
+
+    private static final AtomicInteger dispatcherCount = new AtomicInteger();
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long MIN_PARK_NANOS = 1_000;
+    private static final long MAX_BLOCKED_PARK_NANOS = 100_000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+    private final ProxyListener[] listeners;
+    private final MpmcRingBuffer<ProxyInfo> ring;
+    private final CompletionOverflowPolicy overflowPolicy;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread[] workers;
+    private final Queue<Thread> parkedWorkers = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param listeners      the listeners to call, in order
+     * @param queueCapacity  the number of completed requests that can wait for the listeners
+     * @param threads        the number of worker threads
+     * @param overflowPolicy what to do with a completed request when the queue is full
+     */
+    CompletionDispatcher(ProxyListener[] listeners, int queueCapacity, int threads, CompletionOverflowPolicy overflowPolicy) {
+        this.listeners = listeners;
+        this.ring = new MpmcRingBuffer<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Thread[threads];
+        final int dispatcherId = dispatcherCount.incrementAndGet();
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(this::work, "cranker-completion-listener-" + dispatcherId + "-" + i);
+            worker.setDaemon(true);
+            workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a completed request for the listeners.
+     *
+     * @param info the completed request, which is copied before this returns
+     */
+    void publish(ProxyInfo info) {
+        if (!running) {
+            deliver(info);
+            return;
+        }
+        final ProxyInfoSnapshot snapshot = ProxyInfoSnapshot.of(info);
+        if (!ring.offer(snapshot)) {
+            if (overflowPolicy == CompletionOverflowPolicy.DROP) {
+                dropped.increment();
+                return;
+            }
+            long parkNanos = MIN_PARK_NANOS;
+            for (int attempt = 1; !ring.offer(snapshot); attempt++) {
+                if (!running) {
+                    deliver(snapshot);
+                    return;
+                }
+                if (attempt < SPINS_BEFORE_PARKING) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(parkNanos * 2, MAX_BLOCKED_PARK_NANOS);
+                }
+            }
+        }
+        final Thread parked = parkedWorkers.poll();
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        if (!running) {
+            // the workers may have stopped before seeing it
+            drain();
+        }
+    }
+
+    /**
+     * @return the number of completed requests that were not given to the listeners because the queue was full
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the workers and waits for them to deliver the queued requests. If a listener is still running after ten
+     * seconds this stops waiting and logs a warning.
+     */
+    void close() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        final long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        for (Thread worker : workers) {
+            if (worker == Thread.currentThread()) {
+                // a listener is closing the router
+                continue;
+            }
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (worker.isAlive()) {
+                log.warn("Gave up waiting for " + worker.getName() + " to deliver the completed requests");
+            }
+        }
+        // anything published while the workers were stopping
+        drain();
+    }
+
+    private void work() {
+        final Thread self = Thread.currentThread();
+        int idleSpins = 0;
+        while (true) {
+            final ProxyInfo info = ring.poll();
+            if (info != null) {
+                deliver(info);
+                idleSpins = 0;
+            } else if (!running) {
+                return;
+            } else if (idleSpins < SPINS_BEFORE_PARKING) {
+                idleSpins++;
+                Thread.onSpinWait();
+            } else {
+                // a publisher that offers after this check sees this worker in the queue and unparks it
+                parkedWorkers.offer(self);
+                if (running && ring.size() == 0) {
+                    LockSupport.park(this);
+                }
+                parkedWorkers.remove(self);
+            }
+        }
+    }
+
+    private void drain() {
+        ProxyInfo info;
+        while ((info = ring.poll()) != null) {
+            deliver(info);
+        }
+    }
+
+    private void deliver(ProxyInfo info) {
+        for (ProxyListener listener : listeners) {
+            try {
+                listener.onComplete(info);
+            } catch (Exception e) {
+                log.warn("Error thrown by " + listener, e);
+            }
+        }
+    }
+}
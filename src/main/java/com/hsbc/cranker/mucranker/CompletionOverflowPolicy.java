@@ -0,0 +1,20 @@
+package com.hsbc.cranker.mucranker;
+
+/**
+ * What happens to a completion event when the queue of events waiting for asynchronous proxy listeners is full.
+ * <p>See {@link CrankerRouterBuilder#withAsyncCompletionListeners(int, int, CompletionOverflowPolicy)}.</p>
+ */
+public enum CompletionOverflowPolicy {
+
+    /**
+     * The event is not given to the listeners, and is counted in {@link RouterInfo#proxyListenerCompletionsDropped()}.
+     * The thread that completed the request is never held up.
+     */
+    DROP,
+
+    /**
+     * The thread that completed the request waits until there is space in the queue, so no event is lost, but slow
+     * listeners hold up the proxying of other requests.
+     */
+    BLOCK
+}
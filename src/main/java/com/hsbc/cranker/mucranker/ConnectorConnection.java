@@ -34,13 +34,15 @@ class ConnectorConnectionImpl implements ConnectorConnection {
     private final String socketID;
     private final String protocol;
     private final int inflight;
+    private final long queuedToClientBytes;
 
-    ConnectorConnectionImpl(String domain, int port, String socketID, String protocol, int inflight) {
+    ConnectorConnectionImpl(String domain, int port, String socketID, String protocol, int inflight, long queuedToClientBytes) {
         this.domain = domain;
         this.port = port;
         this.socketID = socketID;
         this.protocol = protocol;
         this.inflight = inflight;
+        this.queuedToClientBytes = queuedToClientBytes;
     }
 
     @Override
@@ -62,8 +64,9 @@ class ConnectorConnectionImpl implements ConnectorConnection {
         if (domain != null && !"*".equals(domain)) {
             m.put("domain", domain);
         }
-        if ("cranker_3.0".equals(protocol)) {
+        if (protocol != null && protocol.startsWith("cranker_3")) {
             m.put("inflight", inflight);
+            m.put("queuedToClientBytes", queuedToClientBytes);
         }
         return m;
     }
@@ -0,0 +1,185 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Moving averages of the time-to-first-byte of each connector instance, used by the latency-aware
+ * {@link LoadBalancingStrategy load balancing strategies}.
+ * <p>Samples are weighted by how recently they were taken. An instance that has not been sampled yet is assumed to
+ * be as fast as the median instance of its route, and while an instance receives no traffic its estimate decays
+ * towards that median, so that an instance that was slow is tried again after a while. An instance that is cold or
+ * idle therefore still pays for the requests it already has in flight, rather than looking infinitely fast.</p>
+ */
+class ConnectorLatencies {
+
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The neutral estimate of a route that has no samples at all, in which case every instance of it has this
+     * estimate and only the number of requests in flight matters
+     */
+    static final double DEFAULT_NEUTRAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long MEDIAN_REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final boolean enabled;
+    private final boolean peak;
+    private final LongSupplier nanoClock;
+    private final Map<String, Estimate> estimates = new ConcurrentHashMap<>();
+    private final Map<String, RouteMedian> routeMedians = new ConcurrentHashMap<>();
+
+    ConnectorLatencies(LoadBalancingStrategy strategy) {
+        this(strategy, System::nanoTime);
+    }
+
+    ConnectorLatencies(LoadBalancingStrategy strategy, LongSupplier nanoClock) {
+        this.enabled = strategy == LoadBalancingStrategy.EWMA_LATENCY || strategy == LoadBalancingStrategy.PEAK_EWMA_LATENCY;
+        this.peak = strategy == LoadBalancingStrategy.PEAK_EWMA_LATENCY;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return true if a latency-aware strategy is used, otherwise nothing is recorded
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the time between sending a request to a connector and receiving its response headers.
+     *
+     * @param route               the route of the request
+     * @param connectorInstanceID the connector instance that served the request
+     * @param nanos               the time to first byte in nanoseconds
+     */
+    void record(String route, String connectorInstanceID, long nanos) {
+        if (!enabled || connectorInstanceID == null) {
+            return;
+        }
+        final long now = nanoClock.getAsLong();
+        RouteMedian median = route == null ? null : routeMedians.get(route);
+        if (median == null && route != null) {
+            median = routeMedians.computeIfAbsent(route, key -> new RouteMedian());
+        }
+        Estimate estimate = estimates.get(connectorInstanceID);
+        if (estimate == null) {
+            estimate = estimates.computeIfAbsent(connectorInstanceID, key -> new Estimate());
+        }
+        estimate.update(Math.max(0L, nanos), peak, now, median == null ? DEFAULT_NEUTRAL_NANOS : median.nanos);
+        if (median != null) {
+            if (median.instances.add(connectorInstanceID)) {
+                median.refresh(estimates, now);
+            } else {
+                median.refreshIfStale(estimates, now);
+            }
+        }
+    }
+
+    /**
+     * @param route               the route the instance serves
+     * @param connectorInstanceID a connector instance
+     * @return the current time-to-first-byte estimate in nanoseconds, which is the median of the route's instances
+     * if nothing is known about the instance, or 0 if latencies are not recorded
+     */
+    double estimate(String route, String connectorInstanceID) {
+        if (!enabled) {
+            return 0;
+        }
+        final double neutral = neutral(route);
+        final Estimate estimate = connectorInstanceID == null ? null : estimates.get(connectorInstanceID);
+        return estimate == null ? neutral : estimate.current(nanoClock.getAsLong(), neutral);
+    }
+
+    /**
+     * @param route a route
+     * @return the estimate of the median instance of the route, or {@link #DEFAULT_NEUTRAL_NANOS} if it has none
+     */
+    double neutral(String route) {
+        final RouteMedian median = route == null ? null : routeMedians.get(route);
+        return median == null ? DEFAULT_NEUTRAL_NANOS : median.nanos;
+    }
+
+    /**
+     * Removes the estimates of instances that have not served a request for the given time, e.g. because they have
+     * gone away.
+     *
+     * @param maxAgeMillis the time since the last sample after which an estimate is removed
+     */
+    void cleanUp(long maxAgeMillis) {
+        final long now = nanoClock.getAsLong();
+        final long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        estimates.values().removeIf(estimate -> now - estimate.lastUpdateNanos > maxAgeNanos);
+        for (Map.Entry<String, RouteMedian> entry : routeMedians.entrySet()) {
+            final RouteMedian median = entry.getValue();
+            median.instances.removeIf(instance -> !estimates.containsKey(instance));
+            if (median.instances.isEmpty()) {
+                routeMedians.remove(entry.getKey(), median);
+            } else {
+                median.refresh(estimates, now);
+            }
+        }
+    }
+
+    private static final class Estimate {
+        private volatile double value;
+        private volatile long lastUpdateNanos;
+        private boolean hasValue;
+
+        synchronized void update(long sample, boolean peak, long now, double neutral) {
+            final double decayed = hasValue ? current(now, neutral) : 0;
+            if (!hasValue || (peak && sample > decayed)) {
+                // peak EWMA jumps straight to a higher latency so that a spike is penalised immediately
+                value = sample;
+                hasValue = true;
+            } else {
+                final double weight = Math.exp(-(now - lastUpdateNanos) / DECAY_NANOS);
+                value = decayed * weight + sample * (1 - weight);
+            }
+            lastUpdateNanos = now;
+        }
+
+        double current(long now, double neutral) {
+            final long elapsed = now - lastUpdateNanos;
+            return elapsed <= 0 ? value : neutral + (value - neutral) * Math.exp(-elapsed / DECAY_NANOS);
+        }
+    }
+
+    /**
+     * The median of the latest estimates of a route's instances, recalculated when an instance is first sampled, and
+     * otherwise at most every {@link #MEDIAN_REFRESH_NANOS} as samples are recorded.
+     */
+    private static final class RouteMedian {
+        private final Set<String> instances = ConcurrentHashMap.newKeySet();
+        private volatile double nanos = DEFAULT_NEUTRAL_NANOS;
+        private volatile long refreshedNanos;
+        private volatile boolean refreshed;
+
+        void refreshIfStale(Map<String, Estimate> estimates, long now) {
+            if (!refreshed || now - refreshedNanos > MEDIAN_REFRESH_NANOS) {
+                refresh(estimates, now);
+            }
+        }
+
+        synchronized void refresh(Map<String, Estimate> estimates, long now) {
+            final double[] values = new double[instances.size()];
+            int count = 0;
+            for (String instance : instances) {
+                final Estimate estimate = estimates.get(instance);
+                if (estimate != null && count < values.length) {
+                    values[count++] = estimate.value;
+                }
+            }
+            if (count > 0) {
+                Arrays.sort(values, 0, count);
+                nanos = count % 2 == 1 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+            }
+            refreshedNanos = now;
+            refreshed = true;
+        }
+    }
+}
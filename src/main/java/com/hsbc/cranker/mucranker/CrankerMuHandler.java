@@ -6,7 +6,6 @@ import org.slf4j.LoggerFactory;
 
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.*;
@@ -16,7 +15,6 @@ import static java.util.Arrays.asList;
 class CrankerMuHandler implements MuHandler {
 
     private static final Logger log = LoggerFactory.getLogger(CrankerMuHandler.class);
-    private static final String ANY_DOMAIN = "*";
 
     static final Set<String> HOP_BY_HOP = new HashSet<>(asList(
             "keep-alive", "transfer-encoding",
@@ -27,19 +25,7 @@ class CrankerMuHandler implements MuHandler {
     static final Set<String> REPRESSED;
     static final String MU_ID = "muid";
 
-    private static final String ipAddress;
-    private final Random random = new Random();
-
     static {
-        String ip;
-        try {
-            ip = InetAddress.getLocalHost().getHostAddress();
-        } catch (Exception e) {
-            ip = "unknown";
-            log.info("Could not find local address so using " + ip);
-        }
-        ipAddress = ip;
-
         List<String> doNotForwardToTarget = new ArrayList<>();
         doNotForwardToTarget.addAll(HOP_BY_HOP);
         doNotForwardToTarget.addAll(asList(
@@ -53,19 +39,15 @@ class CrankerMuHandler implements MuHandler {
     }
 
     private final WebSocketFarm webSocketFarm;
-    private final WebSocketFarmV3Holder webSocketFarmV3Holder;
-    private final boolean discardClientForwardedHeaders;
-    private final boolean sendLegacyForwardedHeaders;
-    private final String viaValue;
-    private final Set<String> doNotProxy;
-    private final List<ProxyListener> proxyListeners;
-
-    CrankerMuHandler(WebSocketFarm webSocketFarm, WebSocketFarmV3Holder webSocketFarmV3Holder, boolean discardClientForwardedHeaders, boolean sendLegacyForwardedHeaders, String viaValue, Set<String> doNotProxy, List<ProxyListener> proxyListeners) {
+    private final DispatchPlanner dispatchPlanner;
+    private final ForwardingHeaders forwardingHeaders;
+    private final HeaderFilter doNotProxy;
+    private final ProxyListeners proxyListeners;
+
+    CrankerMuHandler(WebSocketFarm webSocketFarm, DispatchPlanner dispatchPlanner, ForwardingHeaders forwardingHeaders, HeaderFilter doNotProxy, ProxyListeners proxyListeners) {
         this.webSocketFarm = webSocketFarm;
-        this.webSocketFarmV3Holder = webSocketFarmV3Holder;
-        this.discardClientForwardedHeaders = discardClientForwardedHeaders;
-        this.sendLegacyForwardedHeaders = sendLegacyForwardedHeaders;
-        this.viaValue = viaValue;
+        this.dispatchPlanner = dispatchPlanner;
+        this.forwardingHeaders = forwardingHeaders;
         this.doNotProxy = doNotProxy;
         this.proxyListeners = proxyListeners;
     }
@@ -87,87 +69,44 @@ class CrankerMuHandler implements MuHandler {
         String domain = clientRequest.connection().sniHostName().orElse(clientRequest.uri().getHost());
         AsyncHandle asyncHandle = clientRequest.handleAsync();
 
-        // try route by domain
-        if (webSocketFarmV3Holder.canHandle(domain, target, true)) {
-            return dispatchV3(clientRequest, clientResponse, domain, target, true, asyncHandle);
-        }
-
-        // Try route WITHOUT catchAll route
-        // In migration period from V1 to V3, this make specific route take higher priority
-        if (distributeTraffic(clientRequest, clientResponse, domain, target, false, asyncHandle)) {
-            return true;
-        }
-
-        // Try route WITH catchAll route
-        if (distributeTraffic(clientRequest, clientResponse, domain, target, true, asyncHandle)) {
-            return true;
+        final DispatchPlanner.DispatchPlan plan = dispatchPlanner.plan(domain, target);
+        if (plan.isV3()) {
+            dispatchV3(clientRequest, clientResponse, plan.farmV3(), plan.routeKey(), target, asyncHandle);
+        } else {
+            dispatchV1(clientRequest, clientResponse, plan.routeKey(), target, asyncHandle);
         }
-
-        // default fallback to V1
-        dispatchV1(clientRequest, clientResponse, target, true, asyncHandle);
         return true;
     }
 
-    private boolean distributeTraffic(MuRequest clientRequest, MuResponse clientResponse, String domain, String target, boolean useCatchall, AsyncHandle asyncHandle) {
-        final boolean canHandleByV3 = webSocketFarmV3Holder.canHandle(ANY_DOMAIN, target, useCatchall);
-        final boolean canHandleByV1 = webSocketFarm.canHandle(target, useCatchall);
-
-        if (canHandleByV3 && canHandleByV1) {
-            // not loading all the traffic to V3 during the migration period
-            if (random.nextBoolean()) {
-                return dispatchV3(clientRequest, clientResponse, ANY_DOMAIN, target, useCatchall, asyncHandle);
-            } else {
-                return dispatchV1(clientRequest, clientResponse, target, useCatchall, asyncHandle);
-            }
-
-        } else if (canHandleByV3) {
-            return dispatchV3(clientRequest, clientResponse, ANY_DOMAIN, target, useCatchall, asyncHandle);
-        } else if (canHandleByV1) {
-            return dispatchV1(clientRequest, clientResponse, target, useCatchall, asyncHandle);
-        }
-        return false;
-    }
-
-    private boolean dispatchV1(MuRequest clientRequest, MuResponse clientResponse, String target, boolean useCatchAll, AsyncHandle asyncHandle) {
-        webSocketFarm.acquireSocket(target, useCatchAll, clientRequest, clientResponse,
+    private void dispatchV1(MuRequest clientRequest, MuResponse clientResponse, String routeKey, String target, AsyncHandle asyncHandle) {
+        webSocketFarm.acquireSocket(routeKey, target, clientRequest, clientResponse,
                 (crankedSocket, waitTimeInMillis) -> sendRequestOverWebSocket(clientRequest, clientResponse, asyncHandle, crankedSocket, waitTimeInMillis),
-                (statusCode, waitTimeInMillis, header, body) -> {
+                (reason, statusCode, waitTimeInMillis, header, body) -> {
                     sendSimpleResponse(clientResponse, asyncHandle, statusCode, header, body);
-                    if (!proxyListeners.isEmpty()) {
-                        ProxyInfo proxyInfo = new ErrorProxyInfo(target, clientRequest, clientResponse, waitTimeInMillis);
-                        for (ProxyListener proxyListener : proxyListeners) {
+                    if (proxyListeners.failureToAcquireProxySocket.length > 0) {
+                        ProxyInfo proxyInfo = new ErrorProxyInfo(target, clientRequest, clientResponse, waitTimeInMillis, reason);
+                        for (ProxyListener proxyListener : proxyListeners.failureToAcquireProxySocket) {
                             proxyListener.onFailureToAcquireProxySocket(proxyInfo);
                         }
                     }
                 });
-        return true;
     }
 
-    private boolean dispatchV3(MuRequest clientRequest, MuResponse clientResponse, String domain, String target, boolean useCatchAll, AsyncHandle asyncHandle) {
-        final WebSocketFarmV3 webSocketFarmV3 = webSocketFarmV3Holder.getWebSocketFarmV3(domain);
-        if (webSocketFarmV3 == null) {
+    private void dispatchV3(MuRequest clientRequest, MuResponse clientResponse, WebSocketFarmV3 webSocketFarmV3, String routeKey, String target, AsyncHandle asyncHandle) {
+        final RouterSocketV3 routerSocketV3 = webSocketFarmV3.getWebSocket(routeKey);
+        if (routerSocketV3 == null) {
             sendSimpleResponse(clientResponse, asyncHandle, 503,
                     "503 Service Unavailable",
-                    "V3 connector not available for domain");
-            return true;
+                    "V3 connector not available");
+            if (proxyListeners.failureToAcquireProxySocket.length > 0) {
+                ProxyInfo proxyInfo = new ErrorProxyInfo(target, clientRequest, clientResponse, 0, AcquireFailureReason.NO_CONNECTOR_AVAILABLE);
+                for (ProxyListener proxyListener : proxyListeners.failureToAcquireProxySocket) {
+                    proxyListener.onFailureToAcquireProxySocket(proxyInfo);
+                }
+            }
+            return;
         }
-        webSocketFarmV3.getWebSocket(target, useCatchAll)
-                .whenComplete((routerSocketV3, throwable) -> {
-                    if (routerSocketV3 == null || throwable != null) {
-                        sendSimpleResponse(clientResponse, asyncHandle, 503,
-                                "503 Service Unavailable",
-                                "V3 connector not available");
-                        if (!proxyListeners.isEmpty()) {
-                            ProxyInfo proxyInfo = new ErrorProxyInfo(target, clientRequest, clientResponse, 0);
-                            for (ProxyListener proxyListener : proxyListeners) {
-                                proxyListener.onFailureToAcquireProxySocket(proxyInfo);
-                            }
-                        }
-                        return;
-                    }
-                    routerSocketV3.sendRequestOverWebSocketV3(clientRequest, clientResponse);
-                });
-        return true;
+        routerSocketV3.sendRequestOverWebSocketV3(clientRequest, clientResponse);
     }
 
     private void sendRequestOverWebSocket(MuRequest clientRequest, MuResponse clientResponse,
@@ -175,15 +114,12 @@ class CrankerMuHandler implements MuHandler {
                                           long waitTimeInMillis) {
         crankedSocket.setAsyncHandle(asyncHandle, clientRequest, clientResponse, waitTimeInMillis);
         try {
-            CrankerProtocolRequestBuilder protocolRequest = CrankerProtocolRequestBuilder.newBuilder();
-            protocolRequest.withRequestLine(createRequestLine(clientRequest));
-
             HeadersBuilder headers = new HeadersBuilder();
-            setTargetRequestHeaders(clientRequest, headers, discardClientForwardedHeaders, sendLegacyForwardedHeaders, viaValue, doNotProxy);
+            setTargetRequestHeaders(clientRequest, headers, forwardingHeaders, doNotProxy);
 
             try {
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.beforeProxyToTarget.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.beforeProxyToTarget) {
                         proxyListener.onBeforeProxyToTarget(crankedSocket, headers.muHeaders());
                     }
                 }
@@ -193,14 +129,12 @@ class CrankerMuHandler implements MuHandler {
                 return;
             }
 
-            protocolRequest.withRequestHeaders(headers);
-
             if (clientRequest.headers().hasBody()) {
                 // Stream the body
-                crankedSocket.sendText(protocolRequest.withRequestBodyPending().build());
+                crankedSocket.sendText(CrankerProtocolV1Codec.encodeRequest(clientRequest, headers.muHeaders(), true));
 
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.afterProxyToTargetHeadersSent.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.afterProxyToTargetHeadersSent) {
                         proxyListener.onAfterProxyToTargetHeadersSent(crankedSocket, headers.muHeaders());
                     }
                 }
@@ -211,14 +145,16 @@ class CrankerMuHandler implements MuHandler {
                         try {
                             final int position = buffer.position();
 
-                            for (ProxyListener proxyListener : proxyListeners) {
-                                proxyListener.onBeforeRequestBodyChunkSentToTarget(crankedSocket, buffer.position(position));
+                            if (proxyListeners.beforeRequestBodyChunkSentToTarget.length > 0) {
+                                for (ProxyListener proxyListener : proxyListeners.beforeRequestBodyChunkSentToTarget) {
+                                    proxyListener.onBeforeRequestBodyChunkSentToTarget(crankedSocket, buffer.position(position));
+                                }
+                                buffer.position(position);
                             }
-                            buffer.position(position);
 
                             final DoneCallback doneWrapper = error -> {
-                                if (error == null && !proxyListeners.isEmpty()) {
-                                    for (ProxyListener proxyListener : proxyListeners) {
+                                if (error == null && proxyListeners.requestBodyChunkSentToTarget.length > 0) {
+                                    for (ProxyListener proxyListener : proxyListeners.requestBodyChunkSentToTarget) {
                                         proxyListener.onRequestBodyChunkSentToTarget(crankedSocket, buffer.position(position));
                                     }
                                 }
@@ -233,11 +169,10 @@ class CrankerMuHandler implements MuHandler {
                     @Override
                     public void onComplete() {
                         try {
-                            String bodyEndedRequestMsg = CrankerProtocolRequestBuilder.newBuilder().withRequestBodyEnded().build();
-                            crankedSocket.sendText(bodyEndedRequestMsg);
+                            crankedSocket.sendText(CrankerProtocolV1Codec.REQUEST_BODY_ENDED_MARKER);
 
-                            if (!proxyListeners.isEmpty()) {
-                                for (ProxyListener proxyListener : proxyListeners) {
+                            if (proxyListeners.requestBodySentToTarget.length > 0) {
+                                for (ProxyListener proxyListener : proxyListeners.requestBodySentToTarget) {
                                     proxyListener.onRequestBodySentToTarget(crankedSocket);
                                 }
                             }
@@ -258,10 +193,10 @@ class CrankerMuHandler implements MuHandler {
 
             } else {
                 // No request body
-                crankedSocket.sendText(protocolRequest.withRequestHasNoBody().build());
+                crankedSocket.sendText(CrankerProtocolV1Codec.encodeRequest(clientRequest, headers.muHeaders(), false));
 
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.requestWithoutBodySent.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.requestWithoutBodySent) {
                         proxyListener.onAfterProxyToTargetHeadersSent(crankedSocket, headers.muHeaders());
                         proxyListener.onRequestBodySentToTarget(crankedSocket);
                     }
@@ -328,121 +263,26 @@ class CrankerMuHandler implements MuHandler {
         }
     }
 
-    static String createRequestLine(MuRequest request) {
-        // Request-Line   = Method SP Request-URI SP HTTP-Version CRLF
-        String uri = request.uri().getRawPath();
-        String qs = request.uri().getRawQuery();
-        qs = (qs == null) ? "" : "?" + qs;
-        return request.method().name() + " " + uri + qs + " HTTP/1.1";
-    }
-
 
-    static boolean setTargetRequestHeaders(MuRequest clientRequest, HeadersBuilder headersBuilder, boolean discardClientForwardedHeaders, boolean sendLegacyForwardedHeaders, String viaValue, Set<String> excludedHeaders) {
+    static boolean setTargetRequestHeaders(MuRequest clientRequest, HeadersBuilder headersBuilder, ForwardingHeaders forwardingHeaders, HeaderFilter excludedHeaders) {
         Headers reqHeaders = clientRequest.headers();
-        List<String> customHopByHop = getCustomHopByHopHeaders(reqHeaders.get(HeaderNames.CONNECTION));
+        String connection = reqHeaders.get(HeaderNames.CONNECTION);
 
         boolean hasContentLengthOrTransferEncoding = false;
         for (Map.Entry<String, String> clientHeader : reqHeaders) {
             String key = clientHeader.getKey();
-            String lowKey = key.toLowerCase();
-            if (excludedHeaders.contains(lowKey) || customHopByHop.contains(lowKey)) {
+            if (excludedHeaders.contains(key) || HeaderFilter.isConnectionOption(connection, key)) {
                 continue;
             }
-            hasContentLengthOrTransferEncoding |= lowKey.equals("content-length") || lowKey.equals("transfer-encoding");
+            hasContentLengthOrTransferEncoding |= key.equalsIgnoreCase("content-length") || key.equalsIgnoreCase("transfer-encoding");
             headersBuilder.appendHeader(key, clientHeader.getValue());
         }
 
-        String newViaValue = getNewViaValue(clientRequest.connection().protocol() + " " + viaValue, clientRequest.headers().getAll(HeaderNames.VIA));
-        headersBuilder.appendHeader("via", newViaValue);
-
-        setForwardedHeaders(clientRequest, headersBuilder, discardClientForwardedHeaders, sendLegacyForwardedHeaders);
+        forwardingHeaders.appendTo(clientRequest, headersBuilder);
 
         return hasContentLengthOrTransferEncoding;
     }
 
-    private static String getNewViaValue(String viaValue, List<String> previousViasList) {
-        String previousVias = String.join(", ", previousViasList);
-        if (!previousVias.isEmpty()) previousVias += ", ";
-        return previousVias + viaValue;
-    }
-
-    /**
-     * Sets Forwarded and optionally X-Forwarded-* headers to the target request, based on the client request
-     *
-     * @param clientRequest                 the received client request
-     * @param headersBuilder                the target request to write the headers to
-     * @param discardClientForwardedHeaders if <code>true</code> then existing Forwarded headers on the client request will be discarded (normally false, unless you do not trust the upstream system)
-     * @param sendLegacyForwardedHeaders    if <code>true</code> then X-Forwarded-Proto/Host/For headers will also be added
-     */
-    public static void setForwardedHeaders(MuRequest clientRequest, HeadersBuilder headersBuilder, boolean discardClientForwardedHeaders, boolean sendLegacyForwardedHeaders) {
-        Mutils.notNull("clientRequest", clientRequest);
-        Mutils.notNull("targetRequest", headersBuilder);
-        List<ForwardedHeader> forwardHeaders;
-        if (discardClientForwardedHeaders) {
-            forwardHeaders = Collections.emptyList();
-        } else {
-            forwardHeaders = clientRequest.headers().forwarded();
-            for (ForwardedHeader existing : forwardHeaders) {
-                headersBuilder.appendHeader("forwarded", existing.toString());
-            }
-        }
-
-        ForwardedHeader newForwarded = createForwardedHeader(clientRequest);
-        headersBuilder.appendHeader("forwarded", newForwarded.toString());
-
-        if (sendLegacyForwardedHeaders) {
-            ForwardedHeader first = forwardHeaders.isEmpty() ? newForwarded : forwardHeaders.get(0);
-            setXForwardedHeaders(headersBuilder, first);
-        }
-    }
-
-    /**
-     * Sets X-Forwarded-Proto, X-Forwarded-Host and X-Forwarded-For on the request given the forwarded header.
-     *
-     * @param headersBuilder  The request to add the headers to
-     * @param forwardedHeader The forwarded header that has the original client information on it.
-     */
-    private static void setXForwardedHeaders(HeadersBuilder headersBuilder, ForwardedHeader forwardedHeader) {
-        String proto = forwardedHeader.proto();
-        if (proto != null) {
-            headersBuilder.appendHeader(HeaderNames.X_FORWARDED_PROTO.toString(), proto);
-        }
-        String host = forwardedHeader.host();
-        if (host != null) {
-            headersBuilder.appendHeader(HeaderNames.X_FORWARDED_HOST.toString(), host);
-        }
-        String forValue = forwardedHeader.forValue();
-        if (forValue != null) {
-            headersBuilder.appendHeader(HeaderNames.X_FORWARDED_FOR.toString(), forValue);
-        }
-    }
-
-    /**
-     * Creates a Forwarded header for the based on the current request which can be used when
-     * proxying the request to a target.
-     *
-     * @param clientRequest The request from the client
-     * @return A ForwardedHeader that can be added to a new request
-     */
-    private static ForwardedHeader createForwardedHeader(MuRequest clientRequest) {
-        String forwardedFor = clientRequest.remoteAddress();
-        String proto = clientRequest.serverURI().getScheme();
-        String host = clientRequest.headers().get(HeaderNames.HOST);
-        return new ForwardedHeader(ipAddress, forwardedFor, host, proto, null);
-    }
-
-    static List<String> getCustomHopByHopHeaders(String connectionHeaderValue) {
-        if (connectionHeaderValue == null) {
-            return Collections.emptyList();
-        }
-        List<String> customHopByHop = new ArrayList<>();
-        String[] split = connectionHeaderValue.split("\\s*,\\s*");
-        for (String s : split) {
-            customHopByHop.add(s.toLowerCase());
-        }
-        return customHopByHop;
-    }
-
 
     private static class ErrorProxyInfo implements ProxyInfo {
         private final boolean isCatchAll;
@@ -451,12 +291,14 @@ class CrankerMuHandler implements MuHandler {
         private final MuResponse clientResponse;
         private final long socketWaitInMillis;
         private final long durationMillis;
+        private final AcquireFailureReason acquireFailureReason;
 
-        ErrorProxyInfo(String target, MuRequest clientRequest, MuResponse clientResponse, long socketWaitInMillis) {
+        ErrorProxyInfo(String target, MuRequest clientRequest, MuResponse clientResponse, long socketWaitInMillis, AcquireFailureReason acquireFailureReason) {
             this.clientRequest = clientRequest;
             this.clientResponse = clientResponse;
             this.socketWaitInMillis = socketWaitInMillis;
             this.durationMillis = System.currentTimeMillis() - clientRequest.startTime();
+            this.acquireFailureReason = acquireFailureReason;
 
             String[] split = target.split("/");
             if (split.length >= 2) {
@@ -528,6 +370,11 @@ class CrankerMuHandler implements MuHandler {
             return socketWaitInMillis;
         }
 
+        @Override
+        public AcquireFailureReason acquireFailureReason() {
+            return acquireFailureReason;
+        }
+
 
     }
 }
@@ -0,0 +1,156 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.MuRequest;
+
+import java.util.Map;
+
+/**
+ * Encodes the text messages that cranker protocol 1.0 sends to connectors, and parses the response heads that
+ * connectors send back.
+ * <p>A request message is the request line, one <code>name:value</code> header per line, an empty line and an end
+ * marker:</p>
+ * <pre>
+ * GET /some/path?query HTTP/1.1
+ * [headers]
+ *
+ * endmarker
+ * </pre>
+ * <p>The marker is {@link #REQUEST_BODY_PENDING_MARKER} if the body follows as binary messages, in which case a
+ * {@link #REQUEST_BODY_ENDED_MARKER} message is sent once it has all been sent, or otherwise
+ * {@link #REQUEST_HAS_NO_BODY_MARKER}. A response head is a status line followed by one <code>name:value</code>
+ * header per line.</p>
+ * <p>A request message is written into a character buffer that each thread keeps and reuses, so the message string
+ * is the only thing allocated, and the end marker messages are constants. A response head is parsed in one pass,
+ * without splitting it into lines.</p>
+ */
+final class CrankerProtocolV1Codec {
+
+    static final String REQUEST_BODY_PENDING_MARKER = "_1";
+    static final String REQUEST_HAS_NO_BODY_MARKER = "_2";
+    static final String REQUEST_BODY_ENDED_MARKER = "_3";
+
+    /**
+     * A buffer that has grown beyond this many characters for an unusually large head is not kept
+     */
+    private static final int MAX_KEPT_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private CrankerProtocolV1Codec() {
+    }
+
+    /**
+     * Encodes the message that starts a request.
+     *
+     * @param request the client request
+     * @param headers the headers to send to the target
+     * @param hasBody true if the body will follow as binary messages
+     * @return the text message to send
+     */
+    static String encodeRequest(MuRequest request, Iterable<Map.Entry<String, String>> headers, boolean hasBody) {
+        return encodeRequest(request.method().name(), request.uri().getRawPath(), request.uri().getRawQuery(), headers, hasBody);
+    }
+
+    static String encodeRequest(String method, String rawPath, String rawQuery, Iterable<Map.Entry<String, String>> headers, boolean hasBody) {
+        final StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        // Request-Line   = Method SP Request-URI SP HTTP-Version CRLF
+        buffer.append(method).append(' ').append(rawPath);
+        if (rawQuery != null) {
+            buffer.append('?').append(rawQuery);
+        }
+        buffer.append(' ').append(CrankerProtocol.SUPPORTING_HTTP_VERSION_1_1).append('\n');
+        for (Map.Entry<String, String> header : headers) {
+            buffer.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        buffer.append('\n').append(hasBody ? REQUEST_BODY_PENDING_MARKER : REQUEST_HAS_NO_BODY_MARKER);
+        final String message = buffer.toString();
+        if (buffer.capacity() > MAX_KEPT_CAPACITY) {
+            BUFFER.remove();
+        }
+        return message;
+    }
+
+    /**
+     * Parses a response head, giving each header to the sink in the order received. Lines without a header name
+     * are ignored.
+     *
+     * @param head the response head
+     * @param sink receives the name, as received, and the value of each header
+     * @return the response status
+     * @throws NumberFormatException if the status line has no valid status
+     */
+    static int parseResponse(CharSequence head, HeaderCompression.HeaderSink sink) {
+        final int length = head.length();
+        int lineEnd = indexOf(head, '\n', 0, length);
+        final int status = parseStatus(head, lineEnd);
+        while (lineEnd < length) {
+            final int lineStart = lineEnd + 1;
+            lineEnd = indexOf(head, '\n', lineStart, length);
+            final int colon = indexOf(head, ':', lineStart, lineEnd);
+            if (colon > lineStart && colon < lineEnd) {
+                sink.header(head.subSequence(lineStart, colon).toString(), head.subSequence(colon + 1, lineEnd).toString());
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Finds a header in a response head without parsing the other headers.
+     *
+     * @param head the response head
+     * @param name the lower-case name of the header
+     * @return the value of the first header with the name, in any case, or null if there is none
+     */
+    static String headerValue(CharSequence head, String name) {
+        final int length = head.length();
+        int lineEnd = indexOf(head, '\n', 0, length);
+        while (lineEnd < length) {
+            final int lineStart = lineEnd + 1;
+            lineEnd = indexOf(head, '\n', lineStart, length);
+            final int colon = lineStart + name.length();
+            if (colon < lineEnd && head.charAt(colon) == ':' && nameMatches(head, lineStart, name)) {
+                return head.subSequence(colon + 1, lineEnd).toString();
+            }
+        }
+        return null;
+    }
+
+    private static boolean nameMatches(CharSequence head, int from, String lowerCaseName) {
+        for (int i = 0; i < lowerCaseName.length(); i++) {
+            final char c = head.charAt(from + i);
+            if ((c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c) != lowerCaseName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseStatus(CharSequence head, int lineEnd) {
+        int i = indexOf(head, ' ', 0, lineEnd) + 1;
+        int status = 0;
+        int digits = 0;
+        for (; i < lineEnd; i++) {
+            final char c = head.charAt(i);
+            if (c == ' ') break;
+            if (c < '0' || c > '9' || digits == 9) {
+                throw new NumberFormatException("Invalid status in response line");
+            }
+            status = status * 10 + (c - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("No status in response line");
+        }
+        return status;
+    }
+
+    private static int indexOf(CharSequence chars, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chars.charAt(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+}
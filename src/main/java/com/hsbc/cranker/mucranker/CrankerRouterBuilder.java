@@ -23,13 +23,27 @@ public class CrankerRouterBuilder {
     private String viaValue = "muc";
     private final Set<String> doNotProxyHeaders = new HashSet<>();
     private long maxWaitInMillis = 5000;
+    private int maxWaitingRequestsPerRoute = Integer.MAX_VALUE;
+    private int maxWaitingRequests = Integer.MAX_VALUE;
     private long pingAfterWriteMillis = 10000;
     private long idleReadTimeoutMills = 60000;
     private long routesKeepTimeMillis = 2 * 60 * 60 * 1000L;
     private List<ProxyListener> completionListeners = emptyList();
+    private int completionQueueCapacity = 0;
+    private int completionThreads = 0;
+    private CompletionOverflowPolicy completionOverflowPolicy = null;
     private RouteResolver routeResolver;
     private List<String> supportedCrankerProtocol = List.of("1.0", "3.0");
     private Function<MuRequest, String> clientIpProvider = MuRequest::remoteAddress;
+    private LoadBalancingStrategy loadBalancingStrategy = LoadBalancingStrategy.LEAST_IN_FLIGHT;
+    private int v3MaxFrameSize = RequestHeadEncoder.DEFAULT_MAX_FRAME_SIZE;
+    private int v3MaxResponseHeadSize = ResponseHeadParser.DEFAULT_MAX_HEAD_SIZE;
+    private int v3WindowUpdateThreshold = WindowUpdateCoalescer.DEFAULT_THRESHOLD;
+    private FlowControlWindow v3FlowControlWindow = FlowControlWindow.DEFAULT;
+    private final Map<String, FlowControlWindow> v3RouteFlowControlWindows = new HashMap<>();
+    private long v3SocketWindowBudget = FlowControlSettings.DEFAULT_SOCKET_BUDGET;
+    private int v3StreamClientQueueLimit = FlowControlSettings.DEFAULT_STREAM_CLIENT_QUEUE_LIMIT;
+    private long v3SocketClientQueueLimit = FlowControlSettings.DEFAULT_SOCKET_CLIENT_QUEUE_LIMIT;
 
     private CrankerRouterBuilder() {}
 
@@ -151,6 +165,40 @@ public class CrankerRouterBuilder {
         return this;
     }
 
+    /**
+     * <p>Sets the maximum number of requests that may wait for a connector socket of a single route (see
+     * {@link #withConnectorMaxWaitInMillis(long)}). Further requests to the route are rejected straight away with a
+     * <code>503 Service Unavailable</code> and a <code>Retry-After</code> header, rather than holding the client
+     * connection open while there are no connectors.</p>
+     * <p>This applies to cranker protocol 1 connectors. There is no limit by default.</p>
+     *
+     * @param maxWaitingRequestsPerRoute The maximum number of waiting requests per route
+     * @return This builder
+     */
+    public CrankerRouterBuilder withMaxWaitingRequestsPerRoute(int maxWaitingRequestsPerRoute) {
+        if (maxWaitingRequestsPerRoute < 0) {
+            throw new IllegalArgumentException("The maximum must be 0 or greater");
+        }
+        this.maxWaitingRequestsPerRoute = maxWaitingRequestsPerRoute;
+        return this;
+    }
+
+    /**
+     * <p>Sets the maximum number of requests that may wait for a connector socket across all routes. Further
+     * requests are rejected in the same way as {@link #withMaxWaitingRequestsPerRoute(int)}.</p>
+     * <p>This applies to cranker protocol 1 connectors. There is no limit by default.</p>
+     *
+     * @param maxWaitingRequests The maximum number of waiting requests
+     * @return This builder
+     */
+    public CrankerRouterBuilder withMaxWaitingRequests(int maxWaitingRequests) {
+        if (maxWaitingRequests < 0) {
+            throw new IllegalArgumentException("The maximum must be 0 or greater");
+        }
+        this.maxWaitingRequests = maxWaitingRequests;
+        return this;
+    }
+
     /**
      * <p>Specifies whether or not to send the original <code>Host</code> header to the target server.</p>
      * <p>Reverse proxies are generally supposed to forward the original <code>Host</code> header to target
@@ -195,6 +243,36 @@ public class CrankerRouterBuilder {
         return this;
     }
 
+    /**
+     * Calls {@link ProxyListener#onComplete(ProxyInfo)} on dedicated worker threads instead of the thread that
+     * completed the request, so that slow listeners, such as ones that write access logs or publish metrics, do not
+     * hold up the proxying of other requests.
+     * <p>The listeners are given a copy of the {@link ProxyInfo} taken when the request completed. Completed requests
+     * wait for the workers in a queue of the given capacity, and when it is full the overflow policy decides whether
+     * the event is dropped (and counted in {@link RouterInfo#proxyListenerCompletionsDropped()}) or the completing
+     * thread waits for space. Events are still given to each listener in turn, but with more than one thread,
+     * different requests may be delivered out of order and at the same time.</p>
+     * <p>By default the listeners are called synchronously. The other proxy listener events are always synchronous.</p>
+     *
+     * @param queueCapacity  The number of completed requests that can wait for the listeners, rounded up to a power of 2.
+     * @param threads        The number of worker threads that call the listeners.
+     * @param overflowPolicy What happens to a completed request when the queue is full.
+     * @return This builder
+     */
+    public CrankerRouterBuilder withAsyncCompletionListeners(int queueCapacity, int threads, CompletionOverflowPolicy overflowPolicy) {
+        if (queueCapacity < 1 || queueCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("queueCapacity must be between 1 and 2^30");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        Mutils.notNull("overflowPolicy", overflowPolicy);
+        this.completionQueueCapacity = queueCapacity;
+        this.completionThreads = threads;
+        this.completionOverflowPolicy = overflowPolicy;
+        return this;
+    }
+
     /**
      * Customized route resolver. If it's not specified, will use the default implementation in {@link RouteResolver#resolve(Set, String)}
      *
@@ -206,8 +284,24 @@ public class CrankerRouterBuilder {
         return this;
     }
 
+    /**
+     * Sets how requests are spread over the connector sockets of a route. Defaults to {@link LoadBalancingStrategy#LEAST_IN_FLIGHT}.
+     *
+     * @param loadBalancingStrategy The strategy to use.
+     * @return This builder
+     */
+    public CrankerRouterBuilder withLoadBalancingStrategy(LoadBalancingStrategy loadBalancingStrategy) {
+        Mutils.notNull("loadBalancingStrategy", loadBalancingStrategy);
+        this.loadBalancingStrategy = loadBalancingStrategy;
+        return this;
+    }
+
     /**
      * Set cranker protocols. Default supporting both [&quot;cranker_1.0&quot;, &quot;cranker_3.0&quot;].
+     * <p>&quot;cranker_3.1&quot; can also be enabled, which is cranker protocol 3 with header blocks compressed
+     * using a static table and a dynamic table per socket, and small requests and responses sent as a single frame
+     * holding the head, body and end of stream. It is only used with connectors that offer it, and
+     * connectors that only offer &quot;cranker_3.0&quot; keep using that.</p>
      *
      * @param protocols the protocols to support
      * @return this builder
@@ -220,7 +314,7 @@ public class CrankerRouterBuilder {
             .filter(Objects::nonNull)
             .map(String::toLowerCase)
             .map(it -> it.replace("cranker_", ""))
-            .filter(it -> it.equalsIgnoreCase("1.0") || it.equalsIgnoreCase("3.0"))
+            .filter(it -> it.equalsIgnoreCase("1.0") || it.equalsIgnoreCase("3.0") || it.equalsIgnoreCase("3.1"))
             .collect(Collectors.toList());
         if (supportedProtocols.isEmpty()) {
             throw new CrankerProtocol.CrankerProtocolVersionNotFoundException("protocols is empty after filter");
@@ -229,6 +323,127 @@ public class CrankerRouterBuilder {
         return this;
     }
 
+    /**
+     * Sets the maximum size in bytes of a frame sent to cranker protocol 3 connectors, including the frame header.
+     * Request heads and request body chunks that are larger than this are split over several frames, and the body
+     * frames of requests sharing a connector socket are sent in turn, so a smaller size lets a small request overtake
+     * a large upload sooner. Defaults to 16KB.
+     *
+     * @param maxFrameSize The maximum frame size in bytes, which must be at least 64
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3MaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize < 64) {
+            throw new IllegalArgumentException("The maximum frame size must be at least 64 bytes");
+        }
+        this.v3MaxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a response head received from a cranker protocol 3 connector, which may be
+     * split over several frames. A request whose response head is larger fails with a <code>502</code>. With
+     * cranker protocol 3.1 the connector socket is closed instead, as the header tables of both sides then no longer
+     * match. Defaults to 64KB.
+     *
+     * @param maxResponseHeadSize The maximum response head size in bytes
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3MaxResponseHeadSize(int maxResponseHeadSize) {
+        if (maxResponseHeadSize < 1) {
+            throw new IllegalArgumentException("The maximum response head size must be greater than 0");
+        }
+        this.v3MaxResponseHeadSize = maxResponseHeadSize;
+        return this;
+    }
+
+    /**
+     * <p>Sets how many response bytes of a stream are forwarded to the client before the router acknowledges them to
+     * a cranker protocol 3 connector. Smaller acknowledgements are combined into one <code>WINDOW_UPDATE</code> frame,
+     * which is sent at the latest a few milliseconds later, or when the stream ends.</p>
+     * <p>This should be well below the connector's flow control window. Defaults to 8KB; 0 acknowledges every frame
+     * straight away.</p>
+     *
+     * @param thresholdInBytes The number of bytes at which acknowledgements are sent straight away
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3WindowUpdateThreshold(int thresholdInBytes) {
+        if (thresholdInBytes < 0) {
+            throw new IllegalArgumentException("The threshold must be 0 or greater");
+        }
+        this.v3WindowUpdateThreshold = thresholdInBytes;
+        return this;
+    }
+
+    /**
+     * Sets the flow control window of requests sent to cranker protocol 3 connectors, for routes that do not have
+     * their own window set with {@link #withV3FlowControlWindow(String, FlowControlWindow)}.
+     * Defaults to {@link FlowControlWindow#DEFAULT}.
+     *
+     * @param window The window, either {@link FlowControlWindow#fixed(int)} or {@link FlowControlWindow#autoTuned(int, int)}
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3FlowControlWindow(FlowControlWindow window) {
+        Mutils.notNull("window", window);
+        this.v3FlowControlWindow = window;
+        return this;
+    }
+
+    /**
+     * Sets the flow control window of requests to one route of cranker protocol 3 connectors, for example a route
+     * whose connectors are in a distant data centre.
+     *
+     * @param route  The route, as registered by the connectors, e.g. <code>my-service</code>, or <code>*</code> for
+     *               the catch-all route
+     * @param window The window, either {@link FlowControlWindow#fixed(int)} or {@link FlowControlWindow#autoTuned(int, int)}
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3FlowControlWindow(String route, FlowControlWindow window) {
+        Mutils.notNull("route", route);
+        Mutils.notNull("window", window);
+        this.v3RouteFlowControlWindows.put(route, window);
+        return this;
+    }
+
+    /**
+     * Sets how many bytes the {@link FlowControlWindow#autoTuned(int, int) auto-tuned} flow control windows of the
+     * requests on one cranker protocol 3 connector socket may grow beyond their initial sizes in total. This bounds
+     * the request body bytes that may be in flight to a connector over one socket. Defaults to 16MB.
+     *
+     * @param budgetInBytes The budget in bytes, which may be 0 to stop windows growing
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3SocketWindowBudget(long budgetInBytes) {
+        if (budgetInBytes < 0) {
+            throw new IllegalArgumentException("The budget must be 0 or greater");
+        }
+        this.v3SocketWindowBudget = budgetInBytes;
+        return this;
+    }
+
+    /**
+     * <p>Sets how many response bytes received from cranker protocol 3 connectors may be waiting to be written to
+     * slow clients.</p>
+     * <p>Bytes are only acknowledged to the connector once they have been written to the client, so a connector that
+     * respects its flow control window never sends more than the window for one request. While more than the
+     * per-request limit is waiting for a client, the bytes written to it are not acknowledged either, so that only
+     * that request is held back. The per-socket limit bounds the router's memory even when many clients on one socket
+     * are slow, or when a connector's window is large: while it is exceeded, no more frames are read from the socket
+     * until enough bytes have been written. Defaults to 256KB per request and 4MB per socket.</p>
+     *
+     * @param perRequestBytes The limit for one request
+     * @param perSocketBytes  The limit for all the requests on one connector socket
+     * @return This builder
+     */
+    public CrankerRouterBuilder withV3ClientQueueLimits(int perRequestBytes, long perSocketBytes) {
+        if (perRequestBytes < 1 || perSocketBytes < perRequestBytes) {
+            throw new IllegalArgumentException("The limits must be greater than 0, and the socket limit must not be smaller than the request limit");
+        }
+        this.v3StreamClientQueueLimit = perRequestBytes;
+        this.v3SocketClientQueueLimit = perSocketBytes;
+        return this;
+    }
+
     /**
      * Set client IP provider. If it's not set, will use {@link MuRequest#remoteAddress()}.
      * This makes cranker better understand where original registration request comes from.
@@ -247,16 +462,21 @@ public class CrankerRouterBuilder {
      * @return A newly created CrankerRouter object
      */
     public CrankerRouter start() {
-        Set<String> doNotProxy = new HashSet<>(CrankerMuHandler.REPRESSED);
-        doNotProxyHeaders.forEach(h -> doNotProxy.add(h.toLowerCase()));
+        Set<String> doNotProxyNames = new HashSet<>(CrankerMuHandler.REPRESSED);
+        doNotProxyNames.addAll(doNotProxyHeaders);
+        HeaderFilter doNotProxy = HeaderFilter.compile(doNotProxyNames);
         if (routeResolver == null) routeResolver = new RouteResolver() {};
-        WebSocketFarm webSocketFarm = new WebSocketFarm(routeResolver, maxWaitInMillis);
-        WebSocketFarmV3Holder webSocketFarmV3Holder = new WebSocketFarmV3Holder(routeResolver);
+        ConnectorLatencies connectorLatencies = new ConnectorLatencies(loadBalancingStrategy);
+        WebSocketFarm webSocketFarm = new WebSocketFarm(routeResolver, maxWaitInMillis, connectorLatencies, maxWaitingRequestsPerRoute, maxWaitingRequests);
+        WebSocketFarmV3Holder webSocketFarmV3Holder = new WebSocketFarmV3Holder(routeResolver, loadBalancingStrategy, connectorLatencies, v3MaxFrameSize, v3MaxResponseHeadSize, v3WindowUpdateThreshold,
+            new FlowControlSettings(v3FlowControlWindow, v3RouteFlowControlWindows, v3SocketWindowBudget,
+                v3StreamClientQueueLimit, v3SocketClientQueueLimit));
         webSocketFarm.start();
-        List<ProxyListener> completionListeners = this.completionListeners.isEmpty() ? emptyList() : new ArrayList<>(this.completionListeners);
-        DarkModeManager darkModeManager = new DarkModeManagerImpl(webSocketFarm);
-        return new CrankerRouterImpl(ipValidator, discardClientForwardedHeaders,
-            sendLegacyForwardedHeaders, viaValue, doNotProxy, webSocketFarm, webSocketFarmV3Holder,
-            idleReadTimeoutMills, pingAfterWriteMillis, routesKeepTimeMillis, completionListeners, darkModeManager, supportedCrankerProtocol, clientIpProvider);
+        ProxyListeners completionListeners = ProxyListeners.of(this.completionListeners, completionQueueCapacity, completionThreads, completionOverflowPolicy);
+        DarkModeManager darkModeManager = new DarkModeManagerImpl(webSocketFarm, webSocketFarmV3Holder);
+        ForwardingHeaders forwardingHeaders = new ForwardingHeaders(discardClientForwardedHeaders, sendLegacyForwardedHeaders, viaValue);
+        return new CrankerRouterImpl(ipValidator, forwardingHeaders, doNotProxy, webSocketFarm, webSocketFarmV3Holder,
+            idleReadTimeoutMills, pingAfterWriteMillis, routesKeepTimeMillis, completionListeners, darkModeManager, supportedCrankerProtocol, clientIpProvider,
+            connectorLatencies);
     }
 }
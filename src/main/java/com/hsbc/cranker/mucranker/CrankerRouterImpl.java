@@ -26,36 +26,36 @@ class CrankerRouterImpl implements CrankerRouter {
     private final static String CRANKER_PROTOCOL = "CrankerProtocol";
     private final static String SEC_WEBSOCKET_PROTOCOL = "Sec-WebSocket-Protocol";
     private final static String VERSION_3 = "3.0";
+    private final static String VERSION_3_1 = "3.1";
     private final static String VERSION_1 = "1.0";
 
     private final IPValidator ipValidator;
     private final WebSocketFarm webSocketFarm;
     private final WebSocketFarmV3Holder webSocketFarmV3Holder;
-    private final boolean discardClientForwardedHeaders;
-    private final boolean sendLegacyForwardedHeaders;
-    private final String viaValue;
-    private final Set<String> doNotProxy;
+    private final DispatchPlanner dispatchPlanner;
+    private final ForwardingHeaders forwardingHeaders;
+    private final HeaderFilter doNotProxy;
     private final long idleTimeoutMillis;
     private final long pingScheduleMillis;
     private final long routesKeepTimeMillis;
-    private final List<ProxyListener> proxyListeners;
+    private final ProxyListeners proxyListeners;
     private final DarkModeManager darkModeManager;
     private final List<String> supportedCrankerProtocols;
     private final ScheduledExecutorService executor;
     private final Function<MuRequest, String> clientIpProvider;
+    private final ConnectorLatencies connectorLatencies;
 
-    CrankerRouterImpl(IPValidator ipValidator, boolean discardClientForwardedHeaders, boolean sendLegacyForwardedHeaders,
-                      String viaValue, Set<String> doNotProxy, WebSocketFarm webSocketFarm,
+    CrankerRouterImpl(IPValidator ipValidator, ForwardingHeaders forwardingHeaders, HeaderFilter doNotProxy, WebSocketFarm webSocketFarm,
                       WebSocketFarmV3Holder webSocketFarmV3Holder, long idleTimeoutMillis, long pingScheduleMillis,
-                      long routesKeepTimeMillis, List<ProxyListener> proxyListeners, DarkModeManager darkModeManager,
-                      List<String> supportedCrankerProtocol, Function<MuRequest, String> clientIpProvider) {
-        this.discardClientForwardedHeaders = discardClientForwardedHeaders;
-        this.sendLegacyForwardedHeaders = sendLegacyForwardedHeaders;
-        this.viaValue = viaValue;
+                      long routesKeepTimeMillis, ProxyListeners proxyListeners, DarkModeManager darkModeManager,
+                      List<String> supportedCrankerProtocol, Function<MuRequest, String> clientIpProvider,
+                      ConnectorLatencies connectorLatencies) {
+        this.forwardingHeaders = forwardingHeaders;
         this.doNotProxy = doNotProxy;
         this.webSocketFarm = webSocketFarm;
         this.ipValidator = ipValidator;
         this.webSocketFarmV3Holder = webSocketFarmV3Holder;
+        this.dispatchPlanner = new DispatchPlanner(webSocketFarm, webSocketFarmV3Holder);
         this.idleTimeoutMillis = idleTimeoutMillis;
         this.pingScheduleMillis = pingScheduleMillis;
         this.routesKeepTimeMillis = routesKeepTimeMillis;
@@ -64,6 +64,7 @@ class CrankerRouterImpl implements CrankerRouter {
         this.supportedCrankerProtocols = supportedCrankerProtocol;
         this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "cranker-router-cleanup"));
         this.clientIpProvider = clientIpProvider;
+        this.connectorLatencies = connectorLatencies;
         if (routesKeepTimeMillis > 0) {
             this.executor.scheduleWithFixedDelay(this::cleanRoute, routesKeepTimeMillis, routesKeepTimeMillis, TimeUnit.MILLISECONDS);
         }
@@ -73,6 +74,7 @@ class CrankerRouterImpl implements CrankerRouter {
         try {
             webSocketFarm.cleanRoutes(routesKeepTimeMillis);
             webSocketFarmV3Holder.cleanRoutes(routesKeepTimeMillis);
+            connectorLatencies.cleanUp(routesKeepTimeMillis);
         } catch (Throwable throwable) {
             log.warn("Exception on clean up routes", throwable);
         }
@@ -85,7 +87,7 @@ class CrankerRouterImpl implements CrankerRouter {
             .withPingSentAfterNoWritesFor((int) pingScheduleMillis, TimeUnit.MILLISECONDS)
             .withWebSocketFactory((request, responseHeaders) -> {
                 validateIpAddress(ipValidator, request);
-                String version = validateAndGetCrankerProtocolVersion(this.supportedCrankerProtocols, request); // return "3.0" or "1.0"
+                String version = validateAndGetCrankerProtocolVersion(this.supportedCrankerProtocols, request); // return "3.1", "3.0" or "1.0"
                 return connectorRegisterToRouter(request, responseHeaders, version);
             });
         WebSocketHandlerBuilder deregisterHandler = webSocketHandler()
@@ -140,17 +142,18 @@ class CrankerRouterImpl implements CrankerRouter {
         String connectorInstanceID = request.query().get("connectorInstanceID", "unknown-" + request.remoteAddress());
         String clientIp = this.getClientIp(request);
 
-        if (VERSION_3.equals(version)) {
+        if (VERSION_3.equals(version) || VERSION_3_1.equals(version)) {
             final WebSocketFarmV3 webSocketFarmV3 = webSocketFarmV3Holder.getOrCreateWebSocketFarmV3(domain);
             RouterSocketV3 routerSocketV3 = new RouterSocketV3(route, componentName, webSocketFarmV3,
                 connectorInstanceID, proxyListeners,
-                discardClientForwardedHeaders, sendLegacyForwardedHeaders, viaValue, doNotProxy, clientIp);
+                forwardingHeaders, doNotProxy, clientIp,
+                VERSION_3_1.equals(version));
             routerSocketV3.setOnReadyForAction(() -> webSocketFarmV3.addWebSocket(route, routerSocketV3));
             return routerSocketV3;
         } else {
             responseHeaders.set("CrankerProtocol", version);
             RouterSocket routerSocket = new RouterSocket(route, componentName, webSocketFarm, connectorInstanceID, proxyListeners, clientIp);
-            routerSocket.setOnReadyForAction(() -> webSocketFarm.addWebSocketAsync(route, routerSocket));
+            routerSocket.setOnReadyForAction(() -> webSocketFarm.addWebSocket(route, routerSocket));
             return routerSocket;
         }
     }
@@ -226,14 +229,17 @@ class CrankerRouterImpl implements CrankerRouter {
 
     @Override
     public MuHandler createHttpHandler() {
-        return new CrankerMuHandler(webSocketFarm, webSocketFarmV3Holder, discardClientForwardedHeaders, sendLegacyForwardedHeaders, viaValue, doNotProxy, proxyListeners);
+        return new CrankerMuHandler(webSocketFarm, dispatchPlanner, forwardingHeaders, doNotProxy, proxyListeners);
     }
 
     @Override
     public RouterInfo collectInfo() {
         Set<DarkHost> darkHosts = webSocketFarm.getDarkHosts();
         List<ConnectorService> services = getConnectorServiceList(webSocketFarm.getSockets(), webSocketFarmV3Holder.getSocketMaps(), darkHosts);
-        return new RouterInfoImpl(services, darkHosts, webSocketFarm.getWaitingTasks());
+        FrameBufferPool framePool = webSocketFarmV3Holder.framePool();
+        return new RouterInfoImpl(services, darkHosts, webSocketFarm.getWaitingTasks(),
+            dispatchPlanner.plannedRequests(), dispatchPlanner.routeResolutions(),
+            framePool.allocated(), framePool.reused(), framePool.outstanding(), proxyListeners.completionsDropped());
     }
 
     @Override
@@ -241,6 +247,7 @@ class CrankerRouterImpl implements CrankerRouter {
         executor.shutdown();
         webSocketFarm.stop();
         webSocketFarmV3Holder.stop();
+        proxyListeners.close();
     }
 
     @Override
@@ -42,23 +42,31 @@ public interface DarkModeManager {
     Optional<DarkHost> findHost(InetAddress address);
 }
 
+/**
+ * Changing the dark hosts and passing them on to the V3 farms is one synchronized step, so that concurrent changes
+ * cannot leave the V3 farms with an older set of dark hosts than the V1 farm.
+ */
 class DarkModeManagerImpl implements DarkModeManager {
 
     private final WebSocketFarm webSocketFarm;
+    private final WebSocketFarmV3Holder webSocketFarmV3Holder;
 
-    DarkModeManagerImpl(WebSocketFarm webSocketFarm) {
+    DarkModeManagerImpl(WebSocketFarm webSocketFarm, WebSocketFarmV3Holder webSocketFarmV3Holder) {
         this.webSocketFarm = webSocketFarm;
+        this.webSocketFarmV3Holder = webSocketFarmV3Holder;
     }
 
     @Override
-    public void enableDarkMode(DarkHost host) {
+    public synchronized void enableDarkMode(DarkHost host) {
         webSocketFarm.enableDarkMode(host);
+        webSocketFarmV3Holder.updateDarkHosts(webSocketFarm.getDarkHosts());
     }
 
 
     @Override
-    public void disableDarkMode(DarkHost host) {
+    public synchronized void disableDarkMode(DarkHost host) {
         webSocketFarm.disableDarkMode(host);
+        webSocketFarmV3Holder.updateDarkHosts(webSocketFarm.getDarkHosts());
     }
 
 
@@ -0,0 +1,170 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which protocol farm and route a request is sent to.
+ * <p>The target is resolved at most once against each farm that could serve it (the V3 farm of the request's
+ * domain, the V3 farm of the any-domain, and the V1 farm), and both the specific-route and catch-all decisions are
+ * derived from those results. The chosen route key is handed to the farm so it is not resolved again.</p>
+ */
+class DispatchPlanner {
+
+    private static final String ANY_DOMAIN = "*";
+
+    private final WebSocketFarm webSocketFarm;
+    private final WebSocketFarmV3Holder webSocketFarmV3Holder;
+    private final LongAdder plannedRequests = new LongAdder();
+    private final LongAdder routeResolutions = new LongAdder();
+
+    DispatchPlanner(WebSocketFarm webSocketFarm, WebSocketFarmV3Holder webSocketFarmV3Holder) {
+        this.webSocketFarm = webSocketFarm;
+        this.webSocketFarmV3Holder = webSocketFarmV3Holder;
+    }
+
+    /**
+     * Plans the dispatch of a request. In order of priority, the request goes to:
+     * <ol>
+     *     <li>the V3 farm of the request's domain, if it has sockets for the route (including its catch-all route)</li>
+     *     <li>the any-domain V3 farm or the V1 farm, for a specific (non catch-all) route</li>
+     *     <li>the any-domain V3 farm or the V1 farm, for the catch-all route</li>
+     *     <li>the V1 farm, which will reply with an error if there are no sockets</li>
+     * </ol>
+     * <p>If both protocols can serve a request then one is picked at random, so that not all traffic moves to V3
+     * during a migration period. A V3 route can only serve requests if it has sockets whose host is not in dark
+     * mode.</p>
+     *
+     * @param domain the domain of the request
+     * @param target the full path of the request
+     * @return the plan, never null
+     */
+    DispatchPlan plan(String domain, String target) {
+        plannedRequests.increment();
+
+        final WebSocketFarmV3 domainFarm = webSocketFarmV3Holder.getWebSocketFarmV3(domain);
+        String domainResolved = null;
+        String domainRouteKey = null;
+        if (domainFarm != null) {
+            domainResolved = resolve(domainFarm, target);
+            domainRouteKey = CompiledRoutes.routeKey(domainResolved, true);
+            if (domainFarm.canHandle(domainRouteKey)) {
+                return DispatchPlan.v3(domainFarm, domainRouteKey);
+            }
+        }
+
+        final WebSocketFarmV3 anyDomainFarm = ANY_DOMAIN.equals(domain) ? domainFarm : webSocketFarmV3Holder.getWebSocketFarmV3(ANY_DOMAIN);
+        final String v3Resolved = anyDomainFarm == null ? null
+            : anyDomainFarm == domainFarm ? domainResolved : resolve(anyDomainFarm, target);
+        final String v1Resolved = resolve(webSocketFarm, target);
+
+        // Try specific routes first. In migration period from V1 to V3, this makes a specific route take higher
+        // priority than a catch-all route of the other protocol.
+        final String v3Specific = CompiledRoutes.routeKey(v3Resolved, false);
+        final String v1Specific = CompiledRoutes.routeKey(v1Resolved, false);
+        DispatchPlan plan = choose(anyDomainFarm, v3Specific, v1Specific);
+        if (plan != null) {
+            return plan;
+        }
+
+        // then the catch-all routes; a specific route that could not handle the request above still cannot
+        final String v3CatchAll = v3Specific == null ? CompiledRoutes.routeKey(v3Resolved, true) : null;
+        final String v1CatchAll = CompiledRoutes.routeKey(v1Resolved, true);
+        plan = choose(anyDomainFarm, v3CatchAll, v1Specific == null ? v1CatchAll : null);
+        if (plan != null) {
+            return plan;
+        }
+
+        // if V1 has no route either but every V3 socket of the route is in dark mode, the V3 farm replies that no
+        // connector is available rather than V1 replying that the route does not exist
+        if (!webSocketFarm.canHandle(v1CatchAll)) {
+            if (domainFarm != null && domainFarm.hasSockets(domainRouteKey)) {
+                return DispatchPlan.v3(domainFarm, domainRouteKey);
+            }
+            final String v3RouteKey = v3Specific != null ? v3Specific : CompiledRoutes.routeKey(v3Resolved, true);
+            if (anyDomainFarm != null && anyDomainFarm.hasSockets(v3RouteKey)) {
+                return DispatchPlan.v3(anyDomainFarm, v3RouteKey);
+            }
+        }
+
+        // default fallback to V1
+        return DispatchPlan.v1(v1CatchAll);
+    }
+
+    private DispatchPlan choose(WebSocketFarmV3 v3Farm, String v3RouteKey, String v1RouteKey) {
+        final boolean canHandleByV3 = v3Farm != null && v3Farm.canHandle(v3RouteKey);
+        final boolean canHandleByV1 = webSocketFarm.canHandle(v1RouteKey);
+        if (canHandleByV3 && canHandleByV1) {
+            // not loading all the traffic to V3 during the migration period
+            return ThreadLocalRandom.current().nextBoolean() ? DispatchPlan.v3(v3Farm, v3RouteKey) : DispatchPlan.v1(v1RouteKey);
+        } else if (canHandleByV3) {
+            return DispatchPlan.v3(v3Farm, v3RouteKey);
+        } else if (canHandleByV1) {
+            return DispatchPlan.v1(v1RouteKey);
+        }
+        return null;
+    }
+
+    private String resolve(WebSocketFarmV3 farm, String target) {
+        routeResolutions.increment();
+        return farm.resolveRoute(target);
+    }
+
+    private String resolve(WebSocketFarm farm, String target) {
+        routeResolutions.increment();
+        return farm.resolveRoute(target);
+    }
+
+    /**
+     * @return the number of requests that have been planned
+     */
+    long plannedRequests() {
+        return plannedRequests.sum();
+    }
+
+    /**
+     * @return the number of times a request target has been resolved to a route while planning
+     */
+    long routeResolutions() {
+        return routeResolutions.sum();
+    }
+
+    /**
+     * Where a request should be sent
+     */
+    static final class DispatchPlan {
+        private final WebSocketFarmV3 farmV3;
+        private final String routeKey;
+
+        private DispatchPlan(WebSocketFarmV3 farmV3, String routeKey) {
+            this.farmV3 = farmV3;
+            this.routeKey = routeKey;
+        }
+
+        static DispatchPlan v1(String routeKey) {
+            return new DispatchPlan(null, routeKey);
+        }
+
+        static DispatchPlan v3(WebSocketFarmV3 farmV3, String routeKey) {
+            return new DispatchPlan(farmV3, routeKey);
+        }
+
+        boolean isV3() {
+            return farmV3 != null;
+        }
+
+        /**
+         * @return the V3 farm to use, or null if the request should go to the V1 farm
+         */
+        WebSocketFarmV3 farmV3() {
+            return farmV3;
+        }
+
+        /**
+         * @return the route key in the chosen farm
+         */
+        String routeKey() {
+            return routeKey;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.Map;
+
+/**
+ * The flow control windows of V3 requests for each route, and how far the windows of one socket may grow, and how
+ * many response bytes may be queued to clients before the router stops pulling frames from a connector.
+ */
+final class FlowControlSettings {
+
+    /**
+     * The default number of bytes that the auto-tuned windows of one socket may grow beyond their initial sizes
+     */
+    static final long DEFAULT_SOCKET_BUDGET = 16 * 1024 * 1024;
+
+    /**
+     * The default number of response bytes of one stream that may be waiting to be written to its client
+     */
+    static final int DEFAULT_STREAM_CLIENT_QUEUE_LIMIT = 256 * 1024;
+
+    /**
+     * The default number of response bytes of all the streams of one socket that may be waiting to be written to clients
+     */
+    static final long DEFAULT_SOCKET_CLIENT_QUEUE_LIMIT = 4 * 1024 * 1024;
+
+    private final FlowControlWindow defaultWindow;
+    private final Map<String, FlowControlWindow> routeWindows;
+    private final long socketBudget;
+    private final int streamClientQueueLimit;
+    private final long socketClientQueueLimit;
+
+    FlowControlSettings(FlowControlWindow defaultWindow, Map<String, FlowControlWindow> routeWindows, long socketBudget,
+                        int streamClientQueueLimit, long socketClientQueueLimit) {
+        this.defaultWindow = defaultWindow;
+        this.routeWindows = Map.copyOf(routeWindows);
+        this.socketBudget = socketBudget;
+        this.streamClientQueueLimit = streamClientQueueLimit;
+        this.socketClientQueueLimit = socketClientQueueLimit;
+    }
+
+    FlowControlWindow windowFor(String route) {
+        return routeWindows.getOrDefault(route, defaultWindow);
+    }
+
+    long socketBudget() {
+        return socketBudget;
+    }
+
+    int streamClientQueueLimit() {
+        return streamClientQueueLimit;
+    }
+
+    long socketClientQueueLimit() {
+        return socketClientQueueLimit;
+    }
+}
@@ -0,0 +1,90 @@
+package com.hsbc.cranker.mucranker;
+
+/**
+ * The flow control window of requests sent to cranker protocol 3 connectors, which is how many bytes of a request
+ * body may be sent to a connector before it acknowledges them.
+ * <p>A single upload can go no faster than the window divided by the round trip time to the connector, so routes
+ * whose connectors are far away or on fast links may need a bigger window than the default of 64KB. Instead of
+ * choosing a size, the window can be {@link #autoTuned(int, int)}, in which case each request starts with a small
+ * window and grows it while it uses most of it on every round trip.</p>
+ * <p>Set this with {@link CrankerRouterBuilder#withV3FlowControlWindow(FlowControlWindow)} or per route with
+ * {@link CrankerRouterBuilder#withV3FlowControlWindow(String, FlowControlWindow)}.</p>
+ */
+public final class FlowControlWindow {
+
+    /**
+     * The default window, which is a fixed 64KB
+     */
+    public static final FlowControlWindow DEFAULT = fixed(64 * 1024);
+
+    private final int initialSize;
+    private final int maxSize;
+
+    private FlowControlWindow(int initialSize, int maxSize) {
+        this.initialSize = initialSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates a window that is always the same size
+     *
+     * @param sizeInBytes The number of unacknowledged bytes after which a request stops reading its body
+     * @return A new window
+     */
+    public static FlowControlWindow fixed(int sizeInBytes) {
+        if (sizeInBytes < 1024) {
+            throw new IllegalArgumentException("The window must be at least 1024 bytes");
+        }
+        return new FlowControlWindow(sizeInBytes, sizeInBytes);
+    }
+
+    /**
+     * <p>Creates a window that grows from the given size towards the bandwidth-delay product of the connection to the
+     * connector, which is estimated from how long acknowledgements take and how many bytes are acknowledged in that
+     * time.</p>
+     * <p>Windows only grow beyond their initial size within the budget of the socket, which is set with
+     * {@link CrankerRouterBuilder#withV3SocketWindowBudget(long)}, and the budget is returned once a request
+     * completes.</p>
+     *
+     * @param initialSizeInBytes The size of the window when a request starts
+     * @param maxSizeInBytes     The largest size the window of one request can grow to
+     * @return A new window
+     */
+    public static FlowControlWindow autoTuned(int initialSizeInBytes, int maxSizeInBytes) {
+        if (initialSizeInBytes < 1024) {
+            throw new IllegalArgumentException("The initial window must be at least 1024 bytes");
+        }
+        if (maxSizeInBytes < initialSizeInBytes) {
+            throw new IllegalArgumentException("The maximum window must not be smaller than the initial window");
+        }
+        return new FlowControlWindow(initialSizeInBytes, maxSizeInBytes);
+    }
+
+    /**
+     * @return The size of the window when a request starts
+     */
+    public int initialSize() {
+        return initialSize;
+    }
+
+    /**
+     * @return The largest size the window can grow to, which is the initial size for fixed windows
+     */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return True if the window grows to match the connection to the connector
+     */
+    public boolean isAutoTuned() {
+        return maxSize > initialSize;
+    }
+
+    @Override
+    public String toString() {
+        return isAutoTuned()
+            ? "FlowControlWindow{autoTuned, initialSize=" + initialSize + ", maxSize=" + maxSize + '}'
+            : "FlowControlWindow{fixed, size=" + initialSize + '}';
+    }
+}
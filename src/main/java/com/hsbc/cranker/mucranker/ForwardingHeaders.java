@@ -0,0 +1,86 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.ForwardedHeader;
+import io.muserver.HeaderNames;
+import io.muserver.MuRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates the <code>Via</code>, <code>Forwarded</code> and optionally <code>X-Forwarded-*</code> headers sent to
+ * targets.
+ * <p>This is thread safe.</p>
+ */
+final class ForwardingHeaders {
+    private static final Logger log = LoggerFactory.getLogger(ForwardingHeaders.class);
+
+    private static final String ipAddress;
+
+    static {
+        String ip;
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch (Exception e) {
+            ip = "unknown";
+            log.info("Could not find local address so using " + ip);
+        }
+        ipAddress = ip;
+    }
+
+    private final boolean discardClientForwardedHeaders;
+    private final boolean sendLegacyForwardedHeaders;
+    private final String viaValue;
+
+    /**
+     * @param discardClientForwardedHeaders if <code>true</code> then existing Forwarded headers on the client request will be discarded (normally false, unless you do not trust the upstream system)
+     * @param sendLegacyForwardedHeaders    if <code>true</code> then X-Forwarded-Proto/Host/For headers will also be added
+     * @param viaValue                      the name of this router in the Via header
+     */
+    ForwardingHeaders(boolean discardClientForwardedHeaders, boolean sendLegacyForwardedHeaders, String viaValue) {
+        this.discardClientForwardedHeaders = discardClientForwardedHeaders;
+        this.sendLegacyForwardedHeaders = sendLegacyForwardedHeaders;
+        this.viaValue = viaValue;
+    }
+
+    /**
+     * Adds the Via, Forwarded and optionally X-Forwarded-* headers for a client request to the target request.
+     *
+     * @param clientRequest  the received client request
+     * @param headersBuilder the target request to write the headers to
+     */
+    void appendTo(MuRequest clientRequest, HeadersBuilder headersBuilder) {
+        final String protocolAndName = clientRequest.connection().protocol() + " " + viaValue;
+        final List<String> clientVias = clientRequest.headers().getAll(HeaderNames.VIA);
+        headersBuilder.appendHeader("via", clientVias.isEmpty() ? protocolAndName : String.join(", ", clientVias) + ", " + protocolAndName);
+
+        final List<ForwardedHeader> forwardHeaders;
+        if (discardClientForwardedHeaders) {
+            forwardHeaders = Collections.emptyList();
+        } else {
+            forwardHeaders = clientRequest.headers().forwarded();
+            for (ForwardedHeader existing : forwardHeaders) {
+                headersBuilder.appendHeader("forwarded", existing.toString());
+            }
+        }
+        final ForwardedHeader newForwarded = new ForwardedHeader(ipAddress, clientRequest.remoteAddress(),
+            clientRequest.headers().get(HeaderNames.HOST), clientRequest.serverURI().getScheme(), null);
+        headersBuilder.appendHeader("forwarded", newForwarded.toString());
+
+        if (sendLegacyForwardedHeaders) {
+            final ForwardedHeader first = forwardHeaders.isEmpty() ? newForwarded : forwardHeaders.get(0);
+            if (first.proto() != null) {
+                headersBuilder.appendHeader(HeaderNames.X_FORWARDED_PROTO.toString(), first.proto());
+            }
+            if (first.host() != null) {
+                headersBuilder.appendHeader(HeaderNames.X_FORWARDED_HOST.toString(), first.host());
+            }
+            if (first.forValue() != null) {
+                headersBuilder.appendHeader(HeaderNames.X_FORWARDED_FOR.toString(), first.forValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The direct buffers that V3 frames are written into before being sent to connectors.
+ * <p>Small frames, such as <code>WINDOW_UPDATE</code>, <code>RST_STREAM</code> and end-of-stream frames, are
+ * recycled: once the websocket write of a frame completes, its buffer is kept for the next small frame rather than
+ * being returned to the allocator. Larger frames come from the allocator, which is normally pooled as well.</p>
+ * <p>Every buffer taken must be given back with {@link #release(ByteBuf)}. The pool only counts the buffers that
+ * are {@link #outstanding()}, without recording who took them, so a count that keeps growing shows that buffers leak
+ * but not where. Netty's leak detector can report where a leaked buffer was allocated.</p>
+ */
+final class FrameBufferPool {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameBufferPool.class);
+
+    /**
+     * The capacity of the recycled buffers, which is enough for any control frame with a short message
+     */
+    static final int SMALL_BUFFER_SIZE = 64;
+
+    private static final int MAX_SMALL_BUFFERS = 1024;
+
+    private final ByteBufAllocator allocator;
+    private final Queue<ByteBuf> smallBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger smallBufferCount = new AtomicInteger(0);
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private volatile boolean closed = false;
+
+    FrameBufferPool(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * @param capacity the size of the frame
+     * @return an empty buffer of the given capacity, which must be given back with {@link #release(ByteBuf)}
+     */
+    ByteBuf acquire(int capacity) {
+        return acquire(capacity, capacity);
+    }
+
+    /**
+     * @param initialCapacity the expected size of the frame
+     * @param maxCapacity     the largest size the frame can grow to
+     * @return an empty buffer, which must be given back with {@link #release(ByteBuf)}
+     */
+    ByteBuf acquire(int initialCapacity, int maxCapacity) {
+        if (maxCapacity <= SMALL_BUFFER_SIZE) {
+            final ByteBuf buffer = smallBuffers.poll();
+            if (buffer != null) {
+                smallBufferCount.decrementAndGet();
+                reused.increment();
+                return buffer;
+            }
+            allocated.increment();
+            return allocator.directBuffer(SMALL_BUFFER_SIZE, SMALL_BUFFER_SIZE);
+        }
+        allocated.increment();
+        return allocator.directBuffer(initialCapacity, maxCapacity);
+    }
+
+    /**
+     * Gives back a buffer once the frame in it has been written or discarded.
+     *
+     * @param buffer a buffer from this pool
+     */
+    void release(ByteBuf buffer) {
+        released.increment();
+        if (!closed && buffer.maxCapacity() == SMALL_BUFFER_SIZE && buffer.refCnt() == 1) {
+            if (smallBufferCount.incrementAndGet() <= MAX_SMALL_BUFFERS) {
+                buffer.clear();
+                smallBuffers.offer(buffer);
+                return;
+            }
+            smallBufferCount.decrementAndGet();
+        }
+        buffer.release();
+    }
+
+    /**
+     * @return the number of buffers that were newly allocated
+     */
+    long allocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return the number of buffers that were recycled from earlier frames
+     */
+    long reused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return the number of buffers that have been taken but not given back yet
+     */
+    long outstanding() {
+        return allocated.sum() + reused.sum() - released.sum();
+    }
+
+    /**
+     * Releases the recycled buffers, and warns about any buffer that was never given back.
+     */
+    void close() {
+        closed = true;
+        ByteBuf buffer;
+        while ((buffer = smallBuffers.poll()) != null) {
+            smallBufferCount.decrementAndGet();
+            buffer.release();
+        }
+        final long outstanding = outstanding();
+        if (outstanding > 0) {
+            log.warn("{} frame buffers have not been released, which may be frames still being written or a leak", outstanding);
+        }
+    }
+}
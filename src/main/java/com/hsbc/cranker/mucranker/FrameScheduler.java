@@ -0,0 +1,188 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.DoneCallback;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interleaves the data frames of the streams that share a V3 socket.
+ * <p>Each stream queues its frames in its own queue, and the socket writes one frame at a time, taking the next
+ * frame from each stream with queued frames in turn. A large upload therefore only delays a request on the same
+ * socket by one frame per turn, rather than by everything it has queued.</p>
+ * <p>Frames are written from whichever thread queues a frame or completes the previous write, so there is no
+ * dedicated thread.</p>
+ */
+class FrameScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameScheduler.class);
+
+    private static final int SENDING = 0;
+    private static final int RETURNED = 1;
+    private static final int COMPLETED = 2;
+
+    /**
+     * Writes a frame to the socket and releases it once the write completes.
+     */
+    interface FrameWriter {
+        void write(ByteBuf frame, DoneCallback doneCallback) throws Exception;
+    }
+
+    private final FrameWriter writer;
+    private final FrameBufferPool framePool;
+    private final Queue<Stream> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    FrameScheduler(FrameWriter writer, FrameBufferPool framePool) {
+        this.writer = writer;
+        this.framePool = framePool;
+    }
+
+    /**
+     * @return a new queue for the frames of one stream
+     */
+    Stream newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Queues a frame to be written after the frames already queued for the stream.
+     *
+     * @param stream       the stream of the frame
+     * @param frame        the frame, which is released once written or discarded
+     * @param doneCallback called once the frame has been written, or with an error if it was discarded
+     */
+    void enqueue(Stream stream, ByteBuf frame, DoneCallback doneCallback) {
+        final Frame queued = new Frame(frame, doneCallback);
+        if (stream.cancelled) {
+            queued.discard();
+            return;
+        }
+        stream.frames.offer(queued);
+        if (stream.cancelled) {
+            // raced with cancel(), which may not have seen this frame
+            stream.discardAll();
+            return;
+        }
+        makeReady(stream);
+        drain();
+    }
+
+    /**
+     * Discards the frames that have not been written yet for the stream, e.g. because it has been reset.
+     *
+     * @param stream the stream
+     */
+    void cancel(Stream stream) {
+        stream.cancelled = true;
+        stream.discardAll();
+    }
+
+    private void makeReady(Stream stream) {
+        if (stream.isReady.compareAndSet(false, true)) {
+            ready.offer(stream);
+        }
+    }
+
+    private Frame next() {
+        Stream stream;
+        while ((stream = ready.poll()) != null) {
+            final Frame frame = stream.frames.poll();
+            // put the stream back at the end of the line if it has more frames
+            stream.isReady.set(false);
+            if (!stream.frames.isEmpty()) {
+                makeReady(stream);
+            }
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private void drain() {
+        while (writing.compareAndSet(false, true)) {
+            final Frame frame = next();
+            if (frame == null) {
+                writing.set(false);
+                if (ready.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                writer.write(frame.buf, frame);
+            } catch (Throwable e) {
+                frame.complete(e);
+                frame.state.set(COMPLETED);
+            }
+            if (frame.state.compareAndSet(SENDING, RETURNED)) {
+                // the write completes later, and that completion writes the next frame
+                return;
+            }
+            // the write completed on this thread, so carry on here rather than recursing
+            writing.set(false);
+        }
+    }
+
+    /**
+     * The frames of one stream that are waiting to be written.
+     */
+    static final class Stream {
+        private final Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean isReady = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+
+        private void discardAll() {
+            Frame frame;
+            while ((frame = frames.poll()) != null) {
+                frame.discard();
+            }
+        }
+    }
+
+    private final class Frame implements DoneCallback {
+        private final ByteBuf buf;
+        private final DoneCallback doneCallback;
+        private final AtomicInteger state = new AtomicInteger(SENDING);
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private Frame(ByteBuf buf, DoneCallback doneCallback) {
+            this.buf = buf;
+            this.doneCallback = doneCallback;
+        }
+
+        @Override
+        public void onComplete(Throwable error) {
+            complete(error);
+            if (state.compareAndSet(SENDING, COMPLETED)) {
+                // completed before the write call returned, so drain() carries on with the next frame
+                return;
+            }
+            if (state.compareAndSet(RETURNED, COMPLETED)) {
+                writing.set(false);
+                drain();
+            }
+        }
+
+        private void complete(Throwable error) {
+            if (done.compareAndSet(false, true)) {
+                try {
+                    doneCallback.onComplete(error);
+                } catch (Throwable e) {
+                    log.warn("Exception after writing a frame", e);
+                }
+            }
+        }
+
+        private void discard() {
+            framePool.release(buf);
+            complete(new IllegalStateException("The stream was reset before the frame was sent"));
+        }
+    }
+}
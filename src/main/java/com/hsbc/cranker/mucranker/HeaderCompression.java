@@ -0,0 +1,372 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The header block compression of cranker protocol 3.1, which is a subset of HPACK (RFC 7541) without Huffman coding.
+ * <p>A header block is a sequence of fields, each of which is one of:</p>
+ * <ul>
+ *     <li><code>1xxxxxxx</code>: an indexed field, where the 7-bit prefix integer is the index of a table entry</li>
+ *     <li><code>01xxxxxx</code>: a literal field that is added to the dynamic table, where the 6-bit prefix integer
+ *     is the index of an entry with the same name, or 0 if the name follows as a string, and then the value</li>
+ *     <li><code>0001xxxx</code>: a literal field that must never be added to a table, with a 4-bit prefix name
+ *     index, for sensitive values such as <code>authorization</code></li>
+ * </ul>
+ * <p>Integers are encoded as in HPACK, and strings are a 7-bit prefix length (the top bit, which would mark Huffman
+ * coding, is always 0) followed by the UTF-8 bytes. Index 1 to 61 is the HPACK static table, and higher indexes
+ * are the dynamic table, newest first. Each direction of each socket has its own dynamic table of
+ * {@link #TABLE_SIZE} bytes, where an entry takes the bytes of its name and value plus 32.</p>
+ * <p>A request block starts with the <code>:method</code> and <code>:path</code> (including any query string)
+ * pseudo-headers, and a response block with the <code>:status</code> pseudo-header. As tables change with every
+ * block, the frames of one header block are never interleaved with the frames of another block in the same
+ * direction, and every block must be decoded, even if its stream has been reset.</p>
+ * <p>A block may also be sent in a header-and-data frame ({@link RouterSocketV3#MESSAGE_TYPE_HEADER_DATA}), where it
+ * is preceded by its 4-byte length and followed by the whole body of the stream.</p>
+ */
+final class HeaderCompression {
+
+    /**
+     * The size of the dynamic table of each direction of a socket
+     */
+    static final int TABLE_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+        {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+        {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+        {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+        {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+        {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+        {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+        {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+        {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+        {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+        {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+        {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\n' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    private HeaderCompression() {
+    }
+
+    /**
+     * Receives the fields of a decoded header block, in order.
+     */
+    interface HeaderSink {
+        void header(String name, String value);
+    }
+
+    /**
+     * Encodes the header blocks of one direction of a socket. Blocks must be encoded, and sent, one at a time in
+     * the order they are encoded.
+     */
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable();
+
+        /**
+         * Encodes a request head.
+         *
+         * @param out     the buffer to write the block to
+         * @param method  the request method
+         * @param path    the raw path, including the query string if there is one
+         * @param headers the headers to send
+         */
+        void encodeRequest(ByteBuf out, String method, String path, Iterable<Map.Entry<String, String>> headers) {
+            encodeField(out, ":method", method);
+            encodeField(out, ":path", path);
+            for (Map.Entry<String, String> header : headers) {
+                encodeField(out, header.getKey(), header.getValue());
+            }
+        }
+
+        void encodeField(ByteBuf out, String name, String value) {
+            final Integer staticField = STATIC_FIELDS.get(name + '\n' + value);
+            if (staticField != null) {
+                writeInteger(out, 0x80, 7, staticField);
+                return;
+            }
+            final int dynamicField = table.indexOf(name, value);
+            if (dynamicField > 0) {
+                writeInteger(out, 0x80, 7, STATIC_TABLE.length + dynamicField);
+                return;
+            }
+            int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+            if (nameIndex == 0) {
+                final int dynamicName = table.indexOfName(name);
+                if (dynamicName > 0) {
+                    nameIndex = STATIC_TABLE.length + dynamicName;
+                }
+            }
+            final boolean isSensitive = "authorization".equals(name) || "proxy-authorization".equals(name);
+            if (isSensitive) {
+                writeInteger(out, 0x10, 4, nameIndex);
+            } else {
+                writeInteger(out, 0x40, 6, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (!isSensitive) {
+                table.add(name, value);
+            }
+        }
+    }
+
+    /**
+     * A header block that cannot be decoded. The decoder's table may then differ from the encoder's, so no later
+     * block of the same socket can be decoded either.
+     */
+    static final class HeaderBlockException extends IllegalArgumentException {
+        HeaderBlockException(String message) {
+            super(message);
+        }
+
+        HeaderBlockException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one direction of a socket, in the order they are received. A block may be split
+     * over several frames, which are kept until the last one arrives.
+     */
+    static final class Decoder {
+        private final DynamicTable table = new DynamicTable();
+        private final int maxBlockSize;
+        private byte[] pending = new byte[0];
+        private int pendingLength = 0;
+        private boolean failed = false;
+
+        /**
+         * @param maxBlockSize the largest header block that is accepted, in bytes
+         */
+        Decoder(int maxBlockSize) {
+            this.maxBlockSize = maxBlockSize;
+        }
+
+        /**
+         * Decodes a header frame.
+         *
+         * @param fragment    the payload of the frame, which is fully consumed
+         * @param isHeaderEnd true if this is the last frame of the block
+         * @param sink        receives the fields of the block once it is complete, or null to only update the table
+         * @throws HeaderBlockException if the block is invalid or too large, or an earlier block was
+         */
+        void decode(ByteBuffer fragment, boolean isHeaderEnd, HeaderSink sink) {
+            if (failed) {
+                throw new HeaderBlockException("An earlier header block could not be decoded");
+            }
+            try {
+                decodeFragment(fragment, isHeaderEnd, sink);
+            } catch (HeaderBlockException e) {
+                failed = true;
+                throw e;
+            } catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                failed = true;
+                throw new HeaderBlockException("Invalid header block: " + e.getMessage(), e);
+            }
+        }
+
+        private void decodeFragment(ByteBuffer fragment, boolean isHeaderEnd, HeaderSink sink) {
+            if (pendingLength + fragment.remaining() > maxBlockSize) {
+                throw new HeaderBlockException("The header block is larger than " + maxBlockSize + " bytes");
+            }
+            if (!isHeaderEnd || pendingLength > 0) {
+                if (pendingLength + fragment.remaining() > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + fragment.remaining()));
+                }
+                final int length = fragment.remaining();
+                fragment.get(pending, pendingLength, length);
+                pendingLength += length;
+                if (!isHeaderEnd) {
+                    return;
+                }
+                fragment = ByteBuffer.wrap(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+            while (fragment.hasRemaining()) {
+                decodeField(fragment, sink);
+            }
+        }
+
+        private void decodeField(ByteBuffer in, HeaderSink sink) {
+            final int first = in.get(in.position()) & 0xff;
+            final String name;
+            final String value;
+            if ((first & 0x80) != 0) {
+                final String[] entry = entry(readInteger(in, 7));
+                name = entry[0];
+                value = entry[1];
+            } else if ((first & 0xc0) == 0x40) {
+                final int nameIndex = readInteger(in, 6);
+                name = nameIndex == 0 ? readString(in) : entry(nameIndex)[0];
+                value = readString(in);
+                table.add(name, value);
+            } else if ((first & 0xf0) == 0x10) {
+                final int nameIndex = readInteger(in, 4);
+                name = nameIndex == 0 ? readString(in) : entry(nameIndex)[0];
+                value = readString(in);
+            } else {
+                throw new IllegalArgumentException("Unsupported header field representation " + first);
+            }
+            if (sink != null) {
+                sink.header(name, value);
+            }
+        }
+
+        private String[] entry(int index) {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            final String[] entry = table.get(index - STATIC_TABLE.length);
+            if (entry == null) {
+                throw new IllegalArgumentException("Invalid header table index " + index);
+            }
+            return entry;
+        }
+    }
+
+    static void writeInteger(ByteBuf out, int pattern, int prefixBits, int value) {
+        final int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.writeByte(pattern | value);
+            return;
+        }
+        out.writeByte(pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readInteger(ByteBuffer in, int prefixBits) {
+        final int max = (1 << prefixBits) - 1;
+        int value = in.get() & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Header integer is too large");
+            }
+            b = in.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (value < 0) {
+            throw new IllegalArgumentException("Header integer is too large");
+        }
+        return value;
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        writeInteger(out, 0, 7, ByteBufUtil.utf8Bytes(value));
+        ByteBufUtil.writeUtf8(out, value);
+    }
+
+    private static String readString(ByteBuffer in) {
+        if ((in.get(in.position()) & 0x80) != 0) {
+            throw new IllegalArgumentException("Huffman coded header strings are not supported");
+        }
+        final int length = readInteger(in, 7);
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Header string is longer than the header block");
+        }
+        final String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * The entries added by one direction of a socket, newest first, evicting the oldest entries beyond the table size.
+     */
+    private static final class DynamicTable {
+        private final ArrayDeque<String[]> entries = new ArrayDeque<>();
+        private int size = 0;
+
+        void add(String name, String value) {
+            final int entrySize = entrySize(name, value);
+            while (!entries.isEmpty() && size + entrySize > TABLE_SIZE) {
+                final String[] evicted = entries.removeLast();
+                size -= entrySize(evicted[0], evicted[1]);
+            }
+            if (entrySize <= TABLE_SIZE) {
+                entries.addFirst(new String[]{name, value});
+                size += entrySize;
+            }
+        }
+
+        String[] get(int index) {
+            if (index < 1 || index > entries.size()) {
+                return null;
+            }
+            final Iterator<String[]> iterator = entries.iterator();
+            for (int i = 1; i < index; i++) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        int indexOf(String name, String value) {
+            int index = 1;
+            for (String[] entry : entries) {
+                if (entry[0].equals(name) && entry[1].equals(value)) {
+                    return index;
+                }
+                index++;
+            }
+            return 0;
+        }
+
+        int indexOfName(String name) {
+            int index = 1;
+            for (String[] entry : entries) {
+                if (entry[0].equals(name)) {
+                    return index;
+                }
+                index++;
+            }
+            return 0;
+        }
+
+        private static int entrySize(String name, String value) {
+            return ByteBufUtil.utf8Bytes(name) + ByteBufUtil.utf8Bytes(value) + ENTRY_OVERHEAD;
+        }
+    }
+}
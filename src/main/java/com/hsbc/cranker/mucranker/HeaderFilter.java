@@ -0,0 +1,140 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A set of header names that is compiled once and then matched case-insensitively against header names as they are
+ * received, without creating lower-case copies of them.
+ * <p>Names are kept in an open-addressing table, keyed by a hash of their lower-case ASCII characters, so a lookup
+ * hashes the name once and then compares it against the few names in its slot.</p>
+ * <p>This is immutable and thread safe.</p>
+ */
+final class HeaderFilter {
+
+    private final String[] table;
+    private final int mask;
+
+    private HeaderFilter(Set<String> names) {
+        int capacity = 8;
+        while (capacity < names.size() * 2) {
+            capacity <<= 1;
+        }
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+        for (String name : names) {
+            int slot = hash(name, 0, name.length()) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = name;
+        }
+    }
+
+    /**
+     * Compiles a filter.
+     *
+     * @param names the header names, in any case
+     * @return a filter that matches any of the names
+     */
+    static HeaderFilter compile(Collection<String> names) {
+        final Set<String> lowerCaseNames = new LinkedHashSet<>();
+        for (String name : names) {
+            lowerCaseNames.add(name.toLowerCase());
+        }
+        return new HeaderFilter(lowerCaseNames);
+    }
+
+    /**
+     * @param name a header name, in any case
+     * @return true if the name is in this filter
+     */
+    boolean contains(CharSequence name) {
+        return contains(name, 0, name.length());
+    }
+
+    /**
+     * @param chars the characters containing a header name, in any case
+     * @param from  the index of the first character of the name
+     * @param to    the index after the last character of the name
+     * @return true if the name is in this filter
+     */
+    boolean contains(CharSequence chars, int from, int to) {
+        int slot = hash(chars, from, to) & mask;
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if (equalsIgnoreCase(candidate, chars, from, to)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a header is listed in a <code>Connection</code> header, which makes it hop-by-hop for that
+     * message.
+     *
+     * @param connectionHeaderValue the comma-separated value of the <code>Connection</code> header, or null
+     * @param name                  a header name, in any case
+     * @return true if the name is one of the options in the value
+     */
+    static boolean isConnectionOption(String connectionHeaderValue, CharSequence name) {
+        if (connectionHeaderValue == null) {
+            return false;
+        }
+        final int length = connectionHeaderValue.length();
+        int start = 0;
+        while (start < length) {
+            int end = connectionHeaderValue.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            final int from = skipWhitespace(connectionHeaderValue, start, end);
+            final int to = trimWhitespace(connectionHeaderValue, from, end);
+            if (from < to && to - from == name.length() && equalsIgnoreCase(name, connectionHeaderValue, from, to)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static int hash(CharSequence chars, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + toLowerCase(chars.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return true if the lower-case name equals the characters, ignoring ASCII case
+     */
+    private static boolean equalsIgnoreCase(CharSequence lowerCaseName, CharSequence chars, int from, int to) {
+        if (lowerCaseName.length() != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (toLowerCase(lowerCaseName.charAt(i - from)) != toLowerCase(chars.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(String value, int from, int to) {
+        while (from < to && Character.isWhitespace(value.charAt(from))) from++;
+        return from;
+    }
+
+    private static int trimWhitespace(String value, int from, int to) {
+        while (to > from && Character.isWhitespace(value.charAt(to - 1))) to--;
+        return to;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
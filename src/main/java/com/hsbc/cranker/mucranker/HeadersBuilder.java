@@ -2,8 +2,6 @@ package com.hsbc.cranker.mucranker;
 
 import io.muserver.Headers;
 
-import java.util.Map;
-
 class HeadersBuilder {
 
     private final Headers headers = Headers.http1Headers();
@@ -21,15 +19,6 @@ class HeadersBuilder {
         }
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, String> header : headers) {
-            sb.append(header.getKey()).append(':').append(header.getValue()).append('\n');
-        }
-        return sb.toString();
-    }
-
     public Headers muHeaders() {
         return headers;
     }
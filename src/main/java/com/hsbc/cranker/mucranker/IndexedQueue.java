@@ -0,0 +1,207 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A thread-safe FIFO queue that returns a {@link Node} for each element added, so that the element can later be
+ * removed in constant time without searching the queue.
+ * <p>Removing a node just marks it as removed. Removed nodes are skipped and dropped when they reach the head of the
+ * queue, and once they outnumber the live elements they are purged in one pass, so every operation has an amortised
+ * constant cost.</p>
+ *
+ * @param <T> the element type
+ */
+final class IndexedQueue<T> implements Iterable<T> {
+
+    private static final int MIN_PURGE_THRESHOLD = 32;
+
+    private final ConcurrentLinkedQueue<Node<T>> nodes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    // nodes removed with Node.remove() that are still linked into nodes
+    private final AtomicInteger removedNodes = new AtomicInteger(0);
+    private final AtomicBoolean purging = new AtomicBoolean(false);
+
+    /**
+     * Adds an element to the tail of the queue.
+     *
+     * @param item the element
+     * @return the node of the element, which can be used to remove it
+     */
+    Node<T> offer(T item) {
+        final Node<T> node = new Node<>(this, item);
+        nodes.offer(node);
+        size.incrementAndGet();
+        return node;
+    }
+
+    /**
+     * @return the element at the head of the queue, or null if the queue is empty
+     */
+    T poll() {
+        Node<T> node;
+        while ((node = nodes.poll()) != null) {
+            if (node.claim(Node.POLLED)) {
+                size.decrementAndGet();
+                return node.item;
+            }
+            // only nodes removed with Node.remove() can already be claimed while still queued
+            unlinked(node);
+        }
+        return null;
+    }
+
+    private boolean remove(Node<T> node) {
+        // counted before the claim so that whoever unlinks the node never takes the count below zero
+        removedNodes.incrementAndGet();
+        if (!node.claim(Node.REMOVED)) {
+            removedNodes.decrementAndGet();
+            return false;
+        }
+        final int live = size.decrementAndGet();
+        if (removedNodes.get() > Math.max(MIN_PURGE_THRESHOLD, live) && purging.compareAndSet(false, true)) {
+            try {
+                nodes.removeIf(this::purgeable);
+            } finally {
+                purging.set(false);
+            }
+        }
+        return true;
+    }
+
+    private boolean purgeable(Node<T> candidate) {
+        if (!candidate.isClaimed()) {
+            return false;
+        }
+        unlinked(candidate);
+        return true;
+    }
+
+    /**
+     * Stops counting a removed node once it is being unlinked, which a poll and a purge can race to do.
+     */
+    private void unlinked(Node<T> node) {
+        if (Node.STATE.compareAndSet(node, Node.REMOVED, Node.UNLINKED)) {
+            removedNodes.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of removed nodes that are still linked into the queue
+     */
+    int removedNodes() {
+        return removedNodes.get();
+    }
+
+    /**
+     * @return the number of elements in the queue
+     */
+    int size() {
+        return Math.max(0, size.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return a copy of the elements currently in the queue, from head to tail
+     */
+    List<T> snapshot() {
+        final List<T> items = new ArrayList<>();
+        for (T item : this) {
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Iterates the elements currently in the queue, from head to tail. This is weakly consistent in the same way as
+     * {@link ConcurrentLinkedQueue#iterator()}.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<Node<T>> iterator = nodes.iterator();
+        return new Iterator<T>() {
+            private Node<T> next = advance();
+
+            private Node<T> advance() {
+                while (iterator.hasNext()) {
+                    final Node<T> candidate = iterator.next();
+                    if (!candidate.isClaimed()) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final T item = next.item;
+                next = advance();
+                return item;
+            }
+        };
+    }
+
+    /**
+     * An element's position in a queue. An element leaves the queue exactly once: either by being polled, or by
+     * {@link #remove()}.
+     *
+     * @param <T> the element type
+     */
+    static final class Node<T> {
+        private static final AtomicIntegerFieldUpdater<Node> STATE = AtomicIntegerFieldUpdater.newUpdater(Node.class, "state");
+        private static final int QUEUED = 0;
+        private static final int POLLED = 1;
+        private static final int REMOVED = 2;
+        private static final int UNLINKED = 3;
+
+        private final IndexedQueue<T> queue;
+        final T item;
+        private volatile int state = QUEUED;
+
+        private Node(IndexedQueue<T> queue, T item) {
+            this.queue = queue;
+            this.item = item;
+        }
+
+        private boolean claim(int newState) {
+            return STATE.compareAndSet(this, QUEUED, newState);
+        }
+
+        private boolean isClaimed() {
+            return state != QUEUED;
+        }
+
+        /**
+         * Removes the element from its queue in constant time.
+         *
+         * @return true if this call removed it; false if it had already been polled or removed
+         */
+        boolean remove() {
+            return queue.remove(this);
+        }
+
+        /**
+         * @return true if the element is in the given queue and has not been polled or removed
+         */
+        boolean isIn(IndexedQueue<T> queue) {
+            return this.queue == queue && !isClaimed();
+        }
+    }
+}
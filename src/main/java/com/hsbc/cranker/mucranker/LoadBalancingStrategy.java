@@ -0,0 +1,43 @@
+package com.hsbc.cranker.mucranker;
+
+/**
+ * How a request is assigned to one of the connector sockets registered for its route.
+ * <p>Connectors using cranker protocol 1 send one request at a time over each socket, so for them the
+ * {@link #ROUND_ROBIN} and {@link #LEAST_IN_FLIGHT} strategies both use the socket that has been idle the longest.
+ * The latency-aware strategies apply to both protocols.</p>
+ * <p>Set this with {@link CrankerRouterBuilder#withLoadBalancingStrategy(LoadBalancingStrategy)}.</p>
+ */
+public enum LoadBalancingStrategy {
+
+    /**
+     * Cycles through the sockets of a route in turn, regardless of how busy each one is.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Compares two sockets of the route (the next one in turn and a random other one) and uses the one with fewer
+     * requests in flight, or if they have the same number then the one with fewer bytes sent to the connector that
+     * have not been acknowledged yet.
+     * <p>This avoids sending new requests to a socket that is already busy with slow or long-lived requests such as
+     * server-sent events, without having to inspect every socket of the route.</p>
+     * <p>This is the default.</p>
+     */
+    LEAST_IN_FLIGHT,
+
+    /**
+     * Like {@link #LEAST_IN_FLIGHT}, but each socket is weighted by an exponentially weighted moving average of the
+     * time-to-first-byte of its connector instance, so that faster instances receive more requests. For cranker
+     * protocol 1 the faster of the two longest idle sockets (from different instances) is used.
+     * <p>Recent samples weigh more than older ones. An instance with no samples yet is assumed to be as fast as the
+     * median instance of the route, and an instance that has not served requests for a while has its estimate decay
+     * towards that median, so that it is tried again without attracting every request.</p>
+     */
+    EWMA_LATENCY,
+
+    /**
+     * Like {@link #EWMA_LATENCY}, but a response that is slower than the current average replaces the average
+     * immediately. A latency spike therefore moves traffic away from an instance straight away, and the instance
+     * only wins it back gradually as faster responses are recorded.
+     */
+    PEAK_EWMA_LATENCY
+}
@@ -0,0 +1,105 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue for many producers and many consumers, based on Dmitry Vyukov's array queue.
+ * <p>Each slot has a sequence number that says whether it is free for the producer of a given position or holds the
+ * element for the consumer of that position, so producers and consumers only contend on claiming a position, and an
+ * element is published to its consumer by the write of its slot's sequence.</p>
+ *
+ * @param <E> the element type
+ */
+final class MpmcRingBuffer<E> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * @param capacity the minimum number of elements held, which is rounded up to a power of 2
+     */
+    MpmcRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^30");
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @param element the element to add
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        long position = enqueuePosition.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+        elements[index] = element;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = dequeuePosition.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+        final E element = (E) elements[index];
+        elements[index] = null;
+        sequences.set(index, position + mask + 1);
+        return element;
+    }
+
+    /**
+     * @return the number of elements, which may already be out of date when there are concurrent changes
+     */
+    int size() {
+        final long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * @return the number of elements the queue can hold
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
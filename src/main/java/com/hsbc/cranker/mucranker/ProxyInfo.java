@@ -86,4 +86,13 @@ public interface ProxyInfo {
      * @return wait time in millis seconds to get a websocket (which is used for proxy requests)
      */
     long socketWaitInMillis();
+
+    /**
+     * If no connector socket could be acquired for the request, this gives the reason. This is set for the
+     * requests passed to {@link ProxyListener#onFailureToAcquireProxySocket(ProxyInfo)}.
+     * @return the reason a socket could not be acquired, or null if one was acquired
+     */
+    default AcquireFailureReason acquireFailureReason() {
+        return null;
+    }
 }
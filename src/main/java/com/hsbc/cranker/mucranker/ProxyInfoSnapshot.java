@@ -0,0 +1,118 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.MuRequest;
+import io.muserver.MuResponse;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The values of a {@link ProxyInfo} at the time the request completed, for listeners that are called later on
+ * another thread. The request and response are the same objects as in the original.
+ */
+final class ProxyInfoSnapshot implements ProxyInfo {
+
+    private final boolean isCatchAll;
+    private final String connectorInstanceID;
+    private final InetSocketAddress serviceAddress;
+    private final String route;
+    private final MuRequest request;
+    private final MuResponse response;
+    private final long durationMillis;
+    private final long bytesReceived;
+    private final long bytesSent;
+    private final long responseBodyFrames;
+    private final Throwable errorIfAny;
+    private final long socketWaitInMillis;
+    private final AcquireFailureReason acquireFailureReason;
+
+    private ProxyInfoSnapshot(ProxyInfo info) {
+        this.isCatchAll = info.isCatchAll();
+        this.connectorInstanceID = info.connectorInstanceID();
+        this.serviceAddress = info.serviceAddress();
+        this.route = info.route();
+        this.request = info.request();
+        this.response = info.response();
+        this.durationMillis = info.durationMillis();
+        this.bytesReceived = info.bytesReceived();
+        this.bytesSent = info.bytesSent();
+        this.responseBodyFrames = info.responseBodyFrames();
+        this.errorIfAny = info.errorIfAny();
+        this.socketWaitInMillis = info.socketWaitInMillis();
+        this.acquireFailureReason = info.acquireFailureReason();
+    }
+
+    static ProxyInfoSnapshot of(ProxyInfo info) {
+        return info instanceof ProxyInfoSnapshot ? (ProxyInfoSnapshot) info : new ProxyInfoSnapshot(info);
+    }
+
+    @Override
+    public boolean isCatchAll() {
+        return isCatchAll;
+    }
+
+    @Override
+    public String connectorInstanceID() {
+        return connectorInstanceID;
+    }
+
+    @Override
+    public InetSocketAddress serviceAddress() {
+        return serviceAddress;
+    }
+
+    @Override
+    public String route() {
+        return route;
+    }
+
+    @Override
+    public MuRequest request() {
+        return request;
+    }
+
+    @Override
+    public MuResponse response() {
+        return response;
+    }
+
+    @Override
+    public long durationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public long bytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long bytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long responseBodyFrames() {
+        return responseBodyFrames;
+    }
+
+    @Override
+    public Throwable errorIfAny() {
+        return errorIfAny;
+    }
+
+    @Override
+    public long socketWaitInMillis() {
+        return socketWaitInMillis;
+    }
+
+    @Override
+    public AcquireFailureReason acquireFailureReason() {
+        return acquireFailureReason;
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyInfoSnapshot{route=" + route + ", connectorInstanceID=" + connectorInstanceID
+            + ", durationMillis=" + durationMillis + ", bytesReceived=" + bytesReceived + ", bytesSent=" + bytesSent + "}";
+    }
+}
@@ -11,7 +11,8 @@ import java.util.List;
  * <p>Register listeners when constructor the router with the {@link CrankerRouterBuilder#withProxyListeners(List)}
  * method.</p>
  * <p><strong>Note:</strong> the default implementation of each method is a no-op operation, so you can just
- * override the events you are interested in.</p>
+ * override the events you are interested in. The router only raises an event on the listeners that override its
+ * method, so events that are not overridden, such as the body chunk events, have no cost.</p>
  */
 public interface ProxyListener {
 
@@ -59,6 +60,7 @@ public interface ProxyListener {
      *   <li>{@link ProxyInfo#connectorInstanceID()} will be null.</li>
      *   <li>{@link ProxyInfo#serviceAddress()} will be null.</li>
      *   <li>{@link ProxyInfo#errorIfAny()} will be null.</li>
+     *   <li>{@link ProxyInfo#acquireFailureReason()} gives the reason.</li>
      * </ul>
      *
      * @param proxyInfo Information about the request.
@@ -0,0 +1,157 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.Headers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The proxy listeners of a router, sorted once by the events they override into an array per event, so that an
+ * event that no listener overrides costs nothing, and in particular a request or response body chunk is not
+ * repositioned for listeners that ignore it.
+ * <p>A listener is only called for an event if its class overrides the {@link ProxyListener} method for it, and
+ * listeners are called in the order they were registered. Where events are raised together, each listener gets all
+ * of them before the next listener gets any, as it always has.</p>
+ * <p>Completion events can optionally be given to the {@link #complete} listeners on worker threads, see
+ * {@link CompletionDispatcher}.</p>
+ */
+final class ProxyListeners {
+    private static final Logger log = LoggerFactory.getLogger(ProxyListeners.class);
+
+    static final ProxyListeners NONE = new ProxyListeners(new ArrayList<>(), 0, 0, null);
+
+    final ProxyListener[] beforeProxyToTarget;
+    final ProxyListener[] afterProxyToTargetHeadersSent;
+    final ProxyListener[] beforeRequestBodyChunkSentToTarget;
+    final ProxyListener[] requestBodyChunkSentToTarget;
+    final ProxyListener[] requestBodySentToTarget;
+    final ProxyListener[] responseBodyChunkReceivedFromTarget;
+    final ProxyListener[] responseBodyChunkReceived;
+    final ProxyListener[] complete;
+    final ProxyListener[] failureToAcquireProxySocket;
+
+    /**
+     * Listeners of {@link ProxyListener#onAfterProxyToTargetHeadersSent(ProxyInfo, Headers)} or
+     * {@link ProxyListener#onRequestBodySentToTarget(ProxyInfo)}, for a request without a body
+     */
+    final ProxyListener[] requestWithoutBodySent;
+
+    /**
+     * Listeners of the request head, body chunk or body sent events, for a request sent in one frame
+     */
+    final ProxyListener[] requestSentInOneFrame;
+
+    /**
+     * Listeners of {@link ProxyListener#onBeforeRespondingToClient(ProxyInfo)} or
+     * {@link ProxyListener#onAfterTargetToProxyHeadersReceived(ProxyInfo, int, Headers)}
+     */
+    final ProxyListener[] responseHeadersReceived;
+
+    /**
+     * Calls the {@link #complete} listeners on worker threads, or null to call them on the completing thread
+     */
+    private final CompletionDispatcher completionDispatcher;
+
+    private ProxyListeners(List<ProxyListener> listeners, int completionQueueCapacity, int completionThreads, CompletionOverflowPolicy overflowPolicy) {
+        beforeProxyToTarget = overriding(listeners, "onBeforeProxyToTarget");
+        afterProxyToTargetHeadersSent = overriding(listeners, "onAfterProxyToTargetHeadersSent");
+        beforeRequestBodyChunkSentToTarget = overriding(listeners, "onBeforeRequestBodyChunkSentToTarget");
+        requestBodyChunkSentToTarget = overriding(listeners, "onRequestBodyChunkSentToTarget");
+        requestBodySentToTarget = overriding(listeners, "onRequestBodySentToTarget");
+        responseBodyChunkReceivedFromTarget = overriding(listeners, "onResponseBodyChunkReceivedFromTarget");
+        responseBodyChunkReceived = overriding(listeners, "onResponseBodyChunkReceived");
+        complete = overriding(listeners, "onComplete");
+        failureToAcquireProxySocket = overriding(listeners, "onFailureToAcquireProxySocket");
+        requestWithoutBodySent = overriding(listeners, "onAfterProxyToTargetHeadersSent", "onRequestBodySentToTarget");
+        requestSentInOneFrame = overriding(listeners, "onAfterProxyToTargetHeadersSent", "onRequestBodyChunkSentToTarget", "onRequestBodySentToTarget");
+        responseHeadersReceived = overriding(listeners, "onBeforeRespondingToClient", "onAfterTargetToProxyHeadersReceived");
+        completionDispatcher = completionQueueCapacity > 0 && complete.length > 0
+            ? new CompletionDispatcher(complete, completionQueueCapacity, completionThreads, overflowPolicy) : null;
+    }
+
+    /**
+     * @param listeners the listeners, in the order they are to be called
+     * @return the listeners sorted by the events they override
+     */
+    static ProxyListeners of(List<ProxyListener> listeners) {
+        return of(listeners, 0, 0, null);
+    }
+
+    /**
+     * @param listeners               the listeners, in the order they are to be called
+     * @param completionQueueCapacity the number of completion events that can wait for worker threads, or 0 to
+     *                                call the completion listeners on the thread that completed the request
+     * @param completionThreads       the number of worker threads for completion events
+     * @param overflowPolicy          what to do with a completion event when the queue is full
+     * @return the listeners sorted by the events they override
+     */
+    static ProxyListeners of(List<ProxyListener> listeners, int completionQueueCapacity, int completionThreads, CompletionOverflowPolicy overflowPolicy) {
+        return listeners.isEmpty() ? NONE : new ProxyListeners(new ArrayList<>(listeners), completionQueueCapacity, completionThreads, overflowPolicy);
+    }
+
+    /**
+     * Calls the {@link #complete} listeners, either now or on a worker thread with a copy of the info.
+     *
+     * @param info the completed request
+     */
+    void raiseComplete(ProxyInfo info) {
+        if (completionDispatcher != null) {
+            completionDispatcher.publish(info);
+            return;
+        }
+        for (ProxyListener completionListener : complete) {
+            try {
+                completionListener.onComplete(info);
+            } catch (Exception e) {
+                log.warn("Error thrown by " + completionListener, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of completion events not given to the listeners because the queue of events waiting for
+     * worker threads was full
+     */
+    long completionsDropped() {
+        return completionDispatcher == null ? 0 : completionDispatcher.dropped();
+    }
+
+    /**
+     * Stops any worker threads once they have delivered the queued completion events.
+     */
+    void close() {
+        if (completionDispatcher != null) {
+            completionDispatcher.close();
+        }
+    }
+
+    private static ProxyListener[] overriding(List<ProxyListener> listeners, String... methodNames) {
+        final List<ProxyListener> matching = new ArrayList<>();
+        for (ProxyListener listener : listeners) {
+            for (String methodName : methodNames) {
+                if (overrides(listener, methodName)) {
+                    matching.add(listener);
+                    break;
+                }
+            }
+        }
+        return matching.toArray(new ProxyListener[0]);
+    }
+
+    private static boolean overrides(ProxyListener listener, String methodName) {
+        for (Method method : ProxyListener.class.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                try {
+                    return listener.getClass().getMethod(methodName, method.getParameterTypes()).getDeclaringClass() != ProxyListener.class;
+                } catch (NoSuchMethodException | SecurityException e) {
+                    // it cannot be checked, so it is called just in case
+                    return true;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No ProxyListener method " + methodName);
+    }
+}
@@ -0,0 +1,276 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.Headers;
+import io.muserver.MuRequest;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the request line and headers of a V3 request as UTF-8, directly into header frames.
+ * <p>Frames are taken from the frame buffer pool and are at most the configured maximum frame size, including the
+ * 6-byte frame header. When the head does not fit in one frame it is split between characters, so a multi-byte
+ * character is never split across frames. Only the last frame has the header-end flag set.</p>
+ */
+final class RequestHeadEncoder {
+
+    static final int FRAME_HEADER_LENGTH = 6;
+
+    /**
+     * The default maximum size of a V3 frame in bytes, including the frame header
+     */
+    static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024;
+
+    private final FrameBufferPool framePool;
+    private final int maxFrameSize;
+
+    RequestHeadEncoder(FrameBufferPool framePool, int maxFrameSize) {
+        this.framePool = framePool;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Encodes the head of a request. The caller owns the returned buffers and must release them to the frame pool.
+     *
+     * @param requestId   the stream ID of the request
+     * @param isStreamEnd true if the request has no body
+     * @param request     the client request, for the request line
+     * @param headers     the headers to send to the target
+     * @return the frames, in the order they must be sent
+     */
+    List<ByteBuf> encode(int requestId, boolean isStreamEnd, MuRequest request, Headers headers) {
+        return encode(requestId, isStreamEnd, request.method().name(), request.uri().getRawPath(), request.uri().getRawQuery(), headers);
+    }
+
+    List<ByteBuf> encode(int requestId, boolean isStreamEnd, String method, String rawPath, String rawQuery,
+                         Iterable<Map.Entry<String, String>> headers) {
+        final Frames frames = new Frames(requestId, isStreamEnd, estimateLength(method, rawPath, rawQuery, headers));
+        try {
+            frames.write(method);
+            frames.write(' ');
+            frames.write(rawPath);
+            if (rawQuery != null) {
+                frames.write('?');
+                frames.write(rawQuery);
+            }
+            frames.write(" HTTP/1.1\n");
+            for (Map.Entry<String, String> header : headers) {
+                frames.write(header.getKey());
+                frames.write(':');
+                frames.write(header.getValue());
+                frames.write('\n');
+            }
+            frames.write('\n');
+            return frames.finish();
+        } catch (RuntimeException e) {
+            frames.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the head of a request as a cranker protocol 3.1 compressed header block. The caller owns the returned
+     * buffers and must release them to the frame pool, and must send them before encoding the next head with the
+     * same encoder.
+     *
+     * @param requestId   the stream ID of the request
+     * @param isStreamEnd true if the request has no body
+     * @param request     the client request, for the method and path
+     * @param headers     the headers to send to the target
+     * @param encoder     the encoder of the socket the request is sent on
+     * @return the frames, in the order they must be sent
+     */
+    List<ByteBuf> encodeCompressed(int requestId, boolean isStreamEnd, MuRequest request, Headers headers, HeaderCompression.Encoder encoder) {
+        final String rawQuery = request.uri().getRawQuery();
+        final String path = rawQuery == null ? request.uri().getRawPath() : request.uri().getRawPath() + '?' + rawQuery;
+        return encodeCompressed(requestId, isStreamEnd, request.method().name(), path, headers, encoder);
+    }
+
+    List<ByteBuf> encodeCompressed(int requestId, boolean isStreamEnd, String method, String path,
+                                   Iterable<Map.Entry<String, String>> headers, HeaderCompression.Encoder encoder) {
+        // the block is written after the header of the first frame, and only copied into more frames if it is too big
+        final ByteBuf block = framePool.acquire(Math.min(maxFrameSize, 256), Integer.MAX_VALUE);
+        try {
+            block.writeByte(RouterSocketV3.MESSAGE_TYPE_HEADER)
+                .writeByte(flags(isStreamEnd, true))
+                .writeInt(requestId);
+            encoder.encodeRequest(block, method, path, headers);
+        } catch (RuntimeException e) {
+            framePool.release(block);
+            throw e;
+        }
+        if (block.readableBytes() <= maxFrameSize) {
+            return List.of(block);
+        }
+        return split(block, FRAME_HEADER_LENGTH, requestId, isStreamEnd);
+    }
+
+    /**
+     * Encodes a complete request with a small body as a single cranker protocol 3.1 header-and-data frame. If the
+     * head and body together are bigger than the maximum frame size, the head is returned as header frames instead,
+     * without the stream end flag, and the caller must send the body as data frames followed by the end of the stream.
+     * Either way the caller must send the frames before encoding the next head with the same encoder.
+     *
+     * @param requestId the stream ID of the request
+     * @param request   the client request, for the method and path
+     * @param headers   the headers to send to the target
+     * @param body      the whole request body, which is not consumed
+     * @param encoder   the encoder of the socket the request is sent on
+     * @return the frames, in the order they must be sent
+     */
+    List<ByteBuf> encodeSingleFrame(int requestId, MuRequest request, Headers headers, ByteBuf body, HeaderCompression.Encoder encoder) {
+        final String rawQuery = request.uri().getRawQuery();
+        final String path = rawQuery == null ? request.uri().getRawPath() : request.uri().getRawPath() + '?' + rawQuery;
+        return encodeSingleFrame(requestId, request.method().name(), path, headers, body, encoder);
+    }
+
+    List<ByteBuf> encodeSingleFrame(int requestId, String method, String path, Iterable<Map.Entry<String, String>> headers,
+                                    ByteBuf body, HeaderCompression.Encoder encoder) {
+        final ByteBuf frame = framePool.acquire(Math.min(maxFrameSize, 256 + body.readableBytes()), Integer.MAX_VALUE);
+        try {
+            frame.writeByte(RouterSocketV3.MESSAGE_TYPE_HEADER_DATA)
+                .writeByte(flags(true, true))
+                .writeInt(requestId)
+                .writeInt(0); // the length of the header block, set below
+            encoder.encodeRequest(frame, method, path, headers);
+        } catch (RuntimeException e) {
+            framePool.release(frame);
+            throw e;
+        }
+        final int blockStart = FRAME_HEADER_LENGTH + 4;
+        if (frame.readableBytes() + body.readableBytes() <= maxFrameSize) {
+            frame.setInt(FRAME_HEADER_LENGTH, frame.writerIndex() - blockStart);
+            frame.writeBytes(body, body.readerIndex(), body.readableBytes());
+            return List.of(frame);
+        }
+        // the table has already been updated, so the block is still sent, just as ordinary header frames
+        return split(frame, blockStart, requestId, false);
+    }
+
+    /**
+     * Copies a header block into header frames of at most the maximum frame size, and releases the buffer it was in.
+     */
+    private List<ByteBuf> split(ByteBuf block, int blockStart, int requestId, boolean isStreamEnd) {
+        final List<ByteBuf> frames = new ArrayList<>();
+        try {
+            final int maxPayload = maxFrameSize - FRAME_HEADER_LENGTH;
+            block.readerIndex(blockStart);
+            while (block.isReadable()) {
+                final int length = Math.min(maxPayload, block.readableBytes());
+                final ByteBuf frame = framePool.acquire(FRAME_HEADER_LENGTH + length);
+                frames.add(frame);
+                frame.writeByte(RouterSocketV3.MESSAGE_TYPE_HEADER)
+                    .writeByte(flags(isStreamEnd, length == block.readableBytes()))
+                    .writeInt(requestId)
+                    .writeBytes(block, length);
+            }
+            return frames;
+        } catch (RuntimeException e) {
+            for (ByteBuf frame : frames) {
+                framePool.release(frame);
+            }
+            throw e;
+        } finally {
+            framePool.release(block);
+        }
+    }
+
+    private static int flags(boolean isStreamEnd, boolean isHeaderEnd) {
+        int flags = 0;
+        if (isStreamEnd) flags = flags | 1; // first bit 00000001
+        if (isHeaderEnd) flags = flags | 4; // third bit 00000100
+        return flags;
+    }
+
+    private static int estimateLength(String method, String rawPath, String rawQuery, Iterable<Map.Entry<String, String>> headers) {
+        int length = method.length() + rawPath.length() + 11;
+        if (rawQuery != null) {
+            length += rawQuery.length() + 1;
+        }
+        for (Map.Entry<String, String> header : headers) {
+            length += header.getKey().length() + header.getValue().length() + 2;
+        }
+        return length + 1;
+    }
+
+    private final class Frames {
+        private final int requestId;
+        private final boolean isStreamEnd;
+        private final List<ByteBuf> frames = new ArrayList<>(1);
+        private int remainingEstimate;
+        private ByteBuf current;
+
+        private Frames(int requestId, boolean isStreamEnd, int estimatedLength) {
+            this.requestId = requestId;
+            this.isStreamEnd = isStreamEnd;
+            this.remainingEstimate = estimatedLength;
+            newFrame();
+        }
+
+        private void newFrame() {
+            // ASCII heads are sized exactly; the buffer grows up to the maximum frame size for other characters
+            final int initialCapacity = Math.min(maxFrameSize, FRAME_HEADER_LENGTH + Math.max(remainingEstimate, 16));
+            current = framePool.acquire(initialCapacity, maxFrameSize);
+            frames.add(current);
+            current.writeByte(RouterSocketV3.MESSAGE_TYPE_HEADER) // 1 byte
+                .writeByte(flags(isStreamEnd, false)) // 1 byte, the last frame is updated in finish()
+                .writeInt(requestId); // 4 byte
+        }
+
+        private void ensureSpace(int bytes) {
+            if (current.writerIndex() + bytes > maxFrameSize) {
+                remainingEstimate -= current.writerIndex() - FRAME_HEADER_LENGTH;
+                newFrame();
+            }
+        }
+
+        void write(char c) {
+            ensureSpace(1);
+            current.writeByte(c);
+        }
+
+        void write(String value) {
+            final int length = value.length();
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    ensureSpace(1);
+                    current.writeByte(c);
+                } else if (c < 0x800) {
+                    ensureSpace(2);
+                    current.writeByte(0xc0 | (c >> 6));
+                    current.writeByte(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    ensureSpace(4);
+                    current.writeByte(0xf0 | (codePoint >> 18));
+                    current.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                    current.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                    current.writeByte(0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // an unpaired surrogate is replaced, as String.getBytes does
+                    ensureSpace(1);
+                    current.writeByte('?');
+                } else {
+                    ensureSpace(3);
+                    current.writeByte(0xe0 | (c >> 12));
+                    current.writeByte(0x80 | ((c >> 6) & 0x3f));
+                    current.writeByte(0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        List<ByteBuf> finish() {
+            current.setByte(1, flags(isStreamEnd, true));
+            return frames;
+        }
+
+        void release() {
+            for (ByteBuf frame : frames) {
+                framePool.release(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.hsbc.cranker.mucranker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses the response head sent by a V3 connector, i.e. the status line followed by one <code>name:value</code>
+ * header per line, directly from the bytes of the header frames.
+ * <p>Lines are parsed as soon as they are complete, so a frame is never decoded to a string as a whole. Header names
+ * are matched case-insensitively against a table of known headers, which gives their lower-case name without
+ * creating a string, and hop-by-hop headers are skipped without reading their values. Only a line that is split
+ * across two frames is copied, into a buffer that is allocated the first time a line is split.</p>
+ * <p>A head that arrives in one frame is parsed by a parser that the socket reuses with {@link #reset()}, so its
+ * arrays are only allocated once per socket.</p>
+ * <p>For cranker protocol 3.1 the head is decoded from a compressed header block instead, and the decoded fields
+ * are given to {@link #header(String, String)}.</p>
+ * <p>This is not thread safe; the frames of a stream are received one at a time.</p>
+ */
+final class ResponseHeadParser implements HeaderCompression.HeaderSink {
+
+    private static final int MAX_KNOWN_LENGTH = 64;
+
+    /**
+     * The known header names by length, including all the headers that are not sent back to the client.
+     */
+    private static final KnownHeader[][] KNOWN_BY_LENGTH = new KnownHeader[MAX_KNOWN_LENGTH + 1][];
+
+    private static final HeaderFilter NOT_FORWARDED;
+
+    static {
+        final List<KnownHeader> known = new ArrayList<>();
+        final Set<String> notForwarded = new HashSet<>(CrankerMuHandler.HOP_BY_HOP);
+        notForwarded.addAll(RouterSocketV3.RESPONSE_HEADERS_TO_NOT_SEND_BACK);
+        NOT_FORWARDED = HeaderFilter.compile(notForwarded);
+        for (String name : notForwarded) {
+            known.add(new KnownHeader(name, false));
+        }
+        for (String name : Arrays.asList("accept-ranges", "access-control-allow-credentials",
+            "access-control-allow-headers", "access-control-allow-methods", "access-control-allow-origin",
+            "access-control-expose-headers", "access-control-max-age", "age", "allow", "cache-control",
+            "content-disposition", "content-encoding", "content-language", "content-length", "content-location",
+            "content-range", "content-security-policy", "content-type", "date", "etag", "expires", "last-modified",
+            "link", "location", "pragma", "referrer-policy", "retry-after", "set-cookie", "strict-transport-security",
+            "vary", "via", "www-authenticate", "x-content-type-options", "x-frame-options", "x-xss-protection")) {
+            known.add(new KnownHeader(name, true));
+        }
+        for (int length = 0; length <= MAX_KNOWN_LENGTH; length++) {
+            final int len = length;
+            KNOWN_BY_LENGTH[length] = known.stream().filter(k -> k.bytes.length == len).toArray(KnownHeader[]::new);
+        }
+    }
+
+    private static final KnownHeader CONNECTION = new KnownHeader("connection", false);
+    private static final String[] NO_STRINGS = new String[0];
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+    private static final int INVALID_STATUS = -2;
+
+    /**
+     * The default size in bytes of the largest response head accepted from a connector
+     */
+    static final int DEFAULT_MAX_HEAD_SIZE = 64 * 1024;
+
+    private int status = -1;
+    private String[] names = NO_STRINGS;
+    private String[] values = NO_STRINGS;
+    private int headerCount = 0;
+    private String connection;
+    private long byteCount = 0;
+
+    // the start of a line that is split across frames, and a view of it for parsing once it is complete
+    private byte[] pending = NO_BYTES;
+    private int pendingLength = 0;
+    private ByteBuffer pendingView;
+    private byte[] scratch = NO_BYTES;
+
+    /**
+     * Clears the parsed head so that this parser can be used for another one.
+     *
+     * @return this parser
+     */
+    ResponseHeadParser reset() {
+        Arrays.fill(names, 0, headerCount, null);
+        Arrays.fill(values, 0, headerCount, null);
+        status = -1;
+        headerCount = 0;
+        connection = null;
+        byteCount = 0;
+        pendingLength = 0;
+        if (pending.length > MAX_RETAINED_BUFFER) {
+            pending = NO_BYTES;
+            pendingView = null;
+        }
+        if (scratch.length > MAX_RETAINED_BUFFER) {
+            scratch = NO_BYTES;
+        }
+        return this;
+    }
+
+    /**
+     * Parses the complete lines in the buffer, and keeps any incomplete line at the end until more is fed. The
+     * buffer is fully consumed.
+     *
+     * @param buffer the payload of a header frame
+     */
+    void feed(ByteBuffer buffer) {
+        final int start = buffer.position();
+        final int end = buffer.limit();
+        byteCount += end - start;
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                if (pendingLength > 0) {
+                    appendPending(buffer, lineStart, i);
+                    parseLine(pendingView, 0, pendingLength);
+                    pendingLength = 0;
+                } else {
+                    parseLine(buffer, lineStart, i);
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < end) {
+            appendPending(buffer, lineStart, end);
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Adds a field decoded from a compressed header block.
+     *
+     * @param name  the name of the field, which is <code>:status</code> for the status
+     * @param value the value of the field
+     */
+    @Override
+    public void header(String name, String value) {
+        if (":status".equals(name)) {
+            // an invalid status is reported by finish(), so that the rest of the block still updates the table
+            status = parseStatus(value);
+            return;
+        }
+        if (name.startsWith(":")) {
+            return;
+        }
+        if (NOT_FORWARDED.contains(name)) {
+            if (CONNECTION.name.equalsIgnoreCase(name)) {
+                addConnection(value);
+            }
+            return;
+        }
+        add(name.toLowerCase(), value);
+    }
+
+    /**
+     * Counts the bytes of a compressed header frame.
+     *
+     * @param bytes the payload length of the frame
+     */
+    void countBytes(int bytes) {
+        byteCount += bytes;
+    }
+
+    /**
+     * Parses the last line if it was not terminated by a new line.
+     */
+    void finish() {
+        if (pendingLength > 0) {
+            parseLine(pendingView, 0, pendingLength);
+            pendingLength = 0;
+        }
+        if (status == INVALID_STATUS) {
+            throw new IllegalArgumentException("Invalid :status in the response head");
+        }
+        if (status < 0) {
+            throw new IllegalArgumentException("No status line in the response head");
+        }
+    }
+
+    /**
+     * @return the response status
+     */
+    int status() {
+        return status;
+    }
+
+    /**
+     * @return the number of headers to send to the client
+     */
+    int headerCount() {
+        return headerCount;
+    }
+
+    /**
+     * @param index the index of the header, in the order received
+     * @return the lower-case name of the header
+     */
+    String name(int index) {
+        return names[index];
+    }
+
+    /**
+     * @param index the index of the header, in the order received
+     * @return the value of the header, exactly as received after the colon
+     */
+    String value(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return the value of the <code>Connection</code> header, which names more headers not to send back to the
+     * client, or null if there was none
+     */
+    String connection() {
+        return connection;
+    }
+
+    /**
+     * @return the number of bytes fed to this parser
+     */
+    long byteCount() {
+        return byteCount;
+    }
+
+    private void appendPending(ByteBuffer buffer, int from, int to) {
+        final int length = to - from;
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(Math.max(pending.length * 2, 256), pendingLength + length));
+            pendingView = ByteBuffer.wrap(pending);
+        }
+        copy(buffer, from, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void parseLine(ByteBuffer buffer, int from, int to) {
+        if (status < 0) {
+            status = parseStatus(buffer, from, to);
+            return;
+        }
+        int colon = -1;
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= from) {
+            return;
+        }
+        final String name = headerName(buffer, from, colon);
+        if (name == null) {
+            if (colon - from == CONNECTION.bytes.length && CONNECTION.matches(buffer, from)) {
+                addConnection(string(buffer, colon + 1, to));
+            }
+            return;
+        }
+        add(name, string(buffer, colon + 1, to));
+    }
+
+    private void add(String name, String value) {
+        if (headerCount == names.length) {
+            names = Arrays.copyOf(names, Math.max(16, headerCount * 2));
+            values = Arrays.copyOf(values, Math.max(16, headerCount * 2));
+        }
+        names[headerCount] = name;
+        values[headerCount] = value;
+        headerCount++;
+    }
+
+    private void addConnection(String value) {
+        connection = connection == null ? value : connection + "," + value;
+    }
+
+    private static int parseStatus(String value) {
+        if (value.length() != 3) {
+            return INVALID_STATUS;
+        }
+        int status = 0;
+        for (int i = 0; i < 3; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID_STATUS;
+            }
+            status = status * 10 + (c - '0');
+        }
+        return status;
+    }
+
+    private static int parseStatus(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i < to && buffer.get(i) != ' ') i++;
+        i++;
+        int status = 0;
+        int digits = 0;
+        for (; i < to; i++) {
+            final byte b = buffer.get(i);
+            if (b == ' ') break;
+            if (b < '0' || b > '9') {
+                throw new NumberFormatException("Invalid status in response line");
+            }
+            status = status * 10 + (b - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("No status in response line");
+        }
+        return status;
+    }
+
+    /**
+     * @return the lower-case name, or null if the header is not sent back to the client
+     */
+    private String headerName(ByteBuffer buffer, int from, int to) {
+        final int length = to - from;
+        if (length <= MAX_KNOWN_LENGTH) {
+            for (KnownHeader known : KNOWN_BY_LENGTH[length]) {
+                if (known.matches(buffer, from)) {
+                    return known.forwarded ? known.name : null;
+                }
+            }
+        }
+        final byte[] bytes = scratch(length);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = toLowerCase(buffer.get(from + i));
+        }
+        // every header that is not sent back is in the table, so an unknown header is always sent back
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String string(ByteBuffer buffer, int from, int to) {
+        final int length = to - from;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = scratch(length);
+        copy(buffer, from, bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void copy(ByteBuffer buffer, int from, byte[] dest, int offset, int length) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + from, dest, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest[offset + i] = buffer.get(from + i);
+            }
+        }
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(Math.max(scratch.length * 2, 256), length)];
+        }
+        return scratch;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static final class KnownHeader {
+        private final String name;
+        private final byte[] bytes;
+        private final boolean forwarded;
+
+        private KnownHeader(String name, boolean forwarded) {
+            this.name = name;
+            this.bytes = name.getBytes(StandardCharsets.US_ASCII);
+            this.forwarded = forwarded;
+        }
+
+        private boolean matches(ByteBuffer buffer, int from) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (toLowerCase(buffer.get(from + i)) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
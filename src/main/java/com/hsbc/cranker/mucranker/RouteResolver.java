@@ -4,6 +4,9 @@ import java.util.Set;
 
 /**
  * Algorithm for resolving route, which will decide which connector socket to be used.
+ * <p>The default implementation and {@link LongestFirstRouteResolver} are compiled by the router into a lookup
+ * table whenever the set of routes changes, so {@link #resolve(Set, String)} is not called per request for them.
+ * Custom implementations are called for each request with a snapshot of the current routes.</p>
  */
 public interface RouteResolver {
 
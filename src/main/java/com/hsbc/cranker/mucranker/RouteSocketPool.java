@@ -0,0 +1,394 @@
+package com.hsbc.cranker.mucranker;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The idle V1 sockets and waiting requests of a single route.
+ * <p>Taking an idle socket is lock-free and happens on the caller's thread. The per-route lock is only used when
+ * a request has to wait, or when a socket is returned to the pool, so that a socket can never be added to the idle
+ * queue while a request is parked waiting for one.</p>
+ * <p>Each idle socket and waiting task remembers its node in the pool, so removing a socket or cancelling a wait
+ * never searches the queues.</p>
+ * <p>Sockets are grouped by connector host, and each {@link HostGroup} has a dark mode flag and its own queue for
+ * idle sockets while the host is dark. Returning a socket only looks up its group, and changing the dark mode of a
+ * host only updates the group of that host in each route. When a host goes dark its sockets that are already in the
+ * idle queue are moved to the group's queue as they are polled.</p>
+ */
+class RouteSocketPool {
+
+    private static final int MAX_CANDIDATE_SCAN = 8;
+
+    private final String route;
+    private final ConnectorLatencies latencies;
+    private final WaitingLimits waitingLimits;
+    private final Set<DarkHost> darkHosts;
+    private final IndexedQueue<RouterSocket> idle = new IndexedQueue<>();
+    private final Map<InetAddress, HostGroup> hostGroups = new ConcurrentHashMap<>();
+    private final IndexedQueue<WebSocketFarm.WaitingSocketTask> waiting = new IndexedQueue<>();
+    private final Object lock = new Object();
+    private boolean retired = false;
+
+    /**
+     * @param route         the route
+     * @param latencies     latency estimates of connector instances
+     * @param waitingLimits the limits on waiting tasks, shared with other pools
+     * @param darkHosts     the live set of hosts that must not receive requests; call
+     *                      {@link #setDarkMode(InetAddress, boolean)} after changing it
+     */
+    RouteSocketPool(String route, ConnectorLatencies latencies, WaitingLimits waitingLimits, Set<DarkHost> darkHosts) {
+        this.route = route;
+        this.latencies = latencies;
+        this.waitingLimits = waitingLimits;
+        this.darkHosts = darkHosts;
+    }
+
+    String route() {
+        return route;
+    }
+
+    /**
+     * Takes an idle socket that is not in dark mode, without locking unless a socket of a host that has just gone
+     * dark needs to be moved out of the idle queue.
+     *
+     * @return an idle socket, or null if there are none available
+     */
+    RouterSocket poll() {
+        final RouterSocket socket = latencies.isEnabled() ? pollFaster() : null;
+        if (socket != null) {
+            return socket;
+        }
+        RouterSocket candidate;
+        while ((candidate = idle.poll()) != null) {
+            final HostGroup group = candidate.hostGroup;
+            if (group == null || !group.dark) {
+                return candidate;
+            }
+            synchronized (lock) {
+                if (!group.dark) {
+                    return candidate;
+                }
+                candidate.poolNode = group.darkIdle.offer(candidate);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares the longest idle socket with the next idle socket from a different connector instance, and takes the
+     * one whose instance has the lower latency estimate.
+     *
+     * @return the socket, or null if none was found or it was taken by another thread in the meantime
+     */
+    private RouterSocket pollFaster() {
+        RouterSocket first = null;
+        RouterSocket second = null;
+        int scanned = 0;
+        for (RouterSocket candidate : idle) {
+            if (++scanned > MAX_CANDIDATE_SCAN) break;
+            if (candidate.hostGroup != null && candidate.hostGroup.dark) {
+                continue;
+            }
+            if (first == null) {
+                first = candidate;
+            } else if (!Objects.equals(candidate.connectorInstanceID(), first.connectorInstanceID())) {
+                second = candidate;
+                break;
+            }
+        }
+        if (first == null) {
+            return null;
+        }
+        final RouterSocket chosen = second != null
+            && latencies.estimate(route, second.connectorInstanceID()) < latencies.estimate(route, first.connectorInstanceID()) ? second : first;
+        return removeFrom(idle, chosen) ? chosen : null;
+    }
+
+    /**
+     * Takes an idle socket for the given task, or if there are none then parks the task until a socket is offered.
+     * <p>If a socket is available then the task is notified on the calling thread after the lock has been released.</p>
+     *
+     * @param task the task that needs a socket
+     * @return {@link WaitOutcome#RETIRED} if this pool has been retired, or one of the limit outcomes if the task
+     * could not be parked; in these cases the task was neither served nor parked
+     */
+    WaitOutcome pollOrWait(WebSocketFarm.WaitingSocketTask task) {
+        final RouterSocket socket;
+        synchronized (lock) {
+            if (retired) {
+                return WaitOutcome.RETIRED;
+            }
+            socket = poll();
+            if (socket == null) {
+                if (waiting.size() >= waitingLimits.maxPerRoute) {
+                    return WaitOutcome.ROUTE_LIMIT_REACHED;
+                }
+                if (!waitingLimits.tryAcquire()) {
+                    return WaitOutcome.LIMIT_REACHED;
+                }
+                task.waitingNode = waiting.offer(task);
+            }
+        }
+        if (socket != null) {
+            task.notifySuccess(socket);
+        }
+        return WaitOutcome.ACCEPTED;
+    }
+
+    /**
+     * Hands the socket to the longest waiting request, or adds it to the idle queue if nobody is waiting. Sockets
+     * of dark hosts are added to the queue of their host group instead.
+     * <p>The waiting task is notified on the calling thread after the lock has been released.</p>
+     *
+     * @param socket the socket that is ready for a request
+     * @return false if this pool has been retired and the socket was not accepted
+     */
+    boolean offer(RouterSocket socket) {
+        final WebSocketFarm.WaitingSocketTask waitTask;
+        synchronized (lock) {
+            if (retired) {
+                return false;
+            }
+            socket.hostGroup = hostGroup(socket);
+            waitTask = addIdle(socket);
+        }
+        if (waitTask != null) {
+            waitTask.notifySuccess(socket);
+        }
+        return true;
+    }
+
+    private HostGroup hostGroup(RouterSocket socket) {
+        final InetSocketAddress serviceAddress = socket.serviceAddress();
+        final InetAddress address = serviceAddress == null ? null : serviceAddress.getAddress();
+        if (address == null) {
+            return null;
+        }
+        HostGroup group = hostGroups.get(address);
+        if (group == null) {
+            // the dark hosts are only checked the first time a host is seen on this route
+            group = hostGroups.computeIfAbsent(address, key -> new HostGroup(!darkHosts.isEmpty() && socket.isDarkModeOn(darkHosts)));
+        }
+        return group;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @return the waiting task that should be notified with the socket, or null if the socket was queued
+     */
+    private WebSocketFarm.WaitingSocketTask addIdle(RouterSocket socket) {
+        final HostGroup group = socket.hostGroup;
+        if (group != null && group.dark) {
+            socket.poolNode = group.darkIdle.offer(socket);
+            return null;
+        }
+        final WebSocketFarm.WaitingSocketTask waitTask = waiting.poll();
+        if (waitTask != null) {
+            waitingLimits.release();
+            return waitTask;
+        }
+        socket.poolNode = idle.offer(socket);
+        return null;
+    }
+
+    /**
+     * Updates the dark mode of a host. This is constant time if the host has no sockets on this route. When a
+     * host is no longer dark, its sockets are given to waiting requests first.
+     *
+     * @param address the address of the host
+     * @param dark    true if the host must not receive requests
+     */
+    void setDarkMode(InetAddress address, boolean dark) {
+        final HostGroup group = hostGroups.get(address);
+        if (group == null) {
+            return;
+        }
+        final List<WebSocketFarm.WaitingSocketTask> tasks = new ArrayList<>();
+        final List<RouterSocket> handedOver = new ArrayList<>();
+        synchronized (lock) {
+            group.dark = dark;
+            if (!dark) {
+                RouterSocket socket;
+                while ((socket = group.darkIdle.poll()) != null) {
+                    final WebSocketFarm.WaitingSocketTask waitTask = addIdle(socket);
+                    if (waitTask != null) {
+                        tasks.add(waitTask);
+                        handedOver.add(socket);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).notifySuccess(handedOver.get(i));
+        }
+    }
+
+    /**
+     * Discards the groups of hosts that have no idle sockets on this route, e.g. because the host has gone away.
+     */
+    void pruneHostGroups() {
+        synchronized (lock) {
+            hostGroups.values().removeIf(group -> {
+                if (!group.darkIdle.isEmpty()) {
+                    return false;
+                }
+                for (RouterSocket socket : idle) {
+                    if (socket.hostGroup == group) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+    }
+
+    private static boolean removeFrom(IndexedQueue<RouterSocket> queue, RouterSocket socket) {
+        final IndexedQueue.Node<RouterSocket> node = socket.poolNode;
+        return node != null && node.isIn(queue) && node.remove();
+    }
+
+    /**
+     * Removes an idle socket, e.g. when it is closed.
+     *
+     * @param socket the socket to remove
+     * @return true if the socket was idle in this pool and has been removed
+     */
+    boolean remove(RouterSocket socket) {
+        final HostGroup group = socket.hostGroup;
+        return removeFrom(idle, socket) || (group != null && removeFrom(group.darkIdle, socket));
+    }
+
+    /**
+     * Removes a waiting task, e.g. when it times out.
+     *
+     * @param task the task to remove
+     * @return true if the task was still waiting; false if it was already handed a socket
+     */
+    boolean cancel(WebSocketFarm.WaitingSocketTask task) {
+        final IndexedQueue.Node<WebSocketFarm.WaitingSocketTask> node = task.waitingNode;
+        if (node != null && node.isIn(waiting) && node.remove()) {
+            waitingLimits.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks this pool as no longer usable if it has no idle sockets and no waiting requests.
+     *
+     * @return true if the pool was retired and may be discarded
+     */
+    boolean retireIfUnused() {
+        synchronized (lock) {
+            if (isEmpty() && waiting.isEmpty()) {
+                retired = true;
+            }
+            return retired;
+        }
+    }
+
+    /**
+     * @return true if there are no idle sockets, including sockets of dark hosts
+     */
+    boolean isEmpty() {
+        if (!idle.isEmpty()) {
+            return false;
+        }
+        for (HostGroup group : hostGroups.values()) {
+            if (!group.darkIdle.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int idleCount() {
+        int count = idle.size();
+        for (HostGroup group : hostGroups.values()) {
+            count += group.darkIdle.size();
+        }
+        return count;
+    }
+
+    int waitingCount() {
+        return waiting.size();
+    }
+
+    List<RouterSocket> idleSockets() {
+        final List<RouterSocket> sockets = idle.snapshot();
+        for (HostGroup group : hostGroups.values()) {
+            sockets.addAll(group.darkIdle.snapshot());
+        }
+        return sockets;
+    }
+
+    List<String> waitingTargets() {
+        List<String> targets = new ArrayList<>();
+        for (WebSocketFarm.WaitingSocketTask task : waiting) {
+            targets.add(task.getTarget());
+        }
+        return targets;
+    }
+
+    /**
+     * The sockets of one connector host within the route.
+     */
+    static final class HostGroup {
+        private final IndexedQueue<RouterSocket> darkIdle = new IndexedQueue<>();
+        private volatile boolean dark;
+
+        private HostGroup(boolean dark) {
+            this.dark = dark;
+        }
+    }
+
+    enum WaitOutcome {
+        /** The task was given a socket, or parked until one is offered */
+        ACCEPTED,
+        /** The pool was retired and the route should be looked up again */
+        RETIRED,
+        /** The route already has the maximum number of waiting tasks */
+        ROUTE_LIMIT_REACHED,
+        /** The farm already has the maximum number of waiting tasks */
+        LIMIT_REACHED
+    }
+
+    /**
+     * The maximum number of tasks that may wait per route and in total, shared by all the pools of a farm.
+     */
+    static final class WaitingLimits {
+        private final int maxPerRoute;
+        private final int maxTotal;
+        private final AtomicInteger total = new AtomicInteger(0);
+
+        WaitingLimits(int maxPerRoute, int maxTotal) {
+            this.maxPerRoute = maxPerRoute;
+            this.maxTotal = maxTotal;
+        }
+
+        boolean tryAcquire() {
+            int current;
+            do {
+                current = total.get();
+                if (current >= maxTotal) return false;
+            } while (!total.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release() {
+            total.decrementAndGet();
+        }
+
+        int total() {
+            return total.get();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.util.stream.Stream;
 
 /**
  * Information about a cranker router
+ * <p>The counters return 0 by default, so that implementations written before they were added still compile.</p>
  */
 public interface RouterInfo {
 
@@ -44,6 +45,70 @@ public interface RouterInfo {
      * @return Map, key is the route, value is list of the target urls
      */
     Map<String, List<String>> waitingTasks();
+
+    /**
+     * The number of client requests that have been routed to a connector farm since the router started
+     *
+     * @return The number of routed requests
+     */
+    default long routedRequests() {
+        return 0;
+    }
+
+    /**
+     * The number of times a request path was resolved to a route since the router started. Each request is
+     * resolved at most once per farm that could serve it, so this divided by {@link #routedRequests()} is
+     * at most 3.
+     *
+     * @return The number of route resolutions
+     */
+    default long routeResolutions() {
+        return 0;
+    }
+
+    /**
+     * The number of buffers for frames to cranker protocol 3 connectors that were newly allocated since the router
+     * started.
+     *
+     * @return The number of allocated frame buffers
+     */
+    default long v3FrameBuffersAllocated() {
+        return 0;
+    }
+
+    /**
+     * The number of buffers for frames to cranker protocol 3 connectors that were recycled from earlier frames
+     * since the router started. Small frames, such as window updates, reuse buffers.
+     *
+     * @return The number of reused frame buffers
+     */
+    default long v3FrameBuffersReused() {
+        return 0;
+    }
+
+    /**
+     * The number of buffers for frames to cranker protocol 3 connectors that are currently being written, or
+     * waiting to be written. This is a count of the buffers taken minus those given back, so it cannot say where a
+     * buffer that was never given back came from, but if it keeps growing while the traffic does not, buffers are
+     * leaking.
+     *
+     * @return The number of frame buffers in use
+     */
+    default long v3FrameBuffersOutstanding() {
+        return 0;
+    }
+
+    /**
+     * The number of completed requests that proxy listeners were not told about because the queue of completion
+     * events was full, since the router started. This is always 0 unless completion listeners are called
+     * asynchronously with {@link CompletionOverflowPolicy#DROP}, see
+     * {@link CrankerRouterBuilder#withAsyncCompletionListeners(int, int, CompletionOverflowPolicy)}.
+     *
+     * @return The number of dropped completion events
+     */
+    default long proxyListenerCompletionsDropped() {
+        return 0;
+    }
 }
 
 class RouterInfoImpl implements RouterInfo {
@@ -51,13 +116,31 @@ class RouterInfoImpl implements RouterInfo {
     private final List<ConnectorService> services;
     private final Set<DarkHost> darkHosts;
     private final Map<String, List<String>> waitingTasks;
+    private final long routedRequests;
+    private final long routeResolutions;
+    private final long v3FrameBuffersAllocated;
+    private final long v3FrameBuffersReused;
+    private final long v3FrameBuffersOutstanding;
+    private final long proxyListenerCompletionsDropped;
 
     RouterInfoImpl(List<ConnectorService> services,
                    Set<DarkHost> darkHosts,
-                   Map<String, List<String>> waitingTasks) {
+                   Map<String, List<String>> waitingTasks,
+                   long routedRequests,
+                   long routeResolutions,
+                   long v3FrameBuffersAllocated,
+                   long v3FrameBuffersReused,
+                   long v3FrameBuffersOutstanding,
+                   long proxyListenerCompletionsDropped) {
         this.services = services;
         this.darkHosts = darkHosts;
         this.waitingTasks = waitingTasks;
+        this.routedRequests = routedRequests;
+        this.routeResolutions = routeResolutions;
+        this.v3FrameBuffersAllocated = v3FrameBuffersAllocated;
+        this.v3FrameBuffersReused = v3FrameBuffersReused;
+        this.v3FrameBuffersOutstanding = v3FrameBuffersOutstanding;
+        this.proxyListenerCompletionsDropped = proxyListenerCompletionsDropped;
     }
 
     @Override
@@ -94,6 +177,36 @@ class RouterInfoImpl implements RouterInfo {
         return waitingTasks;
     }
 
+    @Override
+    public long routedRequests() {
+        return routedRequests;
+    }
+
+    @Override
+    public long routeResolutions() {
+        return routeResolutions;
+    }
+
+    @Override
+    public long v3FrameBuffersAllocated() {
+        return v3FrameBuffersAllocated;
+    }
+
+    @Override
+    public long v3FrameBuffersReused() {
+        return v3FrameBuffersReused;
+    }
+
+    @Override
+    public long v3FrameBuffersOutstanding() {
+        return v3FrameBuffersOutstanding;
+    }
+
+    @Override
+    public long proxyListenerCompletionsDropped() {
+        return proxyListenerCompletionsDropped;
+    }
+
     @Override
     public String toString() {
         return "RouterInfoImpl{" +
@@ -102,7 +215,7 @@ class RouterInfoImpl implements RouterInfo {
     }
 
 
-    static List<ConnectorService> getConnectorServiceList(Map<String, Queue<RouterSocket>> socketV1,
+    static List<ConnectorService> getConnectorServiceList(Map<String, List<RouterSocket>> socketV1,
                                                           Map<String, Map<String, List<RouterSocketV3>>> domainToSocketV3,
                                                           Set<DarkHost> darkHosts) {
 
@@ -142,6 +255,7 @@ class RouterInfoImpl implements RouterInfo {
                     routerSocket.serviceAddress().getPort(),
                     routerSocket.routerSocketID,
                     routerSocket.getProtocol(),
+                    0,
                     0));
             }
 
@@ -158,7 +272,7 @@ class RouterInfoImpl implements RouterInfo {
                             connectorInstanceID,
                             componentName,
                             new ArrayList<>(),
-                            false);
+                            routerSocketV3.isDarkModeOn(darkHosts));
                         instanceMap.put(connectorInstanceID, connectorInstance);
                         instances.add(connectorInstance);
                     }
@@ -168,7 +282,8 @@ class RouterInfoImpl implements RouterInfo {
                         routerSocketV3.serviceAddress().getPort(),
                         routerSocketV3.routerSocketID,
                         routerSocketV3.getProtocol(),
-                        routerSocketV3.getContextMap().size()));
+                        routerSocketV3.getContextMap().size(),
+                        routerSocketV3.queuedToClientBytes()));
                 }
 
             }
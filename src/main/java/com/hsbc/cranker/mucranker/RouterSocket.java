@@ -14,6 +14,8 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.hsbc.cranker.mucranker.CrankerMuHandler.HOP_BY_HOP;
 
@@ -21,13 +23,15 @@ import static com.hsbc.cranker.mucranker.CrankerMuHandler.HOP_BY_HOP;
 class RouterSocket extends BaseWebSocket implements ProxyInfo {
     private static final Logger log = LoggerFactory.getLogger(RouterSocket.class);
     private static final List<String> RESPONSE_HEADERS_TO_NOT_SEND_BACK = Collections.singletonList("server");
+    private static final HeaderFilter NOT_SENT_BACK = HeaderFilter.compile(
+        Stream.concat(HOP_BY_HOP.stream(), RESPONSE_HEADERS_TO_NOT_SEND_BACK.stream()).collect(Collectors.toList()));
 
     final String route;
     final String componentName;
     final String routerSocketID = UUID.randomUUID().toString();
     private final WebSocketFarm webSocketFarm;
     private final String connectorInstanceID;
-    private final List<ProxyListener> proxyListeners;
+    private final ProxyListeners proxyListeners;
     private Runnable onReadyForAction;
     private InetSocketAddress remoteAddress;
     private final String clientIp;
@@ -40,11 +44,16 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
     private MuResponse response;
     private MuRequest clientRequest;
     private long socketWaitInMillis;
+    private long requestSentNanos;
     private Throwable error;
     private long durationMillis = 0;
     private StringBuilder onTextBuffer;
+    private String responseConnection;
+    // the position of this socket in its route's idle queue, so that it can be removed without searching
+    volatile IndexedQueue.Node<RouterSocket> poolNode;
+    volatile RouteSocketPool.HostGroup hostGroup;
 
-    RouterSocket(String route, String componentName, WebSocketFarm webSocketFarm, String remotePort, List<ProxyListener> proxyListeners, String clientIp) {
+    RouterSocket(String route, String componentName, WebSocketFarm webSocketFarm, String remotePort, ProxyListeners proxyListeners, String clientIp) {
         this.webSocketFarm = webSocketFarm;
         this.route = route;
         this.componentName = componentName;
@@ -82,8 +91,8 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
         // status code: https://tools.ietf.org/html/rfc6455#section-7.4.1
         super.onClientClosed(statusCode, reason);
         try {
-            if (!proxyListeners.isEmpty()) {
-                for (ProxyListener proxyListener : proxyListeners) {
+            if (proxyListeners.responseBodyChunkReceived.length > 0) {
+                for (ProxyListener proxyListener : proxyListeners.responseBodyChunkReceived) {
                     proxyListener.onResponseBodyChunkReceived(this);
                 }
             }
@@ -111,7 +120,7 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
             }
 
             if (!isRemoved) {
-                webSocketFarm.removeWebSocketAsync(route, this, () -> {});
+                webSocketFarm.removeWebSocket(route, this, () -> {});
                 isRemoved = true;
             }
         } finally {
@@ -120,15 +129,9 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
     }
 
     private void raiseCompletionEvent() {
-        if (clientRequest != null && !proxyListeners.isEmpty()) {
+        if (clientRequest != null && proxyListeners.complete.length > 0) {
             durationMillis = System.currentTimeMillis() - clientRequest.startTime();
-            for (ProxyListener completionListener : proxyListeners) {
-                try {
-                    completionListener.onComplete(this);
-                } catch (Exception e) {
-                    log.warn("Error thrown by " + completionListener, e);
-                }
-            }
+            proxyListeners.raiseComplete(this);
         }
     }
 
@@ -182,15 +185,17 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
         }
 
         if (isLast) {
-            final String messageToApply = onTextBuffer != null ? onTextBuffer.toString() : message;
-            CrankerProtocolResponse protocolResponse = new CrankerProtocolResponse(messageToApply);
-            response.status(protocolResponse.getStatus());
-            putHeadersTo(protocolResponse);
+            final CharSequence messageToApply = onTextBuffer != null ? onTextBuffer : message;
+            webSocketFarm.recordTimeToFirstByte(route, connectorInstanceID, System.nanoTime() - requestSentNanos);
+            response.headers().remove("date"); // Remove cranker-router's date because we want to use the target server's date
+            responseConnection = CrankerProtocolV1Codec.headerValue(messageToApply, "connection");
+            final int status = CrankerProtocolV1Codec.parseResponse(messageToApply, this::putHeader);
+            response.status(status);
             try {
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.responseHeadersReceived.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.responseHeadersReceived) {
                         proxyListener.onBeforeRespondingToClient(this);
-                        proxyListener.onAfterTargetToProxyHeadersReceived(this, protocolResponse.getStatus(), response.headers());
+                        proxyListener.onAfterTargetToProxyHeadersReceived(this, status, response.headers());
                     }
                 }
             } catch (WebApplicationException e) {
@@ -232,8 +237,8 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
                             " so will cancel the request. Error message: " + errorIfAny.getMessage());
                     }
 
-                    if (!proxyListeners.isEmpty()) {
-                        for (ProxyListener proxyListener : proxyListeners) {
+                    if (proxyListeners.responseBodyChunkReceivedFromTarget.length > 0) {
+                        for (ProxyListener proxyListener : proxyListeners.responseBodyChunkReceivedFromTarget) {
                             proxyListener.onResponseBodyChunkReceivedFromTarget(this, byteBuffer.position(position));
                         }
                     }
@@ -261,7 +266,7 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
     private void removeBadWebSocket() {
         if (!isRemoved) {
             socketSessionClose();
-            webSocketFarm.removeWebSocketAsync(route, this, () -> {});
+            webSocketFarm.removeWebSocket(route, this, () -> {});
             isRemoved = true;
         }
     }
@@ -284,30 +289,17 @@ class RouterSocket extends BaseWebSocket implements ProxyInfo {
         return clientIp;
     }
 
-    private void putHeadersTo(CrankerProtocolResponse protocolResponse) {
-        response.headers().remove("date"); // Remove cranker-router's date because we want to use the target server's date
-        for (String line : protocolResponse.headers) {
-            int pos = line.indexOf(':');
-            if (pos > 0) {
-                String header = line.substring(0, pos);
-                String lowerHeader = header.toLowerCase();
-                if (!HOP_BY_HOP.contains(lowerHeader) && !RESPONSE_HEADERS_TO_NOT_SEND_BACK.contains(lowerHeader)) {
-                    String value = line.substring(pos + 1);
-                    response.headers().add(lowerHeader, value);
-                }
-            }
-        }
-
-        List<String> customHopByHop = CrankerMuHandler.getCustomHopByHopHeaders(response.headers().get(HeaderNames.CONNECTION));
-        for (String header : customHopByHop) {
-            response.headers().remove(header);
+    private void putHeader(String header, String value) {
+        // headers listed in the Connection header are hop-by-hop for this response only
+        if (!NOT_SENT_BACK.contains(header) && !HeaderFilter.isConnectionOption(responseConnection, header)) {
+            response.headers().add(header.toLowerCase(), value);
         }
-
     }
 
     void setAsyncHandle(AsyncHandle asyncHandle, MuRequest clientRequest, MuResponse response, long socketWaitInMillis) {
         this.clientRequest = clientRequest;
         this.socketWaitInMillis = socketWaitInMillis;
+        this.requestSentNanos = System.nanoTime();
         this.hasResponse = true;
         this.response = response;
         this.asyncHandle = asyncHandle;
@@ -1,11 +1,14 @@
 package com.hsbc.cranker.mucranker;
 
 import io.muserver.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jakarta.ws.rs.WebApplicationException;
 import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -15,6 +18,7 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.hsbc.cranker.mucranker.CrankerMuHandler.*;
 
@@ -24,22 +28,32 @@ class RouterSocketV3 extends BaseWebSocket {
     static final byte MESSAGE_TYPE_HEADER = 1;
     static final byte MESSAGE_TYPE_RST_STREAM = 3;
     static final byte MESSAGE_TYPE_WINDOW_UPDATE = 8;
+    /**
+     * A cranker protocol 3.1 frame holding a whole small request or response: after the frame header comes the
+     * 4-byte length of the compressed header block, then the block, then the body. The stream end and header end
+     * flags are always set.
+     */
+    static final byte MESSAGE_TYPE_HEADER_DATA = 10;
+
+    /**
+     * The largest request body that is read before sending, so that it can go in one frame with its head
+     */
+    static final int SINGLE_FRAME_BODY_LIMIT = 4 * 1024;
 
     static final int ERROR_INTERNAL = 1;
+    static final int ERROR_PROTOCOL = 2;
 
     private static final Logger log = LoggerFactory.getLogger(RouterSocketV3.class);
-    private static final List<String> RESPONSE_HEADERS_TO_NOT_SEND_BACK = Collections.singletonList("server");
+    static final List<String> RESPONSE_HEADERS_TO_NOT_SEND_BACK = Collections.singletonList("server");
 
     final String route;
     final String componentName;
     final String routerSocketID = UUID.randomUUID().toString();
     private final WebSocketFarmV3 webSocketFarmV3;
     private final String connectorInstanceID;
-    private final List<ProxyListener> proxyListeners;
-    private final boolean discardClientForwardedHeaders;
-    private final boolean sendLegacyForwardedHeaders;
-    private final String viaValue;
-    private final Set<String> doNotProxy;
+    private final ProxyListeners proxyListeners;
+    private final ForwardingHeaders forwardingHeaders;
+    private final HeaderFilter doNotProxy;
     private Runnable onReadyForAction;
     private InetSocketAddress remoteAddress;
     private final String clientIp;
@@ -48,22 +62,38 @@ class RouterSocketV3 extends BaseWebSocket {
 
     private final Map<Integer, RequestContext> contextMap = new ConcurrentHashMap<>();
     private final AtomicInteger idMaker = new AtomicInteger(0);
+    private final AtomicLong unackedBytes = new AtomicLong(0);
+    private final FrameScheduler frameScheduler;
+    private final FlowControlWindow flowControlWindow;
+    // how many more bytes the windows of this socket's streams may grow by
+    private final AtomicLong windowBudget;
+    // response bytes of all streams that have been pulled from the connector but not yet written to clients
+    private final AtomicLong queuedToClientBytes = new AtomicLong(0);
+    // the connector frame that was not released because too many bytes are queued to clients
+    private final AtomicReference<PausedPull> pausedPull = new AtomicReference<>();
+    // the header tables of cranker protocol 3.1, or null if header blocks are sent as text
+    private final HeaderCompression.Encoder headerEncoder;
+    private final HeaderCompression.Decoder headerDecoder;
+    // parses response heads that arrive in one frame; frames are received one at a time, so one is enough
+    private final ResponseHeadParser singleFrameHead = new ResponseHeadParser();
 
     RouterSocketV3(String route, String componentName, WebSocketFarmV3 webSocketFarmV3,
-                   String remotePort, List<ProxyListener> proxyListeners,
-                   boolean discardClientForwardedHeaders, boolean sendLegacyForwardedHeaders,
-                   String viaValue, Set<String> doNotProxy, String clientIp) {
+                   String remotePort, ProxyListeners proxyListeners,
+                   ForwardingHeaders forwardingHeaders, HeaderFilter doNotProxy, String clientIp, boolean isHeaderCompressionOn) {
         this.webSocketFarmV3 = webSocketFarmV3;
         this.route = route;
         this.componentName = componentName;
         this.connectorInstanceID = remotePort;
         this.proxyListeners = proxyListeners;
-        this.discardClientForwardedHeaders = discardClientForwardedHeaders;
-        this.sendLegacyForwardedHeaders = sendLegacyForwardedHeaders;
-        this.viaValue = viaValue;
+        this.forwardingHeaders = forwardingHeaders;
         this.doNotProxy = doNotProxy;
         this.isRemoved = false;
         this.clientIp = clientIp;
+        this.frameScheduler = new FrameScheduler(this::sendPooledFrame, webSocketFarmV3.framePool());
+        this.flowControlWindow = webSocketFarmV3.flowControl().windowFor(route);
+        this.windowBudget = new AtomicLong(webSocketFarmV3.flowControl().socketBudget());
+        this.headerEncoder = isHeaderCompressionOn ? new HeaderCompression.Encoder() : null;
+        this.headerDecoder = isHeaderCompressionOn ? new HeaderCompression.Decoder(webSocketFarmV3.maxResponseHeadSize()) : null;
     }
 
     public WebsocketSessionState state() {
@@ -74,6 +104,36 @@ class RouterSocketV3 extends BaseWebSocket {
         return contextMap;
     }
 
+    /**
+     * @return the number of requests currently being proxied over this socket
+     */
+    int inFlightCount() {
+        return contextMap.size();
+    }
+
+    /**
+     * @return the number of bytes sent to the connector over this socket that it has not acknowledged yet
+     */
+    long unackedBytes() {
+        return unackedBytes.get();
+    }
+
+    /**
+     * @return the number of response bytes received from the connector over this socket that are waiting to be
+     * written to clients
+     */
+    long queuedToClientBytes() {
+        return queuedToClientBytes.get();
+    }
+
+    private void removeContext(RequestContext context) {
+        if (contextMap.remove(context.requestId, context)) {
+            context.releaseUnackedBytes();
+            context.window.release();
+            resumePullMaybe();
+        }
+    }
+
     public void sendRequestOverWebSocketV3(MuRequest clientRequest, MuResponse clientResponse) {
 
         final Integer requestId = idMaker.incrementAndGet();
@@ -98,11 +158,11 @@ class RouterSocketV3 extends BaseWebSocket {
         try {
 
             HeadersBuilder headers = new HeadersBuilder();
-            setTargetRequestHeaders(clientRequest, headers, discardClientForwardedHeaders, sendLegacyForwardedHeaders, viaValue, doNotProxy);
+            setTargetRequestHeaders(clientRequest, headers, forwardingHeaders, doNotProxy);
 
             try {
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.beforeProxyToTarget.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.beforeProxyToTarget) {
                         proxyListener.onBeforeProxyToTarget(context, headers.muHeaders());
                     }
                 }
@@ -112,23 +172,32 @@ class RouterSocketV3 extends BaseWebSocket {
                 return;
             }
 
-            final String headerText = createRequestLine(clientRequest) + "\n" + headers + "\n";
-
-            if (clientRequest.headers().hasBody()) {
-
-                for (ByteBuffer headerMessage : headerMessages(requestId, true, false, headerText)) {
-                    context.sendingBytes(headerMessage.remaining() - 6);
-                    sendData(headerMessage, DoneCallback.NoOp);
-                    context.fromClientBytes.addAndGet(headerMessage.remaining() - 6);
+            final boolean hasBody = clientRequest.headers().hasBody();
+            final long bodyLength = hasBody ? clientRequest.headers().getLong("content-length", -1) : -1;
+            if (headerEncoder != null && bodyLength >= 0 && bodyLength <= SINGLE_FRAME_BODY_LIMIT) {
+                // the body is small and has a known length, so the head is held back to send it all in one frame
+                sendInSingleFrame(context, headers.muHeaders(), (int) bodyLength);
+                return;
+            }
+            if (headerEncoder == null) {
+                sendHeaderFrames(context, webSocketFarmV3.requestHeadEncoder().encode(requestId, !hasBody, clientRequest, headers.muHeaders()));
+            } else {
+                // the connector decodes blocks in the order they are sent, which must be the order they are encoded
+                synchronized (headerEncoder) {
+                    sendHeaderFrames(context, webSocketFarmV3.requestHeadEncoder().encodeCompressed(requestId, !hasBody, clientRequest, headers.muHeaders(), headerEncoder));
                 }
+            }
+
+            if (hasBody) {
 
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.afterProxyToTargetHeadersSent.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.afterProxyToTargetHeadersSent) {
                         proxyListener.onAfterProxyToTargetHeadersSent(context, headers.muHeaders());
                     }
                 }
 
                 // Stream the body
+                context.dataFrames = frameScheduler.newStream();
                 asyncHandle.setReadListener(new RequestBodyListener() {
                     @Override
                     public void onDataReceived(ByteBuffer buffer, DoneCallback callback) {
@@ -136,12 +205,12 @@ class RouterSocketV3 extends BaseWebSocket {
                         final int remaining = buffer.remaining();
                         final int position = buffer.position();
 
-                        if (!proxyListeners.isEmpty()) {
-                            for (ProxyListener proxyListener : proxyListeners) {
+                        if (proxyListeners.beforeRequestBodyChunkSentToTarget.length > 0) {
+                            for (ProxyListener proxyListener : proxyListeners.beforeRequestBodyChunkSentToTarget) {
                                 proxyListener.onBeforeRequestBodyChunkSentToTarget(context, buffer.position(position));
                             }
+                            buffer.position(position);
                         }
-                        buffer.position(position);
 
                         DoneCallback wrapper = error -> {
 
@@ -153,8 +222,8 @@ class RouterSocketV3 extends BaseWebSocket {
                                 return;
                             }
 
-                            if (!proxyListeners.isEmpty()) {
-                                for (ProxyListener proxyListener : proxyListeners) {
+                            if (proxyListeners.requestBodyChunkSentToTarget.length > 0) {
+                                for (ProxyListener proxyListener : proxyListeners.requestBodyChunkSentToTarget) {
                                     // when creating the dataMessage, the buffer is read and position changed
                                     // calling buffer.rewind() to reset the position
                                     proxyListener.onRequestBodyChunkSentToTarget(context, buffer.position(position));
@@ -171,9 +240,8 @@ class RouterSocketV3 extends BaseWebSocket {
                         };
 
                         try {
-                            final ByteBuffer data = dataMessages(requestId, false, buffer);
-                            context.sendingBytes(data.remaining() - 6);
-                            sendData(data, wrapper);
+                            context.sendingBytes(remaining);
+                            sendDataFrames(context, buffer, wrapper);
                         } catch (Exception e) {
                             onError(e);
                         }
@@ -182,11 +250,10 @@ class RouterSocketV3 extends BaseWebSocket {
                     @Override
                     public void onComplete() {
                         try {
-                            final ByteBuffer endMessage = dataMessages(requestId, true, null);
-                            sendData(endMessage, DoneCallback.NoOp);
+                            sendEndOfStream(context);
 
-                            if (!proxyListeners.isEmpty()) {
-                                for (ProxyListener proxyListener : proxyListeners) {
+                            if (proxyListeners.requestBodySentToTarget.length > 0) {
+                                for (ProxyListener proxyListener : proxyListeners.requestBodySentToTarget) {
                                     proxyListener.onRequestBodySentToTarget(context);
                                 }
                             }
@@ -207,14 +274,8 @@ class RouterSocketV3 extends BaseWebSocket {
 
             } else {
                 // No request body
-                for (ByteBuffer headerMessage : headerMessages(requestId, true, true, headerText)) {
-                    context.sendingBytes(headerMessage.remaining() - 6);
-                    sendData(headerMessage, DoneCallback.NoOp);
-                    context.fromClientBytes.addAndGet(headerMessage.remaining() - 6);
-                }
-
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.requestWithoutBodySent.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.requestWithoutBodySent) {
                         proxyListener.onAfterProxyToTargetHeadersSent(context, headers.muHeaders());
                         proxyListener.onRequestBodySentToTarget(context);
                     }
@@ -238,10 +299,196 @@ class RouterSocketV3 extends BaseWebSocket {
 
     }
 
+    /**
+     * Reads a small request body, and then sends the head, body and end of stream in one cranker protocol 3.1 frame.
+     */
+    private void sendInSingleFrame(RequestContext context, Headers headers, int bodyLength) {
+        final SingleFrameBody singleFrameBody = new SingleFrameBody(webSocketFarmV3.framePool(), bodyLength);
+        final ByteBuf body = singleFrameBody.buffer();
+        context.asyncHandle.setReadListener(new RequestBodyListener() {
+            @Override
+            public void onDataReceived(ByteBuffer buffer, DoneCallback callback) throws Exception {
+                final int position = buffer.position();
+                if (proxyListeners.beforeRequestBodyChunkSentToTarget.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.beforeRequestBodyChunkSentToTarget) {
+                        proxyListener.onBeforeRequestBodyChunkSentToTarget(context, buffer.position(position));
+                    }
+                    buffer.position(position);
+                }
+                if (!singleFrameBody.append(buffer)) {
+                    onError(new IllegalStateException("The request body is longer than its content-length"));
+                    return;
+                }
+                callback.onComplete(null);
+            }
+
+            @Override
+            public void onComplete() {
+                try {
+                    final boolean isCombined;
+                    synchronized (headerEncoder) {
+                        final List<ByteBuf> frames = webSocketFarmV3.requestHeadEncoder().encodeSingleFrame(context.requestId, context.request, headers, body, headerEncoder);
+                        isCombined = frames.size() == 1 && frames.get(0).getByte(0) == MESSAGE_TYPE_HEADER_DATA;
+                        sendHeaderFrames(context, frames);
+                    }
+                    // a head that was too big to share its frame was sent on its own, so the body follows as data frames
+                    if (!isCombined) {
+                        context.dataFrames = frameScheduler.newStream();
+                        context.sendingBytes(body.readableBytes());
+                        sendDataFrames(context, body.nioBuffer(), error -> context.fromClientBytes.addAndGet(bodyLength));
+                        sendEndOfStream(context);
+                    }
+                    if (proxyListeners.requestSentInOneFrame.length > 0) {
+                        for (ProxyListener proxyListener : proxyListeners.requestSentInOneFrame) {
+                            proxyListener.onAfterProxyToTargetHeadersSent(context, headers);
+                            proxyListener.onRequestBodyChunkSentToTarget(context, body.nioBuffer());
+                            proxyListener.onRequestBodySentToTarget(context);
+                        }
+                    }
+                } catch (Exception e) {
+                    onError(e);
+                } finally {
+                    singleFrameBody.release();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                singleFrameBody.release();
+                try {
+                    notifyClientRequestError(context, t);
+                    resetStream(context, ERROR_INTERNAL, "Client request body read error", DoneCallback.NoOp);
+                } catch (Exception ignored) {
+                }
+            }
+        });
+    }
+
+    private void sendHeaderFrames(RequestContext context, List<ByteBuf> headerFrames) {
+        for (int i = 0; i < headerFrames.size(); i++) {
+            final ByteBuf headerFrame = headerFrames.get(i);
+            final int headerBytes = headerFrame.readableBytes() - 6;
+            context.sendingBytes(headerBytes);
+            try {
+                sendPooledFrame(headerFrame, DoneCallback.NoOp);
+            } catch (Throwable e) {
+                for (int j = i + 1; j < headerFrames.size(); j++) {
+                    webSocketFarmV3.framePool().release(headerFrames.get(j));
+                }
+                throw e;
+            }
+            context.fromClientBytes.addAndGet(headerBytes);
+        }
+    }
+
     private void sendData(ByteBuffer byteBuffer, DoneCallback doneCallback) {
         session().sendBinary(byteBuffer, doneCallback);
     }
 
+    /**
+     * Queues a chunk of the request body as data frames of at most the maximum frame size, which the frame scheduler
+     * interleaves with the frames of other streams on this socket. Each frame is written into a pooled direct
+     * buffer, which is the only copy of the body and is what the socket writes from, and the buffer is returned to the
+     * pool once the write completes.
+     *
+     * @param doneCallback called once all the frames of the chunk have been written, or on the first error
+     */
+    private void sendDataFrames(RequestContext context, ByteBuffer body, DoneCallback doneCallback) {
+        final int maxPayload = webSocketFarmV3.maxFrameSize() - 6;
+        final int frameCount = Math.max(1, (body.remaining() + maxPayload - 1) / maxPayload);
+        final DoneCallback chunkCallback = frameCount == 1 ? doneCallback : new ChunkCallback(frameCount, doneCallback);
+        for (int i = 0; i < frameCount; i++) {
+            final ByteBuf frame = dataFrame(context.requestId, false, body, Math.min(maxPayload, body.remaining()));
+            frameScheduler.enqueue(context.dataFrames, frame, chunkCallback);
+        }
+    }
+
+    private void sendEndOfStream(RequestContext context) {
+        frameScheduler.enqueue(context.dataFrames, dataFrame(context.requestId, true, null, 0), DoneCallback.NoOp);
+    }
+
+    private ByteBuf dataFrame(int requestId, boolean isEnd, ByteBuffer body, int length) {
+        final FrameBufferPool framePool = webSocketFarmV3.framePool();
+        final ByteBuf frame = framePool.acquire(6 + length);
+        try {
+            frame.writeByte(MESSAGE_TYPE_DATA) // 1 byte
+                .writeByte(isEnd ? 1 : 0) // 1 byte
+                .writeInt(requestId); // 4 byte
+            if (length > 0) {
+                final int limit = body.limit();
+                body.limit(body.position() + length);
+                frame.writeBytes(body);
+                body.limit(limit);
+            }
+            return frame;
+        } catch (Throwable e) {
+            framePool.release(frame);
+            throw e;
+        }
+    }
+
+    /**
+     * Completes the callback of a body chunk once all of its frames have been written.
+     */
+    private static final class ChunkCallback implements DoneCallback {
+        private final AtomicInteger remainingFrames;
+        private final DoneCallback doneCallback;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private ChunkCallback(int frames, DoneCallback doneCallback) {
+            this.remainingFrames = new AtomicInteger(frames);
+            this.doneCallback = doneCallback;
+        }
+
+        @Override
+        public void onComplete(Throwable error) throws Exception {
+            if ((error != null || remainingFrames.decrementAndGet() == 0) && done.compareAndSet(false, true)) {
+                doneCallback.onComplete(error);
+            }
+        }
+    }
+
+    /**
+     * Sends a frame held in a pooled buffer, and releases the buffer once the write completes.
+     */
+    private void sendPooledFrame(ByteBuf frame, DoneCallback doneCallback) {
+        final PooledFrame pooledFrame = new PooledFrame(webSocketFarmV3.framePool(), frame, doneCallback);
+        try {
+            sendData(frame.nioBuffer(), pooledFrame);
+        } catch (Throwable e) {
+            pooledFrame.release();
+            throw e;
+        }
+    }
+
+    /**
+     * A frame in a pooled buffer, released exactly once when its write completes or fails.
+     */
+    private static final class PooledFrame implements DoneCallback {
+        private final FrameBufferPool framePool;
+        private final ByteBuf buf;
+        private final DoneCallback doneCallback;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private PooledFrame(FrameBufferPool framePool, ByteBuf buf, DoneCallback doneCallback) {
+            this.framePool = framePool;
+            this.buf = buf;
+            this.doneCallback = doneCallback;
+        }
+
+        @Override
+        public void onComplete(Throwable error) throws Exception {
+            release();
+            doneCallback.onComplete(error);
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                framePool.release(buf);
+            }
+        }
+    }
+
     void socketSessionClose() {
         if (contextMap.isEmpty()) {
             try {
@@ -257,14 +504,16 @@ class RouterSocketV3 extends BaseWebSocket {
     }
 
     void resetStream(RequestContext context, Integer errorCode, String message, DoneCallback doneCallback) {
+        if (context != null && context.dataFrames != null) {
+            frameScheduler.cancel(context.dataFrames);
+        }
         if (context != null && !context.state.isCompleted() && !context.isRstStreamSent) {
-            final ByteBuffer buffer = rstMessage(context.requestId, errorCode, message);
-            sendData(buffer, doneCallback);
+            sendPooledFrame(rstFrame(context.requestId, errorCode, message), doneCallback);
             context.isRstStreamSent = true;
         }
 
         if (context != null) {
-            contextMap.remove(context.requestId);
+            removeContext(context);
         }
     }
 
@@ -293,8 +542,8 @@ class RouterSocketV3 extends BaseWebSocket {
 
     private void notifyClientRequestClose(RequestContext context, int statusCode) {
         try {
-            if (!proxyListeners.isEmpty()) {
-                for (ProxyListener proxyListener : proxyListeners) {
+            if (proxyListeners.responseBodyChunkReceived.length > 0) {
+                for (ProxyListener proxyListener : proxyListeners.responseBodyChunkReceived) {
                     proxyListener.onResponseBodyChunkReceived(context);
                 }
             }
@@ -325,20 +574,14 @@ class RouterSocketV3 extends BaseWebSocket {
                 context.error = new IllegalStateException("Upstream server close with code " + statusCode);
             }
             raiseCompletionEvent(context);
-            contextMap.remove(context.requestId);
+            removeContext(context);
         }
     }
 
     private void raiseCompletionEvent(RequestContext context) {
-        if (context != null && context.request != null && !proxyListeners.isEmpty()) {
+        if (context != null && context.request != null && proxyListeners.complete.length > 0) {
             context.durationMillis = System.currentTimeMillis() - context.request.startTime();
-            for (ProxyListener completionListener : proxyListeners) {
-                try {
-                    completionListener.onComplete(context);
-                } catch (Exception e) {
-                    log.warn("Error thrown by " + completionListener, e);
-                }
-            }
+            proxyListeners.raiseComplete(context);
         }
     }
 
@@ -377,7 +620,42 @@ class RouterSocketV3 extends BaseWebSocket {
         } finally {
             raiseCompletionEvent(context);
             log.warn("stream error: requestId={}, target={}, error={}", context.requestId, context.request.uri(), cause.getMessage());
-            contextMap.remove(context.requestId);
+            removeContext(context);
+        }
+    }
+
+    /**
+     * Fails a request whose response head from the connector is invalid. If the header block could not be decoded,
+     * later blocks cannot be decoded either, so the whole socket is closed.
+     */
+    private void onInvalidResponseHead(RequestContext context, RuntimeException cause, DoneCallback doneAndPullData, Runnable releaseBuffer) throws Exception {
+        releaseBuffer.run();
+        context.responseHead = null;
+        if (cause instanceof HeaderCompression.HeaderBlockException) {
+            closeOnProtocolError(cause);
+            doneAndPullData.onComplete(cause);
+            return;
+        }
+        resetStream(context, ERROR_PROTOCOL, "Invalid response head", DoneCallback.NoOp);
+        notifyClientRequestError(context, new IllegalStateException("Invalid response head from connector: " + cause.getMessage(), cause));
+        doneAndPullData.onComplete(null);
+    }
+
+    private void closeOnProtocolError(Throwable cause) throws Exception {
+        log.warn("routerName=" + route + ", routerSocketID=" + routerSocketID + ", closing the connector socket as a header block could not be decoded", cause);
+        if (!isRemoved) {
+            webSocketFarmV3.removeWebSocket(this);
+            isRemoved = true;
+        }
+        for (RequestContext context : contextMap.values()) {
+            notifyClientRequestError(context, cause);
+        }
+        try {
+            MuWebSocketSession session = session();
+            if (session != null) {
+                session.close(1002, "Protocol error");
+            }
+        } catch (Exception ignored) {
         }
     }
 
@@ -386,23 +664,23 @@ class RouterSocketV3 extends BaseWebSocket {
         // V3 protocol not using the onText anymore...
     }
 
-    private void handleHeaderMessage(RequestContext context, String content) {
-        CrankerProtocolResponse protocolResponse = new CrankerProtocolResponse(content);
-        context.response.status(protocolResponse.getStatus());
-        putHeadersTo(context.response, protocolResponse);
+    private void handleHeaderMessage(RequestContext context, ResponseHeadParser responseHead) {
+        webSocketFarmV3.recordTimeToFirstByte(route, connectorInstanceID, System.nanoTime() - context.startNanos);
+        context.response.status(responseHead.status());
+        putHeadersTo(context.response, responseHead);
 
         try {
-            if (!proxyListeners.isEmpty()) {
-                for (ProxyListener proxyListener : proxyListeners) {
+            if (proxyListeners.responseHeadersReceived.length > 0) {
+                for (ProxyListener proxyListener : proxyListeners.responseHeadersReceived) {
                     proxyListener.onBeforeRespondingToClient(context);
-                    proxyListener.onAfterTargetToProxyHeadersReceived(context, protocolResponse.getStatus(), context.response.headers());
+                    proxyListener.onAfterTargetToProxyHeadersReceived(context, responseHead.status(), context.response.headers());
                 }
             }
         } catch (WebApplicationException e) {
             handleWebApplicationException(e, context.response, context.asyncHandle);
         }
 
-        context.toClientBytes.getAndAdd(content.length()); // string length should be number of bytes as this is used for headers so is ASCII
+        context.toClientBytes.getAndAdd(responseHead.byteCount());
     }
 
 
@@ -414,6 +692,21 @@ class RouterSocketV3 extends BaseWebSocket {
         final Integer requestId = byteBuffer.getInt();
 
         final RequestContext context = contextMap.get(requestId);
+        if (context == null && headerDecoder != null) {
+            // the block still changes the header table, even though its stream has gone
+            try {
+                if (messageType == MESSAGE_TYPE_HEADER) {
+                    headerDecoder.decode(byteBuffer, (flags & 4) > 0, null);
+                } else if (messageType == MESSAGE_TYPE_HEADER_DATA) {
+                    headerDecoder.decode(headerBlock(byteBuffer), true, null);
+                }
+            } catch (HeaderCompression.HeaderBlockException e) {
+                releaseBuffer.run();
+                closeOnProtocolError(e);
+                doneAndPullData.onComplete(e);
+                return;
+            }
+        }
         if (context == null) {
             // consuming the data and release it, instead of blocking the tcp connection
             releaseBuffer.run();
@@ -431,27 +724,66 @@ class RouterSocketV3 extends BaseWebSocket {
                 final boolean isStreamEnd = ((flags & 1) > 0);
                 final boolean isHeaderEnd = ((flags & 4) > 0);
                 final int byteLength = byteBuffer.remaining();
-                final String content = StandardCharsets.UTF_8.decode(byteBuffer).toString();
 
-                if (!isHeaderEnd) {
-                    if (context.headerLineBuilder == null) context.headerLineBuilder = new StringBuilder();
-                    context.headerLineBuilder.append(content);
-                } else {
-                    String fullContent = content;
-                    if (context.headerLineBuilder != null) {
-                        context.headerLineBuilder.append(content);
-                        fullContent = context.headerLineBuilder.toString();
+                // only a head split across frames needs a parser of its own to keep until the rest arrives
+                final ResponseHeadParser responseHead = context.responseHead != null ? context.responseHead
+                    : isHeaderEnd ? singleFrameHead.reset() : new ResponseHeadParser();
+                try {
+                    if (headerDecoder == null) {
+                        if (responseHead.byteCount() + byteLength > webSocketFarmV3.maxResponseHeadSize()) {
+                            throw new IllegalArgumentException("The response head is larger than " + webSocketFarmV3.maxResponseHeadSize() + " bytes");
+                        }
+                        responseHead.feed(byteBuffer);
+                    } else {
+                        responseHead.countBytes(byteLength);
+                        headerDecoder.decode(byteBuffer, isHeaderEnd, responseHead);
                     }
-                    handleHeaderMessage(context, fullContent);
+                    if (isHeaderEnd) {
+                        context.responseHead = null;
+                        responseHead.finish();
+                    } else {
+                        context.responseHead = responseHead;
+                    }
+                } catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                    onInvalidResponseHead(context, e, doneAndPullData, releaseBuffer);
+                    break;
+                }
+                if (isHeaderEnd) {
+                    handleHeaderMessage(context, responseHead);
                 }
                 if (isStreamEnd) {
                     notifyClientRequestClose(context, 1000);
                 }
-                sendData(windowUpdateMessage(requestId, byteLength), DoneCallback.NoOp);
+                context.acks.acknowledge(byteLength, isStreamEnd);
                 releaseBuffer.run();
                 doneAndPullData.onComplete(null);
                 break;
             }
+            case MESSAGE_TYPE_HEADER_DATA: {
+                if (headerDecoder == null) {
+                    log.info("not supported binary message byte {} for cranker protocol 3.0", messageType);
+                    releaseBuffer.run();
+                    doneAndPullData.onComplete(null);
+                    break;
+                }
+                final int blockLength;
+                final ResponseHeadParser responseHead = singleFrameHead.reset();
+                try {
+                    final ByteBuffer block = headerBlock(byteBuffer);
+                    blockLength = block.remaining();
+                    responseHead.countBytes(blockLength);
+                    headerDecoder.decode(block, true, responseHead);
+                    responseHead.finish();
+                } catch (IllegalArgumentException e) {
+                    onInvalidResponseHead(context, e, doneAndPullData, releaseBuffer);
+                    break;
+                }
+                handleHeaderMessage(context, responseHead);
+                context.acks.acknowledge(blockLength + 4, false);
+                // the rest of the frame is the body, which ends the stream once written to the client
+                handleData(context, isLast, true, byteBuffer, doneAndPullData, releaseBuffer);
+                break;
+            }
             case MESSAGE_TYPE_RST_STREAM: {
                 try {
                     final int errorCode = getErrorCode(byteBuffer);
@@ -480,6 +812,20 @@ class RouterSocketV3 extends BaseWebSocket {
             }
         }
     }
+    /**
+     * @return the header block of a header-and-data frame, with the frame positioned at the start of the body
+     */
+    private static ByteBuffer headerBlock(ByteBuffer byteBuffer) {
+        final int blockLength = byteBuffer.remaining() >= 4 ? byteBuffer.getInt() : -1;
+        if (blockLength < 0 || blockLength > byteBuffer.remaining()) {
+            throw new HeaderCompression.HeaderBlockException("Invalid header block length " + blockLength);
+        }
+        final ByteBuffer block = byteBuffer.slice();
+        block.limit(blockLength);
+        byteBuffer.position(byteBuffer.position() + blockLength);
+        return block;
+    }
+
     private static String getErrorMessage(ByteBuffer byteBuffer) {
         String message = "";
         if (byteBuffer.remaining() > 0) {
@@ -519,15 +865,31 @@ class RouterSocketV3 extends BaseWebSocket {
                 ", sending " + len + " bytes to client");
         }
 
-        // pullMoreData, avoid blocking the websocket tunnel
-        doneAndPullData.onComplete(null);
+        // pull more data straight away to avoid blocking the other streams of the websocket tunnel. A slow client
+        // only holds back its own stream, whose acknowledgements wait until its queue drains, unless so many bytes
+        // of all the streams are waiting that the socket's limit is reached, in which case the pull waits too
+        context.queuedToClientBytes.addAndGet(len);
+        queuedToClientBytes.addAndGet(len);
+        if (isOverSocketClientQueueLimit()) {
+            pausePull(context, doneAndPullData);
+        } else {
+            doneAndPullData.onComplete(null);
+        }
 
         context.asyncHandle.write(byteBuffer, errorIfAny -> {
+            final int streamQueued = context.queuedToClientBytes.addAndGet(-len);
+            queuedToClientBytes.addAndGet(-len);
+            resumePullMaybe();
             try {
                 if (errorIfAny == null) {
                     if (isEnd) notifyClientRequestClose(context, 1000);
                     context.toClientBytes.addAndGet(len);
-                    sendData(windowUpdateMessage(context.requestId, len), DoneCallback.NoOp);
+                    if (!isEnd && streamQueued > webSocketFarmV3.flowControl().streamClientQueueLimit()) {
+                        // the connector must not send this stream more until its client catches up
+                        context.acks.withhold(len);
+                    } else {
+                        context.acks.acknowledge(len, isEnd);
+                    }
                 } else {
                     log.info("routerName=" + route + ", routerSocketID=" + routerSocketID +
                         ", could not write to client response (maybe the user closed their browser)" +
@@ -538,8 +900,8 @@ class RouterSocketV3 extends BaseWebSocket {
                     context.error = errorIfAny;
                     context.asyncHandle.complete(errorIfAny);
                 }
-                if (!proxyListeners.isEmpty()) {
-                    for (ProxyListener proxyListener : proxyListeners) {
+                if (proxyListeners.responseBodyChunkReceivedFromTarget.length > 0) {
+                    for (ProxyListener proxyListener : proxyListeners.responseBodyChunkReceivedFromTarget) {
                         proxyListener.onResponseBodyChunkReceivedFromTarget(context, byteBuffer);
                     }
                 }
@@ -551,6 +913,53 @@ class RouterSocketV3 extends BaseWebSocket {
         });
     }
 
+    private boolean isOverSocketClientQueueLimit() {
+        return queuedToClientBytes.get() > webSocketFarmV3.flowControl().socketClientQueueLimit();
+    }
+
+    private void pausePull(RequestContext context, DoneCallback doneAndPullData) throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("routerName=" + route + ", routerSocketID=" + routerSocketID + ", pausing reads as "
+                + queuedToClientBytes.get() + " bytes of the socket are waiting to be written to clients");
+        }
+        final PausedPull paused = new PausedPull(context, doneAndPullData);
+        if (!pausedPull.compareAndSet(null, paused)) {
+            // the websocket only delivers one frame at a time, so there should never be two paused
+            doneAndPullData.onComplete(null);
+            return;
+        }
+        // the writes may have completed before the pull was paused
+        resumePullMaybe();
+    }
+
+    private void resumePullMaybe() {
+        final PausedPull paused = pausedPull.get();
+        if (paused != null && (!isOverSocketClientQueueLimit() || paused.context.state.isCompleted())
+            && pausedPull.compareAndSet(paused, null)) {
+            try {
+                paused.doneAndPullData.onComplete(null);
+            } catch (Exception e) {
+                log.warn("Error resuming reads from the connector", e);
+            }
+        }
+    }
+
+    private static final class PausedPull {
+        private final RequestContext context;
+        private final DoneCallback doneAndPullData;
+
+        private PausedPull(RequestContext context, DoneCallback doneAndPullData) {
+            this.context = context;
+            this.doneAndPullData = doneAndPullData;
+        }
+    }
+
+    private void sendWindowUpdate(int requestId, int bytes) {
+        if (!state().endState()) {
+            sendPooledFrame(windowUpdateFrame(requestId, bytes), DoneCallback.NoOp);
+        }
+    }
+
     public String connectorInstanceID() {
         return connectorInstanceID;
     }
@@ -563,92 +972,62 @@ class RouterSocketV3 extends BaseWebSocket {
         return remoteAddress;
     }
 
+    boolean isDarkModeOn(Set<DarkHost> darkHosts) {
+        final InetSocketAddress address = serviceAddress();
+        if (address == null) {
+            return false;
+        }
+        for (DarkHost darkHost : darkHosts) {
+            if (darkHost.sameHost(address.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public String getClientIp() {
         return clientIp;
     }
 
     public String getProtocol() {
-        return "cranker_3.0";
+        return headerEncoder == null ? "cranker_3.0" : "cranker_3.1";
     }
 
-    private static void putHeadersTo(MuResponse response, CrankerProtocolResponse protocolResponse) {
+    private static void putHeadersTo(MuResponse response, ResponseHeadParser responseHead) {
         response.headers().remove("date"); // Remove cranker-router's date because we want to use the target server's date
-        for (String line : protocolResponse.headers) {
-            int pos = line.indexOf(':');
-            if (pos > 0) {
-                String header = line.substring(0, pos);
-                String lowerHeader = header.toLowerCase();
-                if (!HOP_BY_HOP.contains(lowerHeader) && !RESPONSE_HEADERS_TO_NOT_SEND_BACK.contains(lowerHeader)) {
-                    String value = line.substring(pos + 1);
-                    response.headers().add(lowerHeader, value);
-                }
+        // hop-by-hop headers and the headers in RESPONSE_HEADERS_TO_NOT_SEND_BACK are already skipped by the parser
+        final String connection = responseHead.connection();
+        for (int i = 0; i < responseHead.headerCount(); i++) {
+            final String name = responseHead.name(i);
+            if (!HeaderFilter.isConnectionOption(connection, name)) {
+                response.headers().add(name, responseHead.value(i));
             }
         }
-
-        List<String> customHopByHop = CrankerMuHandler.getCustomHopByHopHeaders(response.headers().get(HeaderNames.CONNECTION));
-        for (String header : customHopByHop) {
-            response.headers().remove(header);
-        }
-
     }
 
-    static ByteBuffer windowUpdateMessage(Integer requestId, Integer windowUpdate) {
-        return ByteBuffer.allocate(10)
-            .put(MESSAGE_TYPE_WINDOW_UPDATE) // 1 byte
-            .put((byte) 0) // 1 byte, flags unused
-            .putInt(requestId) // 4 byte
-            .putInt(windowUpdate) // 4 byte
-            .rewind();
+    private ByteBuf windowUpdateFrame(int requestId, int windowUpdate) {
+        return webSocketFarmV3.framePool().acquire(10)
+            .writeByte(MESSAGE_TYPE_WINDOW_UPDATE) // 1 byte
+            .writeByte(0) // 1 byte, flags unused
+            .writeInt(requestId) // 4 byte
+            .writeInt(windowUpdate); // 4 byte
     }
 
-    static ByteBuffer rstMessage(Integer requestId, Integer errorCode, String message) {
-        final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
-        return ByteBuffer.allocate(10 + bytes.length)
-            .put(MESSAGE_TYPE_RST_STREAM) // 1 byte
-            .put((byte) 0) // 1 byte, flags unused
-            .putInt(requestId) // 4 byte
-            .putInt(errorCode) // 4 byte
-            .put(bytes)
-            .rewind();
-    }
-
-    static ByteBuffer[] headerMessages(Integer requestId, boolean isHeaderEnd, boolean isStreamEnd, String fullHeaderLine) {
-        final int chunkSize = 16000;
-        if (fullHeaderLine.length() < chunkSize) {
-            return new ByteBuffer[]{headerMessage(requestId, isHeaderEnd, isStreamEnd, fullHeaderLine)};
-        }
-
-        List<ByteBuffer> buffers = new ArrayList<>();
-        for (int i = 0; i < fullHeaderLine.length(); i += chunkSize) {
-            final int endIndex = Math.min(fullHeaderLine.length(), i + chunkSize);
-            final boolean isLast = endIndex == fullHeaderLine.length();
-            buffers.add(headerMessage(requestId, isLast, isStreamEnd, fullHeaderLine.substring(i, endIndex)));
+    private ByteBuf rstFrame(int requestId, int errorCode, String message) {
+        final FrameBufferPool framePool = webSocketFarmV3.framePool();
+        final int length = 10 + ByteBufUtil.utf8Bytes(message);
+        final ByteBuf frame = framePool.acquire(length);
+        try {
+            frame.writeByte(MESSAGE_TYPE_RST_STREAM) // 1 byte
+                .writeByte(0) // 1 byte, flags unused
+                .writeInt(requestId) // 4 byte
+                .writeInt(errorCode); // 4 byte
+            ByteBufUtil.writeUtf8(frame, message);
+            return frame;
+        } catch (Throwable e) {
+            framePool.release(frame);
+            throw e;
         }
-        return buffers.toArray(new ByteBuffer[0]);
-    }
-
-    static ByteBuffer headerMessage(Integer requestId, boolean isHeaderEnd, boolean isStreamEnd, String headerLine) {
-        int flags = 0;
-        if (isStreamEnd) flags = flags | 1; // first bit 00000001
-        if (isHeaderEnd) flags = flags | 4; // third bit 00000100
-        final byte[] bytes = headerLine.getBytes(StandardCharsets.UTF_8);
-        return ByteBuffer.allocate(6 + bytes.length)
-            .put(MESSAGE_TYPE_HEADER) // 1 byte
-            .put((byte) flags) // 1 byte
-            .putInt(requestId) // 4 byte
-            .put(bytes)
-            .rewind();
-    }
-
-    static ByteBuffer dataMessages(Integer requestId, boolean isEnd, ByteBuffer buffer) {
-        // TODO split if too large
-        final ByteBuffer message = ByteBuffer.allocate(6 + (buffer == null ? 0 : buffer.remaining()))
-            .put(MESSAGE_TYPE_DATA) // 1 byte
-            .put((byte) (isEnd ? 1 : 0)) // 1 byte
-            .putInt(requestId); // 4 byte
-        if (buffer != null) message.put(buffer);
-        message.rewind();
-        return message;
     }
 
     public enum StreamState {
@@ -671,8 +1050,7 @@ class RouterSocketV3 extends BaseWebSocket {
 
     public class RequestContext implements ProxyInfo {
 
-        final private static int WATER_MARK_HIGH = 64 * 1024;
-        final private static int WATER_MARK_LOW = 16 * 1024;
+        final private static long RELEASED = Long.MIN_VALUE;
 
         // wss tunnel
         final private AtomicInteger wssReceivedAckBytes = new AtomicInteger(0);
@@ -681,6 +1059,13 @@ class RouterSocketV3 extends BaseWebSocket {
         final private AtomicBoolean isWssWriting = new AtomicBoolean(false);
         final private Queue<Runnable> wssWriteCallbacks = new ConcurrentLinkedQueue<>();
         final AtomicLong wssOnBinaryCallCount = new AtomicLong();
+        // this stream's share of the socket's unacked bytes, or RELEASED once the stream is removed from the socket
+        final private AtomicLong socketUnackedShare = new AtomicLong(0);
+        // bytes forwarded to the client that have not been acknowledged to the connector yet
+        final WindowUpdateCoalescer.Stream acks;
+        final StreamWindow window = new StreamWindow(flowControlWindow, windowBudget);
+        // response bytes that have been pulled from the connector but not yet written to the client
+        final AtomicInteger queuedToClientBytes = new AtomicInteger(0);
 
         final public Integer requestId;
         final public MuRequest request;
@@ -690,23 +1075,29 @@ class RouterSocketV3 extends BaseWebSocket {
         // client
         final AtomicLong fromClientBytes = new AtomicLong();
         final AtomicLong toClientBytes = new AtomicLong();
+        final long startNanos = System.nanoTime();
 
         long durationMillis = 0;
         volatile Throwable error = null;
         volatile boolean isRstStreamSent = false;
         StreamState state = StreamState.OPEN;
-        StringBuilder headerLineBuilder;
+        ResponseHeadParser responseHead;
+        // the request body frames waiting to be written, if the request has a body
+        volatile FrameScheduler.Stream dataFrames;
 
         public RequestContext(Integer requestId, MuRequest request, MuResponse response, AsyncHandle asyncHandle) {
             this.requestId = requestId;
             this.request = request;
             this.response = response;
             this.asyncHandle = asyncHandle;
+            this.acks = webSocketFarmV3.windowUpdates().newStream(webSocketFarmV3.windowUpdates().scheduler(), bytes -> sendWindowUpdate(requestId, bytes));
         }
 
         void sendingBytes(int sendingBytes) {
             this.isWssSending.addAndGet(sendingBytes);
-            if (this.isWssSending.get() > WATER_MARK_HIGH) {
+            addToSocketUnacked(sendingBytes);
+            window.onSent(sendingBytes);
+            if (this.isWssSending.get() > window.highWaterMark()) {
                 isWssWritable.compareAndSet(true, false);
             }
         }
@@ -714,13 +1105,31 @@ class RouterSocketV3 extends BaseWebSocket {
         void ackedBytes(int ack) {
             this.wssReceivedAckBytes.addAndGet(ack);
             this.isWssSending.addAndGet(-ack);
-            if (isWssSending.get() < WATER_MARK_LOW) {
+            addToSocketUnacked(-ack);
+            window.onAcked(ack);
+            if (isWssSending.get() < window.lowWaterMark()) {
                 if (isWssWritable.compareAndSet(false, true)) {
                     writeItMaybe();
                 }
             }
         }
 
+        private void addToSocketUnacked(long delta) {
+            long current;
+            do {
+                current = socketUnackedShare.get();
+                if (current == RELEASED) return;
+            } while (!socketUnackedShare.compareAndSet(current, current + delta));
+            unackedBytes.addAndGet(delta);
+        }
+
+        void releaseUnackedBytes() {
+            final long share = socketUnackedShare.getAndSet(RELEASED);
+            if (share != RELEASED) {
+                unackedBytes.addAndGet(-share);
+            }
+        }
+
         void flowControl(Runnable runnable) {
             if (isWssWritable.get() && !isWssWriting.get()) {
                 runnable.run();
@@ -0,0 +1,60 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A small request body with a known length, read into one pooled buffer so that it can be sent in the same frame as
+ * the request head.
+ * <p>The pool may give a buffer that is bigger than the body, so the length is checked against the content-length
+ * rather than the space left in the buffer.</p>
+ */
+final class SingleFrameBody {
+
+    private final FrameBufferPool framePool;
+    private final int length;
+    private final ByteBuf buffer;
+    private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+    /**
+     * @param framePool the pool to take the buffer from
+     * @param length    the content-length of the body
+     */
+    SingleFrameBody(FrameBufferPool framePool, int length) {
+        this.framePool = framePool;
+        this.length = length;
+        this.buffer = framePool.acquire(length);
+    }
+
+    /**
+     * Copies a chunk of the body, unless it would make the body longer than its content-length.
+     *
+     * @param chunk the next bytes of the body, which are consumed if they fit
+     * @return false if the body is longer than its content-length, in which case nothing is copied
+     */
+    boolean append(ByteBuffer chunk) {
+        if (chunk.remaining() > length - buffer.writerIndex()) {
+            return false;
+        }
+        buffer.writeBytes(chunk);
+        return true;
+    }
+
+    /**
+     * @return the bytes of the body received so far
+     */
+    ByteBuf buffer() {
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to the pool. This may be called more than once.
+     */
+    void release() {
+        if (isReleased.compareAndSet(false, true)) {
+            framePool.release(buffer);
+        }
+    }
+}
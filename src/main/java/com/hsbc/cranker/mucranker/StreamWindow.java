@@ -0,0 +1,108 @@
+package com.hsbc.cranker.mucranker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * The flow control window of one V3 request.
+ * <p>The request stops reading its body when more than {@link #highWaterMark()} bytes are unacknowledged, and
+ * resumes once fewer than {@link #lowWaterMark()} are.</p>
+ * <p>When auto-tuned, the window is sized like HTTP/2 BDP estimation: a sample starts when a byte is sent and ends
+ * when that byte is acknowledged. The bytes acknowledged during the sample, scaled down by how much longer the
+ * sample took than the shortest round trip seen, estimate the bandwidth-delay product. If that is close to the
+ * window then the window was the limit, so it grows to twice the estimate, taking the extra bytes from the socket's
+ * budget.</p>
+ */
+final class StreamWindow {
+
+    private final FlowControlWindow config;
+    private final AtomicLong socketBudget;
+    private final LongSupplier nanoClock;
+    private final AtomicLong sentBytes = new AtomicLong();
+    private volatile int size;
+
+    // guarded by this
+    private long ackedBytes;
+    private long sampleEndBytes;
+    private long sampleStartAcked;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long reservedBytes;
+    private volatile long sampleStartNanos = -1;
+
+    StreamWindow(FlowControlWindow config, AtomicLong socketBudget) {
+        this(config, socketBudget, System::nanoTime);
+    }
+
+    StreamWindow(FlowControlWindow config, AtomicLong socketBudget, LongSupplier nanoClock) {
+        this.config = config;
+        this.socketBudget = socketBudget;
+        this.nanoClock = nanoClock;
+        this.size = config.initialSize();
+    }
+
+    int highWaterMark() {
+        return size;
+    }
+
+    int lowWaterMark() {
+        return size / 4;
+    }
+
+    void onSent(int bytes) {
+        final long total = sentBytes.addAndGet(bytes);
+        if (config.isAutoTuned() && sampleStartNanos == -1) {
+            synchronized (this) {
+                if (sampleStartNanos == -1) {
+                    sampleEndBytes = total;
+                    sampleStartAcked = ackedBytes;
+                    sampleStartNanos = nanoClock.getAsLong();
+                }
+            }
+        }
+    }
+
+    void onAcked(int bytes) {
+        if (!config.isAutoTuned()) {
+            return;
+        }
+        synchronized (this) {
+            ackedBytes += bytes;
+            if (sampleStartNanos == -1 || ackedBytes < sampleEndBytes) {
+                return;
+            }
+            final long rttNanos = Math.max(1, nanoClock.getAsLong() - sampleStartNanos);
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+            final long bdp = (ackedBytes - sampleStartAcked) * minRttNanos / rttNanos;
+            if (bdp * 3 >= size * 2L) {
+                grow((int) Math.min(config.maxSize(), 2 * bdp));
+            }
+            sampleStartNanos = -1;
+        }
+    }
+
+    private void grow(int target) {
+        final int wanted = target - size;
+        if (wanted <= 0) {
+            return;
+        }
+        long available;
+        long taken;
+        do {
+            available = socketBudget.get();
+            taken = Math.min(wanted, available);
+            if (taken <= 0) {
+                return;
+            }
+        } while (!socketBudget.compareAndSet(available, available - taken));
+        reservedBytes += taken;
+        size += (int) taken;
+    }
+
+    /**
+     * Returns the bytes this window took from the socket's budget, once the request is complete.
+     */
+    synchronized void release() {
+        socketBudget.addAndGet(reservedBytes);
+        reservedBytes = 0;
+    }
+}
@@ -1,5 +1,6 @@
 package com.hsbc.cranker.mucranker;
 
+import io.muserver.HeaderNames;
 import io.muserver.MuRequest;
 import io.muserver.MuResponse;
 import io.muserver.Mutils;
@@ -8,12 +9,11 @@ import io.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.ObjLongConsumer;
-import java.util.stream.Collectors;
 
 class WebSocketFarm {
     private static final Logger log = LoggerFactory.getLogger(WebSocketFarm.class);
@@ -22,23 +22,30 @@ class WebSocketFarm {
 
     private final RouteResolver routeResolver;
 
-    private final Map<String, Queue<RouterSocket>> sockets = new ConcurrentHashMap<>();
-    private final Map<String, Queue<WaitingSocketTask>> waitingTasks = new ConcurrentHashMap<>();
+    /**
+     * The socket pool of each route and the route lookup compiled from the same set of routes, published together
+     * so that a route that can be resolved always has a pool, and the other way round.
+     */
+    private volatile Routes routes;
     private final Map<String, Long> routeLastRemovalTimes = new ConcurrentHashMap<>();
 
-    private final AtomicInteger idleCount = new AtomicInteger(0);
-    private final AtomicInteger waitingTaskCount = new AtomicInteger(0);
-
     private final ConcurrentHashMap.KeySetView<DarkHost, Boolean> darkHosts = ConcurrentHashMap.newKeySet();
     private volatile boolean hasCatchAll = false;
     private final long maxWaitInMillis;
+    private final ConnectorLatencies connectorLatencies;
+    private final RouteSocketPool.WaitingLimits waitingLimits;
+    private final String retryAfterSeconds;
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "websocket-farm-execution"));
     private final HashedWheelTimer timer = new HashedWheelTimer(runnable -> new Thread(runnable, "websocket-farm-timer"));
 
-    public WebSocketFarm(RouteResolver routeResolver, long maxWaitInMillis) {
+    public WebSocketFarm(RouteResolver routeResolver, long maxWaitInMillis, ConnectorLatencies connectorLatencies,
+                         int maxWaitingPerRoute, int maxWaiting) {
         this.routeResolver = routeResolver;
         this.maxWaitInMillis = maxWaitInMillis;
+        this.connectorLatencies = connectorLatencies;
+        this.waitingLimits = new RouteSocketPool.WaitingLimits(maxWaitingPerRoute, maxWaiting);
+        this.retryAfterSeconds = String.valueOf(Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(maxWaitInMillis + 999)));
+        this.routes = new Routes(Collections.emptyMap(), CompiledRoutes.empty(routeResolver));
     }
 
     public void start() {
@@ -47,98 +54,87 @@ class WebSocketFarm {
 
     public void stop() {
         timer.stop();
-        executor.shutdown();
-        for (Queue<RouterSocket> queue : sockets.values()) {
-            for (RouterSocket routerSocket : queue) {
+        final Map<String, RouteSocketPool> pools;
+        synchronized (this) {
+            pools = routes.pools;
+            routes = new Routes(Collections.emptyMap(), CompiledRoutes.empty(routeResolver));
+        }
+        for (RouteSocketPool pool : pools.values()) {
+            for (RouterSocket routerSocket : pool.idleSockets()) {
                 routerSocket.socketSessionClose();
             }
         }
-        sockets.clear();
-        waitingTasks.clear();
     }
 
     public void cleanRoutes(long routesKeepTimeMillis) {
         final long cutoffTime = System.currentTimeMillis() - routesKeepTimeMillis;
-        this.sockets.entrySet().stream()
-            .filter(entry -> entry.getValue() != null
-                && entry.getValue().isEmpty()
-                && routeLastRemovalTimes.containsKey(entry.getKey())
-                && routeLastRemovalTimes.get(entry.getKey()) < cutoffTime)
-            .forEach(entry -> {
-                log.info("removing registration info for {}, consequence requests to {} will receive 404", entry.getKey(), entry.getKey());
-                this.sockets.remove(entry.getKey());
-                this.routeLastRemovalTimes.remove(entry.getKey());
-            });
+        for (Map.Entry<String, RouteSocketPool> entry : routes.pools.entrySet()) {
+            final String route = entry.getKey();
+            final RouteSocketPool pool = entry.getValue();
+            final Long lastRemovalTime = routeLastRemovalTimes.get(route);
+            if (pool.isEmpty() && lastRemovalTime != null && lastRemovalTime < cutoffTime && pool.retireIfUnused()) {
+                log.info("removing registration info for {}, consequence requests to {} will receive 404", route, route);
+                removeRoute(route, pool);
+                this.routeLastRemovalTimes.remove(route);
+            } else {
+                pool.pruneHostGroups();
+            }
+        }
+    }
+
+    /**
+     * Resolves the target against the routes of this farm.
+     *
+     * @param target the full path of the request
+     * @return the matching route, or &quot;*&quot; or null if no specific route matches; see {@link CompiledRoutes#routeKey(String, boolean)}
+     */
+    String resolveRoute(String target) {
+        return routes.compiled.resolve(target);
     }
 
-    public boolean canHandle(String target, boolean useCatchAll) {
-        final String routeKey = resolveRouteKey(target, useCatchAll);
+    public boolean canHandle(String routeKey) {
         if (routeKey == null) return false;
-        final Queue<RouterSocket> routerSockets = sockets.get(routeKey);
-        if (routerSockets != null && !routerSockets.isEmpty()) return true;
+        final RouteSocketPool pool = routes.pools.get(routeKey);
+        if (pool != null && !pool.isEmpty()) return true;
         return routeLastRemovalTimes.containsKey(routeKey)
             && (System.currentTimeMillis() - routeLastRemovalTimes.get(routeKey) < this.maxWaitInMillis);
     }
 
     public int idleCount() {
-        return this.idleCount.get();
+        int count = 0;
+        for (RouteSocketPool pool : routes.pools.values()) {
+            count += pool.idleCount();
+        }
+        return count;
     }
 
-    public void removeWebSocketAsync(String route, RouterSocket socket, Runnable onRemoveSuccess) {
-        executor.submit(() -> ThrowingFunction.logIfFail(() -> {
-
+    public void removeWebSocket(String route, RouterSocket socket, Runnable onRemoveSuccess) {
+        ThrowingFunction.logIfFail(() -> {
             routeLastRemovalTimes.put(route, System.currentTimeMillis());
-
-            boolean removed = false;
-            Queue<RouterSocket> routerSockets = sockets.get(route);
-            if (routerSockets != null) {
-                removed = routerSockets.remove(socket);
-            }
-            if (removed) {
-                idleCount.decrementAndGet();
+            final RouteSocketPool pool = routes.pools.get(route);
+            if (pool != null && pool.remove(socket)) {
                 onRemoveSuccess.run();
             }
-        }));
+        });
     }
 
-    public void addWebSocketAsync(String route, RouterSocket socket) {
+    public void addWebSocket(String route, RouterSocket socket) {
         // for catchAll route, route="*"
-        executor.submit(() -> ThrowingFunction.logIfFail(() -> addWebSocketSync(route, socket)));
-    }
-
-    private void addWebSocketSync(String route, RouterSocket socket) {
-
-        if (socket.isCatchAll()) {
-            hasCatchAll = true;
-        }
-
-        // if there are requests waiting for a socket to this route, then immediately pass the socket to the request
-        final Queue<WaitingSocketTask> waiting = waitingTasks.get(route);
-        if (waiting != null && !waiting.isEmpty()) {
-            final WaitingSocketTask waitTask = waiting.poll();
-            if (waitTask != null) {
-                waitTask.notifySuccess(socket);
-                return;
+        ThrowingFunction.logIfFail(() -> {
+            if (socket.isCatchAll()) {
+                hasCatchAll = true;
             }
-        }
-
-        // There are no pending client requests for this socket's route, so add it to the idle queue
-        sockets.putIfAbsent(route, new ConcurrentLinkedQueue<>());
-        Queue<RouterSocket> queue = sockets.get(route);
-        if (queue.offer(socket)) {
-            idleCount.incrementAndGet();
-        }
+            // if there are requests waiting for a socket to this route, then the pool immediately passes the socket
+            // to the request, otherwise it is added to the idle queue. A retired pool was just cleaned up, so retry.
+            RouteSocketPool pool;
+            while (!(pool = routePool(route)).offer(socket)) {
+                removeRoute(route, pool);
+            }
+        });
     }
 
-    private RouterSocket getRouterSocket(String routeKey) {
-        Queue<RouterSocket> routerSockets = sockets.get(routeKey);
-        RouterSocket socket;
-        if (darkHosts.isEmpty()) {
-            socket = routerSockets.poll();
-        } else {
-            socket = getNonDarkSocket(routerSockets, this.darkHosts);
-        }
-        return socket;
+    void recordTimeToFirstByte(String route, String connectorInstanceID, long nanos) {
+        connectorLatencies.record(route, connectorInstanceID, nanos);
     }
 
     private long peekTime(long start) {
@@ -148,18 +144,19 @@ class WebSocketFarm {
     /**
      * Attempts to get a websocket to send a request on.
      *
-     * @param target         The full path of the request, for example <code>/some-service/blah</code> (in which a socket
-     *                       for the <code>some-service</code> route would be looked up)
-     * @param useCatchall    true mean fallback to "*" route when can't find specific route, otherwise just reject
+     * @param routeKey       The route to get a socket for, as resolved by {@link #resolveRoute(String)}, or null if
+     *                       there is no matching route
+     * @param target         The full path of the request, for example <code>/some-service/blah</code>
      * @param clientRequest  {@link MuRequest} for providing info while acquiring socket
      * @param clientResponse {@link MuResponse} for providing info while acquiring socket
      * @param onSuccess      A callback if this is successful. If there is a socket already waiting then this is executed
      *                       immediately on the same thread. If no sockets are available for the given target, then it will
-     *                       wait for notification in another thread until it's timeout
-     *                       (based on the value set with {@link CrankerRouterBuilder#withConnectorMaxWaitInMillis(long)})
-     * @param onFailure      A callback if this is failed, e.g. wait till timeout and no socket available
+     *                       be executed on the thread of the connector socket that becomes available, unless the wait times
+     *                       out (based on the value set with {@link CrankerRouterBuilder#withConnectorMaxWaitInMillis(long)})
+     * @param onFailure      A callback if this is failed, e.g. wait till timeout and no socket available, or too
+     *                       many requests are already waiting (in which case a <code>Retry-After</code> header is set)
      */
-    public void acquireSocket(String target, boolean useCatchall, MuRequest clientRequest, MuResponse clientResponse,
+    public void acquireSocket(String routeKey, String target, MuRequest clientRequest, MuResponse clientResponse,
                               ObjLongConsumer<RouterSocket> onSuccess, SocketAcquireFailedListener onFailure) {
 
         // do nothing if response already ended
@@ -169,76 +166,119 @@ class WebSocketFarm {
             return;
         }
 
-        final String routeKey = resolveRouteKey(target, useCatchall);
         if (routeKey == null) {
-            onFailure.accept(404, 0L, "404 Not Found", "Page not found");
+            onFailure.accept(AcquireFailureReason.NO_ROUTE, 404, 0L, "404 Not Found", "Page not found");
             return;
         }
 
         // 404 if no catchAll routes
         if ("*".equals(routeKey) && !hasCatchAll) {
-            onFailure.accept(404, 0L, "404 Not Found", "Page not found");
+            onFailure.accept(AcquireFailureReason.NO_ROUTE, 404, 0L, "404 Not Found", "Page not found");
             return;
         }
 
-        // handle route, it might get available socket immediately, or wait for notification
-        final long[] startTime = new long[]{System.currentTimeMillis()};
-        executor.submit(() -> ThrowingFunction.logIfFail(() -> {
+        // fast path: take an idle socket on this thread without any locking or thread hand-off
+        final long startTime = System.currentTimeMillis();
+        RouteSocketPool pool = routes.pools.get(routeKey);
+        final RouterSocket idleSocket = pool == null ? null : pool.poll();
+        if (idleSocket != null) {
+            routeLastRemovalTimes.put(routeKey, System.currentTimeMillis());
+            onSuccess.accept(idleSocket, peekTime(startTime));
+            return;
+        }
+
+        // slow path: wait for a socket to be added, or for the wait to time out
+        final WaitingSocketTask waitingSocketTask = new WaitingSocketTask(target);
+        waitingSocketTask.onSuccess((socket) -> {
+            // called on the thread that handed over the socket, at most once
+            final Timeout timeoutHandle = waitingSocketTask.timeoutHandle;
+            if (timeoutHandle != null) {
+                timeoutHandle.cancel();
+            }
+            if (clientResponse.responseState().endState()) {
+                log.info("Connector available, but client response state is {}, skip processing, muid={}",
+                    clientResponse.responseState(), clientRequest.attribute(MU_ID));
 
-            final RouterSocket routerSocket = getRouterSocket(routeKey);
-            if (routerSocket != null) {
-                idleCount.decrementAndGet();
+                addWebSocket(routeKey, socket); // return the socket back
+            } else {
                 routeLastRemovalTimes.put(routeKey, System.currentTimeMillis());
-                onSuccess.accept(routerSocket, peekTime(startTime[0]));
-                return;
+                onSuccess.accept(socket, peekTime(startTime));
             }
+        });
+
+        RouteSocketPool.WaitOutcome outcome;
+        while ((outcome = (pool = routePool(routeKey)).pollOrWait(waitingSocketTask)) == RouteSocketPool.WaitOutcome.RETIRED) {
+            removeRoute(routeKey, pool);
+        }
+        if (outcome != RouteSocketPool.WaitOutcome.ACCEPTED) {
+            // fail fast rather than holding yet another client connection open while connectors are unavailable
+            final boolean routeLimit = outcome == RouteSocketPool.WaitOutcome.ROUTE_LIMIT_REACHED;
+            clientResponse.headers().set(HeaderNames.RETRY_AFTER, retryAfterSeconds);
+            onFailure.accept(routeLimit ? AcquireFailureReason.ROUTE_WAITING_LIMIT_REACHED : AcquireFailureReason.WAITING_LIMIT_REACHED,
+                503, peekTime(startTime), "503 Service Unavailable",
+                routeLimit ? "Too many requests are waiting for a cranker connector for this route"
+                    : "Too many requests are waiting for cranker connectors");
+            return;
+        }
+        if (waitingSocketTask.isNotified()) {
+            return;
+        }
 
-            waitingTasks.putIfAbsent(routeKey, new ConcurrentLinkedQueue<>());
-            final Queue<WaitingSocketTask> waiting = waitingTasks.get(routeKey);
-
-            final WaitingSocketTask waitingSocketTask = new WaitingSocketTask(target);
-
-            final Timeout timeoutHandle = timer.newTimeout((timeout) -> executor.submit(() -> ThrowingFunction.logIfFail(() -> {
-                if (timeout.isCancelled()) {
-                    return;
-                }
-                waiting.remove(waitingSocketTask);
-                waitingTaskCount.decrementAndGet();
-                onFailure.accept(503, peekTime(startTime[0]), "503 Service Unavailable",
-                    String.format("No cranker connectors available within %s ms", maxWaitInMillis));
-            })), this.maxWaitInMillis, TimeUnit.MILLISECONDS);
-
-            waitingSocketTask
-                .onSuccess((socket) -> {
-                    // caller run it with executor (single thread)
-                    waiting.remove(waitingSocketTask);
-                    waitingTaskCount.decrementAndGet();
-                    timeoutHandle.cancel();
-                    if (clientResponse.responseState().endState()) {
-                        log.info("Connector available, but client response state is {}, skip processing, muid={}",
-                            clientResponse.responseState(), clientRequest.attribute(MU_ID));
-
-                        addWebSocketSync(routeKey, socket); // return the socket back
-                    } else {
-                        routeLastRemovalTimes.put(routeKey, System.currentTimeMillis());
-                        onSuccess.accept(socket, peekTime(startTime[0]));
-                    }
-                });
-
-
-            if (waiting.offer(waitingSocketTask)) {
-                waitingTaskCount.incrementAndGet();
+        final RouteSocketPool waitingPool = pool;
+        waitingSocketTask.timeoutHandle = timer.newTimeout((timeout) -> ThrowingFunction.logIfFail(() -> {
+            if (timeout.isCancelled() || !waitingPool.cancel(waitingSocketTask)) {
+                return;
             }
+            onFailure.accept(AcquireFailureReason.TIMEOUT, 503, peekTime(startTime), "503 Service Unavailable",
+                String.format("No cranker connectors available within %s ms", maxWaitInMillis));
+        }), this.maxWaitInMillis, TimeUnit.MILLISECONDS);
+    }
 
-        }));
+    private RouteSocketPool routePool(String route) {
+        final RouteSocketPool pool = routes.pools.get(route);
+        return pool != null ? pool : addRoute(route);
     }
 
-    private String resolveRouteKey(String target, boolean useCatchAll) {
-        String resolved = routeResolver.resolve(sockets.keySet(), target);
-        if (!useCatchAll && (resolved == null || "*".equals(resolved))) {
-            return null;
-        } else {
-            return Objects.requireNonNullElse(resolved, "*");
+    /**
+     * Adds a pool for a new route and rebuilds the route lookup. Routes are only added and removed while holding
+     * this farm's lock, and each change publishes the pools and the lookup built from them in one write.
+     */
+    private synchronized RouteSocketPool addRoute(String route) {
+        final Routes current = routes;
+        final RouteSocketPool existing = current.pools.get(route);
+        if (existing != null) {
+            return existing;
+        }
+        final RouteSocketPool pool = new RouteSocketPool(route, connectorLatencies, waitingLimits, darkHosts);
+        final Map<String, RouteSocketPool> pools = new HashMap<>(current.pools);
+        pools.put(route, pool);
+        routes = new Routes(pools, CompiledRoutes.compile(routeResolver, pools.keySet()));
+        return pool;
+    }
+
+    /**
+     * Removes the pool of a route, if it is still the given pool, and rebuilds the route lookup.
+     */
+    private synchronized void removeRoute(String route, RouteSocketPool pool) {
+        final Routes current = routes;
+        if (current.pools.get(route) != pool) {
+            return;
+        }
+        final Map<String, RouteSocketPool> pools = new HashMap<>(current.pools);
+        pools.remove(route);
+        routes = new Routes(pools, CompiledRoutes.compile(routeResolver, pools.keySet()));
+    }
+
+    /**
+     * An immutable snapshot of the routes of this farm.
+     */
+    private static final class Routes {
+        private final Map<String, RouteSocketPool> pools;
+        private final CompiledRoutes compiled;
+
+        private Routes(Map<String, RouteSocketPool> pools, CompiledRoutes compiled) {
+            this.pools = Collections.unmodifiableMap(pools);
+            this.compiled = compiled;
         }
     }
 
@@ -255,16 +295,20 @@ class WebSocketFarm {
         }
     }
 
-    private static class WaitingSocketTask {
+    static class WaitingSocketTask {
 
         private final String target;
         private Consumer<RouterSocket> successListener;
+        private volatile boolean notified;
+        volatile Timeout timeoutHandle;
+        volatile IndexedQueue.Node<WaitingSocketTask> waitingNode;
 
         public WaitingSocketTask(String target) {
             this.target = target;
         }
 
         public void notifySuccess(RouterSocket socket) {
+            this.notified = true;
             if (this.successListener != null) {
                 this.successListener.accept(socket);
             }
@@ -275,52 +319,43 @@ class WebSocketFarm {
             return this;
         }
 
-        public String getTarget() {
-            return target;
+        public boolean isNotified() {
+            return notified;
         }
-    }
 
-
-    private RouterSocket getNonDarkSocket(Queue<RouterSocket> routerSockets, ConcurrentHashMap.KeySetView<DarkHost, Boolean> darkHosts) {
-        for (RouterSocket candidate : routerSockets) {
-            if (candidate.isDarkModeOn(darkHosts)) {
-                continue;
-            }
-            boolean removed = routerSockets.remove(candidate);
-            if (removed) {
-                return candidate;
-            }
+        public String getTarget() {
+            return target;
         }
-        return null;
     }
 
     public void deRegisterSocket(String target, String remoteAddr, String connectorInstanceID) {
         log.info("Going to deregister targetName=" + target + " and the targetAddr=" + remoteAddr + " and the connectorInstanceID=" + connectorInstanceID);
-        Queue<RouterSocket> routerSockets = sockets.get(target);
-        if (routerSockets != null) {
-            routerSockets.forEach(a -> removeSockets(connectorInstanceID, a));
+        RouteSocketPool pool = routes.pools.get(target);
+        if (pool != null) {
+            pool.idleSockets().forEach(a -> removeSockets(connectorInstanceID, a));
         }
     }
 
     private void removeSockets(String connectorInstanceID, RouterSocket routerSocket) {
         String currentConnectorInstanceID = routerSocket.connectorInstanceID();
         if (currentConnectorInstanceID.equals(connectorInstanceID)) {
-            removeWebSocketAsync(routerSocket.route, routerSocket, routerSocket::socketSessionClose);
+            removeWebSocket(routerSocket.route, routerSocket, routerSocket::socketSessionClose);
         }
     }
 
-    Map<String, Queue<RouterSocket>> getSockets() {
-        return sockets;
+    Map<String, List<RouterSocket>> getSockets() {
+        Map<String, List<RouterSocket>> result = new HashMap<>();
+        routes.pools.forEach((key, value) -> result.put(key, value.idleSockets()));
+        return result;
     }
 
     Map<String, List<String>> getWaitingTasks() {
         Map<String, List<String>> result = new HashMap<>();
-        waitingTasks.forEach((key, value) -> result.put(
-            key,
-            value.stream()
-                .map(WaitingSocketTask::getTarget)
-                .collect(Collectors.toList())
-        ));
+        routes.pools.forEach((key, value) -> {
+            if (value.waitingCount() > 0) {
+                result.put(key, value.waitingTargets());
+            }
+        });
         return result;
     }
 
@@ -328,6 +363,7 @@ class WebSocketFarm {
         Mutils.notNull("darkHost", darkHost);
         boolean added = darkHosts.add(darkHost);
         if (added) {
+            updateDarkMode(darkHost.address());
             log.info("Enabled dark mode for " + darkHost);
         } else {
             log.info("Requested dark mode for " + darkHost + " but it was already in dark mode, so doing nothing.");
@@ -338,18 +374,32 @@ class WebSocketFarm {
         Mutils.notNull("darkHost", darkHost);
         boolean removed = darkHosts.remove(darkHost);
         if (removed) {
+            updateDarkMode(darkHost.address());
             log.info("Disabled dark mode for " + darkHost);
         } else {
             log.info("Requested to disable dark mode for " + darkHost + " but it was not in dark mode, so doing nothing.");
         }
     }
 
+    private void updateDarkMode(InetAddress address) {
+        boolean dark = false;
+        for (DarkHost darkHost : darkHosts) {
+            if (darkHost.sameHost(address)) {
+                dark = true;
+                break;
+            }
+        }
+        for (RouteSocketPool pool : routes.pools.values()) {
+            pool.setDarkMode(address, dark);
+        }
+    }
+
     Set<DarkHost> getDarkHosts() {
         return Set.copyOf(darkHosts);
     }
 
     interface SocketAcquireFailedListener {
-        void accept(int returnCode, long waitTimeInMillis, String header, String body);
+        void accept(AcquireFailureReason reason, int returnCode, long waitTimeInMillis, String header, String body);
     }
 
 
@@ -5,12 +5,12 @@ import io.muserver.MuResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -22,144 +22,221 @@ class WebSocketFarmV3 {
 
     private final AtomicInteger idleCount = new AtomicInteger(0);
     private final RouteResolver routeResolver;
-    private final Map<String, List<RouterSocketV3>> sockets = new ConcurrentHashMap<>();
+    private final LoadBalancingStrategy loadBalancingStrategy;
+    private final ConnectorLatencies connectorLatencies;
+    private final Map<String, RouteSockets> sockets = new ConcurrentHashMap<>();
     private final Map<String, Long> routeLastRemovalTimes = new ConcurrentHashMap<>();
-    private final Map<String, Integer> indexMap = new ConcurrentHashMap<>();
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable ->
-        new Thread(runnable, "websocket-farm-v3-execution"));
+    private volatile CompiledRoutes compiledRoutes;
+    private volatile Set<InetAddress> darkAddresses;
+    private final int maxFrameSize;
+    private final int maxResponseHeadSize;
+    private final RequestHeadEncoder requestHeadEncoder;
+    private final WindowUpdateCoalescer windowUpdates;
+    private final FlowControlSettings flowControl;
+    private final FrameBufferPool framePool;
 
-    public WebSocketFarmV3(RouteResolver routeResolver) {
+    public WebSocketFarmV3(RouteResolver routeResolver, LoadBalancingStrategy loadBalancingStrategy, ConnectorLatencies connectorLatencies,
+                           Set<InetAddress> darkAddresses, int maxFrameSize, int maxResponseHeadSize, WindowUpdateCoalescer windowUpdates,
+                           FlowControlSettings flowControl, FrameBufferPool framePool) {
         this.routeResolver = routeResolver;
+        this.loadBalancingStrategy = loadBalancingStrategy;
+        this.connectorLatencies = connectorLatencies;
+        this.darkAddresses = darkAddresses;
+        this.maxFrameSize = maxFrameSize;
+        this.maxResponseHeadSize = maxResponseHeadSize;
+        this.framePool = framePool;
+        this.requestHeadEncoder = new RequestHeadEncoder(framePool, maxFrameSize);
+        this.windowUpdates = windowUpdates;
+        this.flowControl = flowControl;
+        this.compiledRoutes = CompiledRoutes.empty(routeResolver);
     }
 
     public void start() {
     }
 
     public void stop() {
-        executor.shutdown();
-        for (List<RouterSocketV3> sockets : sockets.values()) {
-            for (RouterSocketV3 RouterSocketV3 : sockets) {
-                RouterSocketV3.socketSessionClose();
+        for (RouteSockets routeSockets : sockets.values()) {
+            for (RouterSocketV3 routerSocketV3 : routeSockets.sockets) {
+                routerSocketV3.socketSessionClose();
             }
         }
         sockets.clear();
+        recompileRoutes();
     }
 
     public void cleanRoutes(long routesKeepTimeMillis) {
         final long cutoffTime = System.currentTimeMillis() - routesKeepTimeMillis;
-        this.sockets.entrySet().stream()
-            .filter(entry -> entry.getValue() != null
-                && entry.getValue().isEmpty()
-                && routeLastRemovalTimes.containsKey(entry.getKey())
-                && routeLastRemovalTimes.get(entry.getKey()) < cutoffTime)
-            .forEach(entry -> {
-                log.info("removing registration info for {}, consequence requests to {} will receive 404", entry.getKey(), entry.getKey());
-                this.sockets.remove(entry.getKey());
-                this.routeLastRemovalTimes.remove(entry.getKey());
+        final boolean[] removed = new boolean[1];
+        for (String route : sockets.keySet()) {
+            // computeIfPresent is atomic with addWebSocket, so a socket registering at the same time is never dropped
+            sockets.computeIfPresent(route, (key, routeSockets) -> {
+                final Long lastRemovalTime = routeLastRemovalTimes.get(key);
+                if (routeSockets.isEmpty() && lastRemovalTime != null && lastRemovalTime < cutoffTime) {
+                    log.info("removing registration info for {}, consequence requests to {} will receive 404", key, key);
+                    routeLastRemovalTimes.remove(key);
+                    removed[0] = true;
+                    return null;
+                }
+                return routeSockets;
             });
+        }
+        if (removed[0]) {
+            recompileRoutes();
+        }
+    }
+
+    /**
+     * Resolves the target against the routes of this farm.
+     *
+     * @param target the full path of the request
+     * @return the matching route, or &quot;*&quot; or null if no specific route matches; see {@link CompiledRoutes#routeKey(String, boolean)}
+     */
+    String resolveRoute(String target) {
+        return compiledRoutes.resolve(target);
     }
 
-    public boolean canHandle(String target, boolean useCatchAll) {
-        final String routeKey = resolveRouteKey(target, useCatchAll);
+    /**
+     * @param routeKey the route, as resolved by {@link #resolveRoute(String)}
+     * @return true if the route has a socket that can be selected, i.e. one whose host is not in dark mode
+     */
+    public boolean canHandle(String routeKey) {
         if (routeKey == null) return false;
-        final List<RouterSocketV3> routeSockets = sockets.get(routeKey);
+        final RouteSockets routeSockets = sockets.get(routeKey);
+        return routeSockets != null && routeSockets.hasEligible();
+    }
+
+    /**
+     * @param routeKey the route, as resolved by {@link #resolveRoute(String)}
+     * @return true if the route has any sockets, even if they are all in dark mode
+     */
+    boolean hasSockets(String routeKey) {
+        if (routeKey == null) return false;
+        final RouteSockets routeSockets = sockets.get(routeKey);
         return routeSockets != null && !routeSockets.isEmpty();
     }
 
-    private String resolveRouteKey(String target, boolean useCatchAll) {
-        String resolved = routeResolver.resolve(sockets.keySet(), target);
-        if (!useCatchAll && (resolved == null || "*".equals(resolved))) {
-            return null;
-        } else {
-            return Objects.requireNonNullElse(resolved, "*");
-        }
+    /**
+     * Rebuilds the route lookup after routes are added or removed. This is serialised and always reads the current
+     * routes, so the last rebuild to run includes every change made before it.
+     */
+    private synchronized void recompileRoutes() {
+        compiledRoutes = CompiledRoutes.compile(routeResolver, sockets.keySet());
     }
 
     public Map<String, List<RouterSocketV3>> getSockets() {
         Map<String, List<RouterSocketV3>> clone = new HashMap<>();
-        for (Map.Entry<String, List<RouterSocketV3>> routeEntry : sockets.entrySet()) {
-            // clone to avoid ConcurrentModificationException on ArrayList
-            clone.put(routeEntry.getKey(), new ArrayList<>(routeEntry.getValue()));
+        for (Map.Entry<String, RouteSockets> routeEntry : sockets.entrySet()) {
+            clone.put(routeEntry.getKey(), new ArrayList<>(Arrays.asList(routeEntry.getValue().sockets)));
         }
         return clone;
     }
 
-    public CompletableFuture<RouterSocketV3> removeWebSocket(RouterSocketV3 socket) {
-        final CompletableFuture<RouterSocketV3> future = new CompletableFuture<>();
-        executor.submit(() -> logIfFail(() -> {
-            routeLastRemovalTimes.put(socket.route, System.currentTimeMillis());
-            List<RouterSocketV3> RouterSocketV3s = sockets.get(socket.route);
-            if (RouterSocketV3s != null && RouterSocketV3s.remove(socket)) {
-                idleCount.decrementAndGet();
-                future.complete(socket);
-                return;
+    public boolean removeWebSocket(RouterSocketV3 socket) {
+        routeLastRemovalTimes.put(socket.route, System.currentTimeMillis());
+        final boolean[] removed = new boolean[1];
+        sockets.computeIfPresent(socket.route, (key, routeSockets) -> {
+            removed[0] = routeSockets.remove(socket);
+            return routeSockets;
+        });
+        if (removed[0]) {
+            idleCount.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    public void addWebSocket(String route, RouterSocketV3 socket) {
+        final boolean[] added = new boolean[1];
+        sockets.compute(route, (key, routeSockets) -> {
+            if (routeSockets == null) {
+                routeSockets = new RouteSockets();
+                added[0] = true;
             }
-            future.complete(null);
-        }));
-        return future;
-    }
-
-    public CompletableFuture<Boolean> addWebSocket(String route, RouterSocketV3 socket) {
-        final CompletableFuture<Boolean> future = new CompletableFuture<>();
-        executor.submit(() -> logIfFail(() -> {
-            sockets.putIfAbsent(route, new ArrayList<>());
-            final List<RouterSocketV3> routeSockets = sockets.get(route);
-            if (!routeSockets.contains(socket)) {
-                routeSockets.add(socket);
+            if (routeSockets.add(socket, darkAddresses)) {
                 idleCount.incrementAndGet();
             }
-            future.complete(true);
-        }));
-        return future;
+            return routeSockets;
+        });
+        // always rebuild for a new route: a rebuild that is already running may have read the routes before it was
+        // added, and checking the current lookup for the route could see one compiled before the route was removed
+        if (added[0]) {
+            recompileRoutes();
+        }
+    }
+
+    /**
+     * Sets the hosts whose sockets must not be selected, and updates the sockets that can be selected for each
+     * route.
+     *
+     * @param darkAddresses the addresses of the hosts in dark mode
+     */
+    void setDarkAddresses(Set<InetAddress> darkAddresses) {
+        this.darkAddresses = darkAddresses;
+        for (String route : sockets.keySet()) {
+            sockets.computeIfPresent(route, (key, routeSockets) -> {
+                routeSockets.updateEligible(darkAddresses);
+                return routeSockets;
+            });
+        }
     }
 
-    public CompletableFuture<RouterSocketV3> getWebSocket(String target, boolean useCatchAll) {
+    Set<InetAddress> darkAddresses() {
+        return darkAddresses;
+    }
 
-        final CompletableFuture<RouterSocketV3> future = new CompletableFuture<>();
+    /**
+     * Selects a socket for the route on the calling thread. Sockets of hosts in dark mode are never selected.
+     *
+     * @param routeKey the route, as resolved by {@link #resolveRoute(String)}
+     * @return a socket, or null if the route has no sockets that are not in dark mode
+     */
+    public RouterSocketV3 getWebSocket(String routeKey) {
+        final RouteSockets routeSockets = sockets.get(routeKey);
+        if (routeSockets == null) return null;
+        return loadBalancingStrategy == LoadBalancingStrategy.ROUND_ROBIN ? routeSockets.next() : routeSockets.leastLoadedOfTwo(routeKey, connectorLatencies);
+    }
 
-        executor.submit(() -> {
-            try {
-                final String routeKey = resolveRouteKey(target, useCatchAll);
-                if (routeKey == null) {
-                    log.warn("failed to get available websocket for target={}, useCatchAll={}", target, useCatchAll);
-                    future.completeExceptionally(new IllegalStateException("failed to get available websocket for target "
-                        + target + ", useCatchAll=" + useCatchAll));
-                    return;
-                }
-                List<RouterSocketV3> routeSockets = sockets.get(routeKey);
+    /**
+     * @return the maximum size of a frame sent to connectors, including the frame header
+     */
+    int maxFrameSize() {
+        return maxFrameSize;
+    }
 
-                if (routeSockets == null || routeSockets.isEmpty()) {
-                    future.complete(null);
-                    return;
-                }
+    /**
+     * @return the size of the largest response head accepted from connectors
+     */
+    int maxResponseHeadSize() {
+        return maxResponseHeadSize;
+    }
 
-                int indexNext = indexMap.getOrDefault(routeKey, -1) + 1;
-                if (indexNext > routeSockets.size() - 1) {
-                    indexNext = 0;
-                }
-                indexMap.put(routeKey, indexNext);
+    FrameBufferPool framePool() {
+        return framePool;
+    }
 
-                final RouterSocketV3 socket = routeSockets.get(indexNext);
-                future.complete(socket);
-            } catch (Throwable throwable) {
-                log.warn("failed to get available websocket for " + target, throwable);
-                future.completeExceptionally(throwable);
-            }
-        });
+    FlowControlSettings flowControl() {
+        return flowControl;
+    }
 
-        return future;
+    RequestHeadEncoder requestHeadEncoder() {
+        return requestHeadEncoder;
+    }
+
+    WindowUpdateCoalescer windowUpdates() {
+        return windowUpdates;
+    }
+
+    void recordTimeToFirstByte(String route, String connectorInstanceID, long nanos) {
+        connectorLatencies.record(route, connectorInstanceID, nanos);
     }
 
     public void deRegisterSocket(String target, String remoteAddr, String connectorInstanceID) {
         log.info("Going to deregister targetName=" + target + " and the targetAddr=" + remoteAddr + " and the connectorInstanceID=" + connectorInstanceID);
-        List<RouterSocketV3> routerSocketV3s = sockets.get(target);
+        RouteSockets routerSocketV3s = sockets.get(target);
         if (routerSocketV3s != null) {
             // avoid ConcurrentModificationException
-            for (RouterSocketV3 socket : new LinkedList<>(routerSocketV3s)) {
-                if (socket.connectorInstanceID().equals(connectorInstanceID)) {
-                    removeWebSocket(socket).whenComplete((routerSocketV3, throwable) -> logIfFail(() -> {
-                        if (routerSocketV3 != null) routerSocketV3.socketSessionClose();
-                    }));
+            for (RouterSocketV3 socket : routerSocketV3s.sockets) {
+                if (socket.connectorInstanceID().equals(connectorInstanceID) && removeWebSocket(socket)) {
+                    logIfFail(socket::socketSessionClose);
                 }
             }
         }
@@ -207,4 +284,126 @@ class WebSocketFarmV3 {
         }
         return result;
     }
+
+    /**
+     * The sockets of one route, held in an immutable array that is replaced on every change so that selection
+     * never needs a lock. Changes are made inside {@link ConcurrentHashMap#compute} so they are serialised per route.
+     * <p>Selection uses a second array holding only the sockets whose host is not in dark mode, which is rebuilt
+     * when sockets are added or removed and when the dark hosts change.</p>
+     */
+    static final class RouteSockets {
+        private static final RouterSocketV3[] NONE = new RouterSocketV3[0];
+
+        private volatile RouterSocketV3[] sockets = NONE;
+        private volatile RouterSocketV3[] eligible = NONE;
+        private final AtomicInteger index = new AtomicInteger(0);
+
+        boolean add(RouterSocketV3 socket, Set<InetAddress> darkAddresses) {
+            final RouterSocketV3[] current = sockets;
+            for (RouterSocketV3 existing : current) {
+                if (existing == socket) return false;
+            }
+            sockets = append(current, socket);
+            if (!isDark(socket, darkAddresses)) {
+                eligible = append(eligible, socket);
+            }
+            return true;
+        }
+
+        boolean remove(RouterSocketV3 socket) {
+            final RouterSocketV3[] current = sockets;
+            final RouterSocketV3[] updated = without(current, socket);
+            if (updated == current) {
+                return false;
+            }
+            sockets = updated;
+            eligible = without(eligible, socket);
+            return true;
+        }
+
+        void updateEligible(Set<InetAddress> darkAddresses) {
+            if (darkAddresses.isEmpty()) {
+                eligible = sockets;
+                return;
+            }
+            final RouterSocketV3[] current = sockets;
+            final List<RouterSocketV3> updated = new ArrayList<>(current.length);
+            for (RouterSocketV3 socket : current) {
+                if (!isDark(socket, darkAddresses)) {
+                    updated.add(socket);
+                }
+            }
+            eligible = updated.toArray(NONE);
+        }
+
+        private static boolean isDark(RouterSocketV3 socket, Set<InetAddress> darkAddresses) {
+            final InetSocketAddress address = socket.serviceAddress();
+            return address != null && !darkAddresses.isEmpty() && darkAddresses.contains(address.getAddress());
+        }
+
+        private static RouterSocketV3[] append(RouterSocketV3[] current, RouterSocketV3 socket) {
+            final RouterSocketV3[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = socket;
+            return updated;
+        }
+
+        private static RouterSocketV3[] without(RouterSocketV3[] current, RouterSocketV3 socket) {
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == socket) {
+                    final RouterSocketV3[] updated = new RouterSocketV3[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    return updated;
+                }
+            }
+            return current;
+        }
+
+        RouterSocketV3 next() {
+            final RouterSocketV3[] current = eligible;
+            if (current.length == 0) return null;
+            return current[Math.floorMod(index.getAndIncrement(), current.length)];
+        }
+
+        /**
+         * Power of two choices: compares two sockets and returns the less loaded one. The first candidate is taken
+         * in round-robin order and the second at random, so when all sockets are equally loaded (e.g. idle) the
+         * traffic is still spread evenly.
+         * <p>The load of a socket is its number of in-flight requests, weighted by the latency estimate of its
+         * connector instance if latency-aware balancing is enabled, with the unacked bytes breaking ties.</p>
+         */
+        RouterSocketV3 leastLoadedOfTwo(String route, ConnectorLatencies latencies) {
+            final RouterSocketV3[] current = eligible;
+            final int length = current.length;
+            if (length < 2) {
+                return length == 0 ? null : current[0];
+            }
+            final int first = Math.floorMod(index.getAndIncrement(), length);
+            int second = ThreadLocalRandom.current().nextInt(length - 1);
+            if (second >= first) second++;
+            final RouterSocketV3 a = current[first];
+            final RouterSocketV3 b = current[second];
+            if (latencies.isEnabled()) {
+                final double costA = latencies.estimate(route, a.connectorInstanceID()) * (a.inFlightCount() + 1);
+                final double costB = latencies.estimate(route, b.connectorInstanceID()) * (b.inFlightCount() + 1);
+                if (costA != costB) {
+                    return costA < costB ? a : b;
+                }
+            }
+            final int inFlightA = a.inFlightCount();
+            final int inFlightB = b.inFlightCount();
+            if (inFlightA != inFlightB) {
+                return inFlightA < inFlightB ? a : b;
+            }
+            return a.unackedBytes() <= b.unackedBytes() ? a : b;
+        }
+
+        boolean isEmpty() {
+            return sockets.length == 0;
+        }
+
+        boolean hasEligible() {
+            return eligible.length > 0;
+        }
+    }
 }
@@ -1,9 +1,14 @@
 package com.hsbc.cranker.mucranker;
 
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.net.InetAddress;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import static com.hsbc.cranker.mucranker.WebSocketFarm.ThrowingFunction.logIfFail;
 
@@ -11,9 +16,24 @@ class WebSocketFarmV3Holder {
 
     private final Map<String, WebSocketFarmV3> domainToFarmMap;
     private final RouteResolver routeResolver;
+    private final LoadBalancingStrategy loadBalancingStrategy;
+    private final ConnectorLatencies connectorLatencies;
+    private final int maxFrameSize;
+    private final int maxResponseHeadSize;
+    private final WindowUpdateCoalescer windowUpdates;
+    private final FlowControlSettings flowControl;
+    private final FrameBufferPool framePool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+    private volatile Set<InetAddress> darkAddresses = Set.of();
 
-    public WebSocketFarmV3Holder(RouteResolver routeResolver) {
+    public WebSocketFarmV3Holder(RouteResolver routeResolver, LoadBalancingStrategy loadBalancingStrategy, ConnectorLatencies connectorLatencies,
+                                 int maxFrameSize, int maxResponseHeadSize, int windowUpdateThreshold, FlowControlSettings flowControl) {
         this.routeResolver = routeResolver;
+        this.loadBalancingStrategy = loadBalancingStrategy;
+        this.connectorLatencies = connectorLatencies;
+        this.maxFrameSize = maxFrameSize;
+        this.maxResponseHeadSize = maxResponseHeadSize;
+        this.windowUpdates = new WindowUpdateCoalescer(windowUpdateThreshold);
+        this.flowControl = flowControl;
         this.domainToFarmMap = new ConcurrentHashMap<>();
     }
 
@@ -25,6 +45,8 @@ class WebSocketFarmV3Holder {
             logIfFail(farm::stop);
         }
         domainToFarmMap.clear();
+        windowUpdates.stop();
+        framePool.close();
     }
 
     public void cleanRoutes(long routesKeepTimeMillis) {
@@ -34,7 +56,32 @@ class WebSocketFarmV3Holder {
     }
 
     public WebSocketFarmV3 getOrCreateWebSocketFarmV3(String domain) {
-        return domainToFarmMap.computeIfAbsent(domain, k -> new WebSocketFarmV3(routeResolver));
+        final WebSocketFarmV3 farm = domainToFarmMap.computeIfAbsent(domain, k -> new WebSocketFarmV3(routeResolver, loadBalancingStrategy, connectorLatencies, darkAddresses, maxFrameSize, maxResponseHeadSize, windowUpdates, flowControl, framePool));
+        if (farm.darkAddresses() != darkAddresses) {
+            // the dark hosts changed while the farm was being created
+            synchronized (this) {
+                farm.setDarkAddresses(darkAddresses);
+            }
+        }
+        return farm;
+    }
+
+    /**
+     * Excludes the sockets of the given hosts from selection in every domain farm. This is done once per change,
+     * so selecting a socket never has to check the dark hosts.
+     *
+     * @param darkHosts all the hosts that are currently in dark mode
+     */
+    public synchronized void updateDarkHosts(Set<DarkHost> darkHosts) {
+        final Set<InetAddress> addresses = darkHosts.stream().map(DarkHost::address).collect(Collectors.toUnmodifiableSet());
+        this.darkAddresses = addresses;
+        for (WebSocketFarmV3 farm : domainToFarmMap.values()) {
+            farm.setDarkAddresses(addresses);
+        }
+    }
+
+    FrameBufferPool framePool() {
+        return framePool;
     }
 
     public WebSocketFarmV3 getWebSocketFarmV3(String domain) {
@@ -56,11 +103,6 @@ class WebSocketFarmV3Holder {
             .sum();
     }
 
-    public boolean canHandle(String domain, String target, boolean useCatchAll) {
-        final WebSocketFarmV3 farm = domainToFarmMap.get(domain);
-        return farm != null && farm.canHandle(target, useCatchAll);
-    }
-
     public void deRegisterSocket(String target, String remoteAddr, String connectorInstanceID){
         for (WebSocketFarmV3 webSocketFarmV3 : domainToFarmMap.values()) {
             logIfFail(() -> webSocketFarmV3.deRegisterSocket(target, remoteAddr, connectorInstanceID));
@@ -0,0 +1,172 @@
+package com.hsbc.cranker.mucranker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Decides when V3 sockets acknowledge the bytes they have forwarded to clients.
+ * <p>Rather than sending a <code>WINDOW_UPDATE</code> frame for every frame received from a connector, a stream's
+ * acknowledgements are accumulated until they reach the threshold, or until a short delay has passed, or until the
+ * stream ends. The connector therefore never waits more than the delay for bytes that have been forwarded, while
+ * streams of many small chunks (e.g. server-sent events) send far fewer frames.</p>
+ * <p>Delayed flushes run on a single timer thread that belongs to the router. It is started when the first flush is
+ * scheduled and shut down by {@link #stop()}. It only wakes when a flush is due.</p>
+ */
+class WindowUpdateCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(WindowUpdateCoalescer.class);
+
+    /**
+     * The default number of bytes after which a stream's acknowledgements are sent straight away
+     */
+    static final int DEFAULT_THRESHOLD = 8 * 1024;
+
+    static final long MAX_DELAY_MILLIS = 10;
+
+    /**
+     * Runs a task once after a delay.
+     */
+    interface Scheduler {
+        void schedule(Runnable task, long delay, TimeUnit unit);
+    }
+
+    private final int threshold;
+    private final Scheduler scheduler = (task, delay, unit) -> executor().schedule(task, delay, unit);
+    private ScheduledThreadPoolExecutor executor;
+    private boolean isStopped = false;
+
+    /**
+     * @param threshold the number of bytes at which acknowledgements are sent without waiting; 0 to send an
+     *                  acknowledgement for every frame
+     */
+    WindowUpdateCoalescer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param scheduler runs delayed flushes, which is normally {@link #scheduler()}
+     * @param sender    sends a <code>WINDOW_UPDATE</code> for the given number of bytes
+     * @return the acknowledgements of a new stream
+     */
+    Stream newStream(Scheduler scheduler, IntConsumer sender) {
+        return new Stream(scheduler, sender);
+    }
+
+    /**
+     * @return the scheduler of the router's timer thread, which rejects tasks once this is stopped
+     */
+    Scheduler scheduler() {
+        return scheduler;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor executor() {
+        if (isStopped) {
+            throw new RejectedExecutionException("The router is stopped");
+        }
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "cranker-v3-ack-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the timer thread. Flushes that are scheduled after this are sent straight away.
+     */
+    synchronized void stop() {
+        isStopped = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * The bytes of one stream that have been forwarded to the client but not acknowledged yet.
+     */
+    final class Stream {
+        private final Scheduler scheduler;
+        private final IntConsumer sender;
+        private final AtomicInteger pendingBytes = new AtomicInteger(0);
+        private final AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+        private volatile boolean isWithheld = false;
+
+        private Stream(Scheduler scheduler, IntConsumer sender) {
+            this.scheduler = scheduler;
+            this.sender = sender;
+        }
+
+        /**
+         * Acknowledges bytes that have been forwarded to the client, either now or in a coalesced window update.
+         *
+         * @param bytes    the number of bytes forwarded
+         * @param flushNow true to send the acknowledgement straight away, e.g. at the end of the stream
+         */
+        void acknowledge(int bytes, boolean flushNow) {
+            isWithheld = false;
+            final int pending = pendingBytes.addAndGet(bytes);
+            if (flushNow || pending >= threshold) {
+                flush();
+            } else if (isFlushScheduled.compareAndSet(false, true)) {
+                try {
+                    scheduler.schedule(this::scheduledFlush, MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the router is stopping, so there is no point waiting
+                    scheduledFlush();
+                }
+            }
+        }
+
+        /**
+         * Adds bytes that have been forwarded to the client without acknowledging them, nor any other pending bytes,
+         * until the next call to {@link #acknowledge(int, boolean)}. This holds back the connector while the
+         * client is slow.
+         *
+         * @param bytes the number of bytes forwarded
+         */
+        void withhold(int bytes) {
+            isWithheld = true;
+            pendingBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Sends the pending acknowledgements, if there are any.
+         */
+        void flush() {
+            final int bytes = pendingBytes.getAndSet(0);
+            if (bytes > 0) {
+                sender.accept(bytes);
+            }
+        }
+
+        /**
+         * @return the number of bytes waiting to be acknowledged
+         */
+        int pendingBytes() {
+            return pendingBytes.get();
+        }
+
+        private void scheduledFlush() {
+            isFlushScheduled.set(false);
+            if (isWithheld) {
+                return;
+            }
+            try {
+                flush();
+            } catch (Throwable e) {
+                log.warn("Error sending a window update", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class CompiledRoutesTest {
+
+    private static final Set<String> ROUTES = Set.of("*", "my-service", "my-service/api", "my-service/api/test",
+        "other", "other/deep/path", "a", "a/b");
+
+    private static final String[] TARGETS = {
+        "/", "", "/my-service", "/my-service/", "/my-service/api", "/my-service/api/", "/my-service/api/test",
+        "/my-service/api/test/more", "/my-service/apis", "/my-service-two/api", "/other/deep", "/other/deep/path/x",
+        "/a/b/c", "/a//b", "//a", "/unknown", "/unknown/my-service", "my-service/api", "/*", "/my-service?x=1"
+    };
+
+    @Test
+    public void firstSegmentResolutionMatchesDefaultResolver() {
+        RouteResolver resolver = new RouteResolver() {};
+        CompiledRoutes compiled = CompiledRoutes.compile(resolver, ROUTES);
+        for (String target : TARGETS) {
+            assertThat(target, compiled.resolve(target), is(resolver.resolve(ROUTES, target)));
+        }
+    }
+
+    @Test
+    public void longestPrefixResolutionMatchesLongestFirstRouteResolver() {
+        RouteResolver resolver = new LongestFirstRouteResolver();
+        CompiledRoutes compiled = CompiledRoutes.compile(resolver, ROUTES);
+        for (String target : TARGETS) {
+            if (target.isEmpty()) continue; // the resolver itself does not support an empty target
+            assertThat(target, compiled.resolve(target), is(resolver.resolve(ROUTES, target)));
+        }
+    }
+
+    @Test
+    public void customResolversAreCalledWithTheRoutes() {
+        RouteResolver resolver = new RouteResolver() {
+            @Override
+            public String resolve(Set<String> routes, String target) {
+                return routes.contains("other") ? "other" : "*";
+            }
+        };
+        assertThat(CompiledRoutes.compile(resolver, ROUTES).resolve("/my-service"), is("other"));
+        assertThat(CompiledRoutes.compile(resolver, Set.of("a")).resolve("/my-service"), is("*"));
+    }
+
+    @Test
+    public void emptyRoutesResolveToCatchAll() {
+        assertThat(CompiledRoutes.empty(new RouteResolver() {}).resolve("/my-service"), is("*"));
+        assertThat(CompiledRoutes.empty(new LongestFirstRouteResolver()).resolve("/my-service/api"), is("*"));
+    }
+}
@@ -0,0 +1,249 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.MuRequest;
+import io.muserver.MuResponse;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class CompletionDispatcherTest {
+
+    @Test
+    public void ringBufferIsFirstInFirstOutAndBounded() {
+        MpmcRingBuffer<String> ring = new MpmcRingBuffer<>(3);
+        assertThat(ring.capacity(), is(4));
+        for (int i = 0; i < 4; i++) {
+            assertThat(ring.offer("item" + i), is(true));
+        }
+        assertThat(ring.offer("item4"), is(false));
+        assertThat(ring.size(), is(4));
+        assertThat(ring.poll(), is("item0"));
+        assertThat(ring.offer("item4"), is(true));
+        for (int i = 1; i < 5; i++) {
+            assertThat(ring.poll(), is("item" + i));
+        }
+        assertThat(ring.poll(), nullValue());
+    }
+
+    @Test
+    public void ringBufferLosesNothingWithManyProducersAndConsumers() throws InterruptedException {
+        MpmcRingBuffer<Integer> ring = new MpmcRingBuffer<>(16);
+        int producers = 4;
+        int perProducer = 20_000;
+        long[] sums = new long[producers];
+        Thread[] threads = new Thread[producers * 2];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    while (!ring.offer(i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            int consumer = p;
+            threads[producers + p] = new Thread(() -> {
+                for (int received = 0; received < perProducer; ) {
+                    Integer item = ring.poll();
+                    if (item != null) {
+                        sums[consumer] += item;
+                        received++;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join(30_000);
+        long total = 0;
+        for (long sum : sums) total += sum;
+        assertThat(total, is((long) producers * perProducer * (perProducer + 1) / 2));
+        assertThat(ring.poll(), nullValue());
+    }
+
+    @Test
+    public void listenersAreCalledOnWorkerThreadsWithASnapshot() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(2);
+        ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<>();
+        ProxyListener listener = new ProxyListener() {
+            @Override
+            public void onComplete(ProxyInfo proxyInfo) {
+                received.add(proxyInfo.route() + " " + proxyInfo.bytesSent() + " " + Thread.currentThread().getName().startsWith("cranker-completion-listener-"));
+                latch.countDown();
+            }
+        };
+        CompletionDispatcher dispatcher = new CompletionDispatcher(new ProxyListener[]{listener}, 8, 1, CompletionOverflowPolicy.BLOCK);
+        try {
+            FakeProxyInfo info = new FakeProxyInfo("first", 10);
+            dispatcher.publish(info);
+            info.route = "changed";
+            info.bytesSent = 20;
+            dispatcher.publish(new FakeProxyInfo("second", 30));
+            assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(received, contains("first 10 true", "second 30 true"));
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void eventsAreDroppedAndCountedWhenTheQueueIsFullWithTheDropPolicy() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(3);
+        ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<>();
+        ProxyListener listener = new ProxyListener() {
+            @Override
+            public void onComplete(ProxyInfo proxyInfo) {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(proxyInfo.route());
+                delivered.countDown();
+            }
+        };
+        CompletionDispatcher dispatcher = new CompletionDispatcher(new ProxyListener[]{listener}, 2, 1, CompletionOverflowPolicy.DROP);
+        dispatcher.publish(new FakeProxyInfo("in-listener", 0));
+        assertThat(blocked.await(10, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < 5; i++) {
+            dispatcher.publish(new FakeProxyInfo("queued" + i, 0));
+        }
+        assertThat(dispatcher.dropped(), is(3L));
+        release.countDown();
+        assertThat(delivered.await(10, TimeUnit.SECONDS), is(true));
+        dispatcher.close();
+        assertThat(received, contains("in-listener", "queued0", "queued1"));
+    }
+
+    @Test
+    public void closingWaitsForTheQueuedEventsToBeDelivered() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<>();
+        ProxyListener listener = new ProxyListener() {
+            @Override
+            public void onComplete(ProxyInfo proxyInfo) {
+                blocked.countDown();
+                received.add(proxyInfo.route());
+            }
+        };
+        CompletionDispatcher dispatcher = new CompletionDispatcher(new ProxyListener[]{listener}, 8, 2, CompletionOverflowPolicy.BLOCK);
+        dispatcher.publish(new FakeProxyInfo("first", 0));
+        assertThat(blocked.await(10, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < 3; i++) {
+            dispatcher.publish(new FakeProxyInfo("later" + i, 0));
+        }
+        dispatcher.close();
+        assertThat(received.size(), is(4));
+    }
+
+    @Test
+    public void eventsAreDeliveredOnTheCallingThreadAfterClosing() {
+        List<String> received = new ArrayList<>();
+        ProxyListener listener = new ProxyListener() {
+            @Override
+            public void onComplete(ProxyInfo proxyInfo) {
+                received.add(proxyInfo.route());
+            }
+        };
+        CompletionDispatcher dispatcher = new CompletionDispatcher(new ProxyListener[]{listener}, 2, 1, CompletionOverflowPolicy.BLOCK);
+        dispatcher.close();
+        dispatcher.publish(new FakeProxyInfo("after-close", 0));
+        assertThat(received, contains("after-close"));
+    }
+
+    @Test
+    public void proxyListenersAreSynchronousByDefault() {
+        List<String> received = new ArrayList<>();
+        ProxyListener listener = new ProxyListener() {
+            @Override
+            public void onComplete(ProxyInfo proxyInfo) {
+                received.add(proxyInfo.route() + " " + proxyInfo.getClass().getSimpleName());
+            }
+        };
+        ProxyListeners listeners = ProxyListeners.of(List.of(listener));
+        listeners.raiseComplete(new FakeProxyInfo("sync", 0));
+        assertThat(received, contains("sync FakeProxyInfo"));
+        assertThat(listeners.completionsDropped(), is(0L));
+    }
+
+    private static class FakeProxyInfo implements ProxyInfo {
+        private String route;
+        private long bytesSent;
+
+        private FakeProxyInfo(String route, long bytesSent) {
+            this.route = route;
+            this.bytesSent = bytesSent;
+        }
+
+        @Override
+        public boolean isCatchAll() {
+            return false;
+        }
+
+        @Override
+        public String connectorInstanceID() {
+            return "connector";
+        }
+
+        @Override
+        public InetSocketAddress serviceAddress() {
+            return null;
+        }
+
+        @Override
+        public String route() {
+            return route;
+        }
+
+        @Override
+        public MuRequest request() {
+            return null;
+        }
+
+        @Override
+        public MuResponse response() {
+            return null;
+        }
+
+        @Override
+        public long durationMillis() {
+            return 0;
+        }
+
+        @Override
+        public long bytesReceived() {
+            return 0;
+        }
+
+        @Override
+        public long bytesSent() {
+            return bytesSent;
+        }
+
+        @Override
+        public long responseBodyFrames() {
+            return 0;
+        }
+
+        @Override
+        public Throwable errorIfAny() {
+            return null;
+        }
+
+        @Override
+        public long socketWaitInMillis() {
+            return 0;
+        }
+    }
+}
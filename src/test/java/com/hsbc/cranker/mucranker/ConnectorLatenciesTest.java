@@ -0,0 +1,90 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConnectorLatenciesTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+
+    @Test
+    public void nothingIsRecordedIfLatencyBalancingIsNotUsed() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.LEAST_IN_FLIGHT);
+        latencies.record("my-service", "instance-1", 1_000_000);
+        assertThat(latencies.isEnabled(), is(false));
+        assertThat(latencies.estimate("my-service", "instance-1"), is(0.0));
+    }
+
+    @Test
+    public void unknownInstancesAreAsFastAsTheMedianInstanceOfTheRoute() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.EWMA_LATENCY, now::get);
+        assertThat(latencies.estimate("my-service", "unknown"), is(ConnectorLatencies.DEFAULT_NEUTRAL_NANOS));
+        assertThat(latencies.estimate("my-service", null), is(ConnectorLatencies.DEFAULT_NEUTRAL_NANOS));
+
+        latencies.record("my-service", "instance-1", 10_000_000);
+        latencies.record("my-service", "instance-2", 20_000_000);
+        latencies.record("my-service", "instance-3", 90_000_000);
+        latencies.record("other-service", "instance-4", 500_000_000);
+        assertThat(latencies.estimate("my-service", "unknown"), is(20_000_000.0));
+        assertThat(latencies.estimate("other-service", "unknown"), is(500_000_000.0));
+    }
+
+    @Test
+    public void idleEstimatesDecayTowardsTheRouteMedianRatherThanZero() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.EWMA_LATENCY, now::get);
+        latencies.record("my-service", "fast", 10_000_000);
+        latencies.record("my-service", "slow", 200_000_000);
+        latencies.record("my-service", "median", 50_000_000);
+        now.addAndGet(TimeUnit.MINUTES.toNanos(5));
+        assertThat(latencies.estimate("my-service", "fast"), closeTo(50_000_000.0, 1.0));
+        assertThat(latencies.estimate("my-service", "slow"), closeTo(50_000_000.0, 1.0));
+    }
+
+    @Test
+    public void aSampleEqualToTheDecayedEstimateLeavesItUnchanged() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.EWMA_LATENCY, now::get);
+        latencies.record("my-service", "other", 100_000_000);
+        latencies.record("my-service", "instance-1", 1_000_000_000);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        double decayed = latencies.estimate("my-service", "instance-1");
+        assertThat(decayed, closeTo(550_000_000 + 450_000_000 * Math.exp(-1), 1.0));
+        latencies.record("my-service", "instance-1", (long) decayed);
+        assertThat(latencies.estimate("my-service", "instance-1"), closeTo(decayed, 1.0));
+    }
+
+    @Test
+    public void ewmaMovesGraduallyTowardsNewSamples() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.EWMA_LATENCY, now::get);
+        latencies.record("my-service", "instance-1", 1_000_000);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        latencies.record("my-service", "instance-1", 100_000_000);
+        assertThat(latencies.estimate("my-service", "instance-1"), lessThan(50_000_000.0));
+        assertThat(latencies.estimate("my-service", "instance-1"), greaterThan(1_000_000.0));
+    }
+
+    @Test
+    public void peakEwmaJumpsToLatencySpikes() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.PEAK_EWMA_LATENCY, now::get);
+        latencies.record("my-service", "instance-1", 1_000_000);
+        latencies.record("my-service", "instance-1", 100_000_000);
+        latencies.record("my-service", "instance-2", 1_000_000);
+        assertThat(latencies.estimate("my-service", "instance-1"), greaterThan(90_000_000.0));
+        assertThat(latencies.estimate("my-service", "instance-1"), greaterThan(latencies.estimate("my-service", "instance-2")));
+    }
+
+    @Test
+    public void staleEstimatesCanBeCleanedUp() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.PEAK_EWMA_LATENCY, now::get);
+        latencies.record("my-service", "instance-1", 5_000_000);
+        latencies.cleanUp(60_000);
+        assertThat(latencies.estimate("my-service", "instance-1"), is(5_000_000.0));
+        now.addAndGet(1);
+        latencies.cleanUp(0);
+        assertThat(latencies.estimate("my-service", "instance-1"), is(ConnectorLatencies.DEFAULT_NEUTRAL_NANOS));
+    }
+}
@@ -0,0 +1,175 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.MuServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import scaffolding.ClientUtils;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hsbc.cranker.mucranker.BaseEndToEndTest.httpsServerForTest;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static scaffolding.Action.swallowException;
+import static scaffolding.AssertUtils.assertEventually;
+import static scaffolding.ClientUtils.call;
+import static scaffolding.ClientUtils.request;
+
+/**
+ * Proxies requests through a minimal connector that negotiates cranker protocol 3.1, as the connector library only
+ * supports 3.0.
+ */
+public class CrankerProtocol31Test {
+
+    private CrankerRouter crankerRouter;
+    private MuServer router;
+    private FakeConnector connector;
+
+    @BeforeEach
+    void setUp() {
+        crankerRouter = CrankerRouterBuilder.crankerRouter()
+            .withSupportedCrankerProtocols(List.of("cranker_3.1"))
+            .start();
+        router = httpsServerForTest()
+            .addHandler(crankerRouter.createRegistrationHandler())
+            .addHandler(crankerRouter.createHttpHandler())
+            .start();
+        connector = new FakeConnector();
+        Request registration = new Request.Builder()
+            .url(router.uri().resolve("/register/?connectorInstanceID=fake-connector&componentName=junit").toString())
+            .header("Sec-WebSocket-Protocol", "cranker_3.1")
+            .header("Route", "my-service")
+            .build();
+        connector.webSocket = ClientUtils.client.newWebSocket(registration, connector);
+        BaseEndToEndTest.waitForRegistration("my-service", "fake-connector", 1, new CrankerRouter[]{crankerRouter});
+    }
+
+    @AfterEach
+    public void stop() {
+        if (connector != null && connector.webSocket != null) swallowException(() -> connector.webSocket.cancel());
+        if (crankerRouter != null) swallowException(crankerRouter::stop);
+        if (router != null) swallowException(router::stop);
+    }
+
+    @Test
+    public void compressedHeaderBlocksAreProxiedInBothDirections() throws Exception {
+        // later requests are mostly indexes into the header tables built by the earlier ones
+        for (int i = 0; i < 3; i++) {
+            try (Response resp = call(request(router.uri().resolve("/my-service/hello?count=" + i)))) {
+                assertThat(resp.code(), is(200));
+                assertThat(resp.header("x-test"), is("compressed"));
+                assertThat(resp.body().string(), is("GET /my-service/hello?count=" + i));
+            }
+        }
+        assertThat(connector.resets.get(), is(0));
+    }
+
+    @Test
+    public void anInvalidStatusOnlyFailsItsOwnRequest() throws Exception {
+        try (Response resp = call(request(router.uri().resolve("/my-service/bad-status")))) {
+            assertThat(resp.code(), is(502));
+        }
+        assertEventually(connector.resets::get, is(1));
+
+        try (Response resp = call(request(router.uri().resolve("/my-service/hello")))) {
+            assertThat(resp.code(), is(200));
+            assertThat(resp.body().string(), is("GET /my-service/hello"));
+        }
+    }
+
+    @Test
+    public void anUndecodableHeaderBlockFailsTheRequestAndClosesTheSocket() throws Exception {
+        try (Response resp = call(request(router.uri().resolve("/my-service/bad-block")))) {
+            assertThat(resp.code(), is(502));
+        }
+        assertThat(connector.closed.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(connector.closeCode, is(1002));
+    }
+
+    /**
+     * Answers every request with its method and path, except for the paths that send an invalid response head.
+     */
+    private static class FakeConnector extends WebSocketListener {
+        private final HeaderCompression.Decoder decoder = new HeaderCompression.Decoder(ResponseHeadParser.DEFAULT_MAX_HEAD_SIZE);
+        private final HeaderCompression.Encoder encoder = new HeaderCompression.Encoder();
+        private final AtomicInteger resets = new AtomicInteger();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile int closeCode;
+        private volatile WebSocket webSocket;
+
+        @Override
+        public void onMessage(@NotNull WebSocket webSocket, @NotNull ByteString bytes) {
+            ByteBuffer frame = bytes.asByteBuffer();
+            byte type = frame.get();
+            byte flags = frame.get();
+            int requestId = frame.getInt();
+            if (type == RouterSocketV3.MESSAGE_TYPE_RST_STREAM) {
+                resets.incrementAndGet();
+                return;
+            }
+            if (type != RouterSocketV3.MESSAGE_TYPE_HEADER && type != RouterSocketV3.MESSAGE_TYPE_HEADER_DATA) {
+                return;
+            }
+            ByteBuffer block = frame;
+            if (type == RouterSocketV3.MESSAGE_TYPE_HEADER_DATA) {
+                int length = frame.getInt();
+                block = frame.slice();
+                block.limit(length);
+            }
+            Map<String, String> head = new HashMap<>();
+            boolean isHeaderEnd = (flags & 4) != 0;
+            decoder.decode(block, isHeaderEnd, head::put);
+            if (!isHeaderEnd) {
+                return;
+            }
+
+            String path = head.get(":path");
+            ByteBuf responseHead = Unpooled.buffer();
+            if (path.equals("/my-service/bad-block")) {
+                // 0x00 is not a field representation of cranker protocol 3.1
+                responseHead.writeByte(0);
+            } else {
+                encoder.encodeField(responseHead, ":status", path.equals("/my-service/bad-status") ? "2OO" : "200");
+                encoder.encodeField(responseHead, "content-type", "text/plain;charset=utf-8");
+                encoder.encodeField(responseHead, "x-test", "compressed");
+            }
+            send(RouterSocketV3.MESSAGE_TYPE_HEADER, 4, requestId, responseHead);
+            send(RouterSocketV3.MESSAGE_TYPE_DATA, 1, requestId, Unpooled.copiedBuffer(head.get(":method") + " " + path, UTF_8));
+        }
+
+        private void send(byte type, int flags, int requestId, ByteBuf payload) {
+            ByteBuf frame = Unpooled.buffer(6 + payload.readableBytes());
+            frame.writeByte(type).writeByte(flags).writeInt(requestId).writeBytes(payload);
+            webSocket.send(ByteString.of(ByteBufUtil.getBytes(frame)));
+        }
+
+        @Override
+        public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+            closeCode = code;
+            webSocket.close(1000, null);
+            closed.countDown();
+        }
+
+        @Override
+        public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t, Response response) {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CrankerProtocolV1CodecTest {
+
+    @Test
+    public void requestsAreTheRequestLineHeadersAndEndMarker() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("host", "localhost:8443");
+        headers.put("cookie", "a=1; b=2");
+        assertThat(CrankerProtocolV1Codec.encodeRequest("GET", "/my-service/hello", "a=1&b=%20", headers.entrySet(), false),
+            is("GET /my-service/hello?a=1&b=%20 HTTP/1.1\nhost:localhost:8443\ncookie:a=1; b=2\n\n_2"));
+        assertThat(CrankerProtocolV1Codec.encodeRequest("POST", "/upload", null, headers.entrySet(), true),
+            is("POST /upload HTTP/1.1\nhost:localhost:8443\ncookie:a=1; b=2\n\n_1"));
+    }
+
+    @Test
+    public void largeRequestsDoNotAffectTheNextOne() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-large", "x".repeat(100_000));
+        assertThat(CrankerProtocolV1Codec.encodeRequest("GET", "/big", null, headers.entrySet(), false).length(), is(100_030));
+        assertThat(CrankerProtocolV1Codec.encodeRequest("GET", "/small", null, Map.<String, String>of().entrySet(), false),
+            is("GET /small HTTP/1.1\n\n_2"));
+    }
+
+    @Test
+    public void responseHeadsAreParsedInOrder() {
+        List<String> headers = new ArrayList<>();
+        int status = CrankerProtocolV1Codec.parseResponse("HTTP/1.1 404 Not Found\nContent-Type:text/plain\n" +
+            "x-time:12:30\nnot a header\n:no-name\nx-empty:\n", (name, value) -> headers.add(name + "=" + value));
+        assertThat(status, is(404));
+        assertThat(headers, contains("Content-Type=text/plain", "x-time=12:30", "x-empty="));
+    }
+
+    @Test
+    public void responseHeadsCanBeInABuffer() {
+        List<String> headers = new ArrayList<>();
+        StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\nvia:1.1 cranker");
+        assertThat(CrankerProtocolV1Codec.parseResponse(head, (name, value) -> headers.add(name + "=" + value)), is(200));
+        assertThat(headers, contains("via=1.1 cranker"));
+    }
+
+    @Test
+    public void aSingleHeaderCanBeFoundWithoutParsingTheOthers() {
+        String head = "HTTP/1.1 200 OK\nX-Custom:a\nconnectionx:no\nConnection:close, X-Custom\nconnection:second\n";
+        assertThat(CrankerProtocolV1Codec.headerValue(head, "connection"), is("close, X-Custom"));
+        assertThat(CrankerProtocolV1Codec.headerValue(head, "x-custom"), is("a"));
+        assertThat(CrankerProtocolV1Codec.headerValue(head, "content-length"), is(nullValue()));
+        assertThat(CrankerProtocolV1Codec.headerValue("HTTP/1.1 200 OK\nConnection", "connection"), is(nullValue()));
+    }
+
+    @Test
+    public void responsesWithoutAStatusAreRejected() {
+        assertThrows(NumberFormatException.class, () -> CrankerProtocolV1Codec.parseResponse("HTTP/1.1\nx:y\n", (name, value) -> {}));
+        assertThrows(NumberFormatException.class, () -> CrankerProtocolV1Codec.parseResponse("HTTP/1.1 2x0 OK\n", (name, value) -> {}));
+    }
+}
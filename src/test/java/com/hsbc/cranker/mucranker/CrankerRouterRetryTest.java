@@ -7,9 +7,11 @@ import okhttp3.Response;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.RepetitionInfo;
+import org.junit.jupiter.api.Test;
 
 import java.net.SocketTimeoutException;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -18,8 +20,7 @@ import static com.hsbc.cranker.mucranker.BaseEndToEndTest.startConnectorAndWaitF
 import static com.hsbc.cranker.mucranker.CrankerRouterBuilder.crankerRouter;
 import static io.muserver.MuServerBuilder.httpServer;
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.equalTo;
-import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.*;
 import static org.junit.jupiter.api.Assertions.fail;
 import static scaffolding.Action.swallowException;
 import static scaffolding.AssertUtils.assertEventually;
@@ -126,4 +127,43 @@ public class CrankerRouterRetryTest {
         assertEventually(() -> crankerRouter.collectInfo().service("something").get().connectors().get(0).connections().size(), is(2));
     }
 
+    @Test
+    public void requestsOverTheWaitingLimitAreRejectedImmediately() throws Exception {
+        final List<AcquireFailureReason> reasons = new CopyOnWriteArrayList<>();
+        crankerRouter = crankerRouter()
+            .withConnectorMaxWaitInMillis(5000L)
+            .withMaxWaitingRequestsPerRoute(0)
+            .withSupportedCrankerProtocols(List.of("cranker_1.0"))
+            .withProxyListeners(List.of(new ProxyListener() {
+                @Override
+                public void onFailureToAcquireProxySocket(ProxyInfo proxyInfo) {
+                    reasons.add(proxyInfo.acquireFailureReason());
+                }
+            }))
+            .start();
+
+        router = httpsServerForTest()
+            .addHandler(crankerRouter.createRegistrationHandler())
+            .addHandler(crankerRouter.createHttpHandler())
+            .start();
+
+        target = httpServer()
+            .addHandler((req, resp) -> {
+                resp.write("OK");
+                return true;
+            })
+            .start();
+
+        connector = startConnectorAndWaitForRegistration(crankerRouter, "*", target, List.of("cranker_1.0"), "something", router);
+        assertThat(connector.stop(5, TimeUnit.SECONDS), is(true));
+
+        // the route is known but has no connectors, and no requests may wait, so this fails without waiting 5 seconds
+        final long start = System.currentTimeMillis();
+        try (Response response = call(request(router.uri().resolve("/something/blah")))) {
+            assertThat(response.code(), is(503));
+            assertThat(response.header("retry-after"), is("5"));
+        }
+        assertThat(System.currentTimeMillis() - start, lessThan(4000L));
+        assertEventually(() -> reasons, contains(AcquireFailureReason.ROUTE_WAITING_LIMIT_REACHED));
+    }
 }
@@ -53,7 +53,6 @@ public class DarkModeTest {
             .addHandler(cranker.createRegistrationHandler())
             .addHandler(cranker.createHttpHandler())
             .start();
-        // cranker V3 protocol not plan to support darkMode
         connector = BaseEndToEndTest.startConnectorAndWaitForRegistration(cranker, "*", targetServer, preferredProtocols(repetitionInfo), "*", crankerServer);
     }
 
@@ -72,7 +71,7 @@ public class DarkModeTest {
         }
     }
 
-    @RepeatedTest(1)
+    @RepeatedTest(2)
     public void darkModeStopsRequestsGoingToATargetServer() throws Exception {
         darkModeManager.enableDarkMode(darkHost("127.0.0.2")); // does not exist, so nothing blocked by this
         try (Response response = call(request(crankerServer.uri().resolve("/static/hello.html")))) {
@@ -0,0 +1,82 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class DispatchPlannerTest {
+
+    private final ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.LEAST_IN_FLIGHT);
+    private final WebSocketFarm v1Farm = new WebSocketFarm(new RouteResolver() {}, 5000, latencies, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    private final WebSocketFarmV3Holder v3Holder = WebSocketFarmV3Test.holderWithDefaults(LoadBalancingStrategy.LEAST_IN_FLIGHT, latencies);
+    private final DispatchPlanner planner = new DispatchPlanner(v1Farm, v3Holder);
+    private final WebSocketFarmV3 v3Farm = v3Holder.getOrCreateWebSocketFarmV3("*");
+
+    @AfterEach
+    public void stop() {
+        v3Holder.stop();
+    }
+
+    @Test
+    public void requestsAreSplitBetweenLiveV1AndV3Sockets() {
+        addV1Socket();
+        addV3Socket("10.0.0.1");
+        int v3 = 0;
+        for (int i = 0; i < 200; i++) {
+            if (planner.plan("example.org", "/my-service/hello").isV3()) v3++;
+        }
+        assertThat(v3 > 0 && v3 < 200, is(true));
+    }
+
+    @Test
+    public void requestsGoToV1WhenEveryV3SocketOfTheRouteIsDark() throws Exception {
+        addV1Socket();
+        addV3Socket("10.0.0.1");
+        addV3Socket("10.0.0.2");
+        v3Holder.updateDarkHosts(Set.of(darkHost("10.0.0.1"), darkHost("10.0.0.2")));
+        for (int i = 0; i < 100; i++) {
+            DispatchPlanner.DispatchPlan plan = planner.plan("example.org", "/my-service/hello");
+            assertThat(plan.isV3(), is(false));
+            assertThat(plan.routeKey(), is("my-service"));
+        }
+
+        v3Holder.updateDarkHosts(Set.of(darkHost("10.0.0.1")));
+        boolean usedV3 = false;
+        for (int i = 0; i < 200 && !usedV3; i++) {
+            usedV3 = planner.plan("example.org", "/my-service/hello").isV3();
+        }
+        assertThat(usedV3, is(true));
+    }
+
+    @Test
+    public void aRouteWithOnlyDarkV3SocketsStaysOnV3IfV1CannotServeIt() throws Exception {
+        addV3Socket("10.0.0.1");
+        v3Holder.updateDarkHosts(Set.of(darkHost("10.0.0.1")));
+        DispatchPlanner.DispatchPlan plan = planner.plan("example.org", "/my-service/hello");
+        assertThat(plan.isV3(), is(true));
+        assertThat(plan.farmV3(), sameInstance(v3Farm));
+        assertThat(plan.routeKey(), is("my-service"));
+    }
+
+    private void addV1Socket() {
+        v1Farm.addWebSocket("my-service", new RouterSocket("my-service", "my-component", v1Farm, "v1-instance", ProxyListeners.NONE, "127.0.0.1"));
+    }
+
+    private void addV3Socket(String ip) {
+        WebSocketFarmV3Test.LoadedSocket socket = new WebSocketFarmV3Test.LoadedSocket(v3Farm, "v3-" + ip);
+        socket.address = new InetSocketAddress(ip, 12000);
+        v3Farm.addWebSocket("my-service", socket);
+    }
+
+    private static DarkHost darkHost(String ip) throws Exception {
+        return DarkHost.create(InetAddress.getByName(ip), Instant.now(), "testing");
+    }
+}
@@ -0,0 +1,53 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class FrameBufferPoolTest {
+
+    private final FrameBufferPool pool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+
+    @Test
+    public void smallBuffersAreReusedOnceReleased() {
+        ByteBuf first = pool.acquire(10);
+        first.writeInt(42);
+        pool.release(first);
+
+        ByteBuf second = pool.acquire(10);
+        assertThat(second, sameInstance(first));
+        assertThat(second.readableBytes(), is(0));
+        pool.release(second);
+
+        assertThat(pool.allocated(), is(1L));
+        assertThat(pool.reused(), is(1L));
+        assertThat(pool.outstanding(), is(0L));
+        pool.close();
+        assertThat(first.refCnt(), is(0));
+    }
+
+    @Test
+    public void largeBuffersGoBackToTheAllocator() {
+        ByteBuf buffer = pool.acquire(1024);
+        pool.release(buffer);
+        assertThat(buffer.refCnt(), is(0));
+        pool.release(pool.acquire(1024));
+        assertThat(pool.allocated(), is(2L));
+        assertThat(pool.reused(), is(0L));
+        pool.close();
+    }
+
+    @Test
+    public void buffersThatAreNotReleasedAreOutstanding() {
+        ByteBuf leaked = pool.acquire(10);
+        pool.release(pool.acquire(10));
+        assertThat(pool.outstanding(), is(1L));
+        pool.release(leaked);
+        assertThat(pool.outstanding(), is(0L));
+        pool.close();
+    }
+}
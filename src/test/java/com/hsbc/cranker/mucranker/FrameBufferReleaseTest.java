@@ -0,0 +1,121 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.Method;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import scaffolding.RawClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.hsbc.cranker.connector.CrankerConnectorBuilder.CRANKER_PROTOCOL_3;
+import static io.muserver.MuServerBuilder.httpServer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static scaffolding.AssertUtils.assertEventually;
+import static scaffolding.ClientUtils.call;
+import static scaffolding.ClientUtils.request;
+
+public class FrameBufferReleaseTest extends BaseEndToEndTest {
+
+    private static final byte[] CHUNK = "0123456789abcdef".repeat(1024).getBytes(UTF_8);
+    private static final int CHUNK_COUNT = 256;
+
+    private final CountDownLatch bodyRequested = new CountDownLatch(1);
+
+    @BeforeEach
+    public void start() {
+        targetServer = httpServer()
+            .addHandler(Method.POST, "/my-service/echo", (request, response, pathParams) -> {
+                bodyRequested.countDown();
+                response.write(String.valueOf(request.readBodyAsString().length()));
+            })
+            .addHandler(Method.POST, "/my-service/fail", (request, response, pathParams) -> {
+                // the response starts and then breaks while the router is still sending the request body
+                response.contentType("text/plain");
+                OutputStream out = response.outputStream();
+                out.write("partial".getBytes(UTF_8));
+                out.flush();
+                throw new IllegalStateException("Failing mid-response on purpose");
+            })
+            .start();
+        crankerRouter = CrankerRouterBuilder.crankerRouter()
+            .withSupportedCrankerProtocols(List.of(CRANKER_PROTOCOL_3))
+            .start();
+        router = httpsServerForTest()
+            .withHttpPort(0)
+            .addHandler(crankerRouter.createRegistrationHandler())
+            .addHandler(crankerRouter.createHttpHandler())
+            .start();
+        connector = startConnectorAndWaitForRegistration(crankerRouter, "*", targetServer, List.of(CRANKER_PROTOCOL_3), "*", router);
+    }
+
+    @Test
+    public void bufferedBodyFramesAreReleasedWhenTheRequestCompletes() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try (Response response = call(request(router.uri().resolve("/my-service/echo")).post(largeBody()))) {
+                assertThat(response.code(), is(200));
+                assertThat(response.body().string(), is(String.valueOf(CHUNK.length * CHUNK_COUNT)));
+            }
+        }
+        assertThat(crankerRouter.collectInfo().v3FrameBuffersAllocated(), greaterThan(0L));
+        assertEventually(() -> crankerRouter.collectInfo().v3FrameBuffersOutstanding(), is(0L));
+    }
+
+    @Test
+    public void bufferedBodyFramesAreReleasedWhenTheClientDisconnectsMidBody() throws Exception {
+        try (RawClient client = RawClient.create(router.httpUri())) {
+            client.sendStartLine("POST", "/my-service/echo")
+                .sendHeader("Host", router.httpUri().getAuthority())
+                .sendHeader("Content-Type", "application/octet-stream")
+                .sendHeader("Content-Length", String.valueOf(CHUNK.length * CHUNK_COUNT))
+                .endHeaders();
+            for (int i = 0; i < CHUNK_COUNT / 4; i++) {
+                client.send(CHUNK);
+            }
+            client.flushRequest();
+            assertThat(bodyRequested.await(10, TimeUnit.SECONDS), is(true));
+        }
+        assertEventually(() -> crankerRouter.collectInfo().v3FrameBuffersOutstanding(), is(0L));
+    }
+
+    @Test
+    public void bufferedBodyFramesAreReleasedWhenTheStreamIsReset() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try (Response response = call(request(router.uri().resolve("/my-service/fail")).post(largeBody()))) {
+                response.body().bytes();
+            } catch (Exception expected) {
+                // the client sees the broken response one way or another; only the router's buffers matter here
+            }
+        }
+        assertEventually(() -> crankerRouter.collectInfo().v3FrameBuffersOutstanding(), is(0L));
+    }
+
+    private static RequestBody largeBody() {
+        return new RequestBody() {
+            public MediaType contentType() {
+                return MediaType.parse("application/octet-stream");
+            }
+
+            public long contentLength() {
+                return (long) CHUNK.length * CHUNK_COUNT;
+            }
+
+            public void writeTo(@NotNull BufferedSink sink) throws IOException {
+                for (int i = 0; i < CHUNK_COUNT; i++) {
+                    sink.write(CHUNK);
+                }
+            }
+        };
+    }
+}
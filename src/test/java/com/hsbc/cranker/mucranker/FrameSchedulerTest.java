@@ -0,0 +1,75 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.DoneCallback;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+public class FrameSchedulerTest {
+
+    private final List<Integer> written = new ArrayList<>();
+    private final List<DoneCallback> pendingWrites = new ArrayList<>();
+    private final FrameBufferPool framePool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+
+    @Test
+    public void streamsTakeTurnsOneFrameAtATime() throws Exception {
+        FrameScheduler scheduler = new FrameScheduler((frame, doneCallback) -> {
+            written.add(frame.getInt(0));
+            frame.release();
+            pendingWrites.add(doneCallback);
+        }, framePool);
+        FrameScheduler.Stream upload = scheduler.newStream();
+        FrameScheduler.Stream small = scheduler.newStream();
+        scheduler.enqueue(upload, frame(1), DoneCallback.NoOp);
+        scheduler.enqueue(upload, frame(2), DoneCallback.NoOp);
+        scheduler.enqueue(upload, frame(3), DoneCallback.NoOp);
+        scheduler.enqueue(small, frame(100), DoneCallback.NoOp);
+        assertThat(written, contains(1));
+
+        while (pendingWrites.size() < 4) {
+            pendingWrites.get(pendingWrites.size() - 1).onComplete(null);
+        }
+        assertThat(written, contains(1, 2, 100, 3));
+    }
+
+    @Test
+    public void framesWrittenInlineDoNotRecurse() {
+        FrameScheduler scheduler = new FrameScheduler((frame, doneCallback) -> {
+            written.add(frame.getInt(0));
+            frame.release();
+            doneCallback.onComplete(null);
+        }, framePool);
+        FrameScheduler.Stream stream = scheduler.newStream();
+        for (int i = 0; i < 10000; i++) {
+            scheduler.enqueue(stream, frame(i), DoneCallback.NoOp);
+        }
+        assertThat(written.size(), is(10000));
+    }
+
+    @Test
+    public void cancelledFramesAreReleasedAndFailed() {
+        FrameScheduler scheduler = new FrameScheduler((frame, doneCallback) -> pendingWrites.add(doneCallback), framePool);
+        FrameScheduler.Stream stream = scheduler.newStream();
+        scheduler.enqueue(stream, frame(1), DoneCallback.NoOp);
+        ByteBuf queued = frame(2);
+        List<Throwable> errors = new ArrayList<>();
+        scheduler.enqueue(stream, queued, errors::add);
+        scheduler.cancel(stream);
+        assertThat(queued.refCnt(), is(0));
+        assertThat(errors.size(), is(1));
+        assertThat(errors.get(0), instanceOf(IllegalStateException.class));
+    }
+
+    private static ByteBuf frame(int id) {
+        return Unpooled.buffer(4).writeInt(id);
+    }
+}
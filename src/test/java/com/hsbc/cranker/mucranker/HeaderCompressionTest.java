@@ -0,0 +1,211 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HeaderCompressionTest {
+
+    private final HeaderCompression.Encoder encoder = new HeaderCompression.Encoder();
+    private final HeaderCompression.Decoder decoder = new HeaderCompression.Decoder(ResponseHeadParser.DEFAULT_MAX_HEAD_SIZE);
+
+    @Test
+    public void repeatedHeadersAreSentAsIndexesAfterTheFirstRequest() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("host", "localhost:8443");
+        headers.put("user-agent", "Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/115.0");
+        headers.put("cookie", "session=abc123; theme=dark");
+        headers.put("forwarded", "for=10.0.0.1;proto=https;host=localhost:8443");
+        headers.put("via", "HTTP/1.1 muc");
+
+        ByteBuf first = Unpooled.buffer();
+        encoder.encodeRequest(first, "GET", "/my-service/hello?a=1", headers.entrySet());
+        ByteBuf second = Unpooled.buffer();
+        encoder.encodeRequest(second, "GET", "/my-service/hello?a=1", headers.entrySet());
+
+        // every field of the second request is a one-byte index into the dynamic table
+        assertThat(second.readableBytes(), is(headers.size() + 2));
+        assertThat(second.readableBytes(), lessThan(first.readableBytes()));
+
+        List<String> expected = List.of(":method=GET", ":path=/my-service/hello?a=1", "host=localhost:8443",
+            "user-agent=Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/115.0",
+            "cookie=session=abc123; theme=dark", "forwarded=for=10.0.0.1;proto=https;host=localhost:8443",
+            "via=HTTP/1.1 muc");
+        assertThat(decode(first.nioBuffer()), is(expected));
+        assertThat(decode(second.nioBuffer()), is(expected));
+    }
+
+    @Test
+    public void sensitiveHeadersAreNeverIndexed() {
+        ByteBuf first = Unpooled.buffer();
+        encoder.encodeField(first, "authorization", "Bearer secret");
+        ByteBuf second = Unpooled.buffer();
+        encoder.encodeField(second, "authorization", "Bearer secret");
+        assertThat(second.readableBytes(), is(first.readableBytes()));
+        assertThat(decode(first.nioBuffer()), contains("authorization=Bearer secret"));
+        assertThat(decode(second.nioBuffer()), contains("authorization=Bearer secret"));
+    }
+
+    @Test
+    public void oldEntriesAreEvictedTheSameWayByBothSides() {
+        for (int i = 0; i < 500; i++) {
+            ByteBuf block = Unpooled.buffer();
+            encoder.encodeField(block, "x-request-" + (i % 150), "value-\u00e9-" + (i % 70));
+            assertThat(decode(block.nioBuffer()), contains("x-request-" + (i % 150) + "=value-\u00e9-" + (i % 70)));
+        }
+    }
+
+    @Test
+    public void integersUseTheHpackPrefixEncoding() {
+        for (int value : new int[]{0, 30, 31, 62, 63, 127, 128, 1337, 1 << 20}) {
+            ByteBuf buf = Unpooled.buffer();
+            HeaderCompression.writeInteger(buf, 0xe0, 5, value);
+            assertThat(buf.getByte(0) & 0xe0, is(0xe0));
+            assertThat(HeaderCompression.readInteger(buf.nioBuffer(), 5), is(value));
+        }
+        ByteBuf buf = Unpooled.buffer();
+        HeaderCompression.writeInteger(buf, 0, 5, 1337);
+        assertThat(buf.readableBytes(), is(3)); // the example from RFC 7541 C.1.2
+    }
+
+    @Test
+    public void largeBlocksAreSplitIntoFramesAndDecodedOnceComplete() {
+        FrameBufferPool pool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+        RequestHeadEncoder headEncoder = new RequestHeadEncoder(pool, 64);
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            headers.put("x-header-" + i, "some value number " + i);
+        }
+        List<ByteBuf> frames = headEncoder.encodeCompressed(3, true, "POST", "/upload", headers.entrySet(), encoder);
+        List<String> decoded = new ArrayList<>();
+        try {
+            assertThat(frames.size(), is(lessThan(100)));
+            for (int i = 0; i < frames.size(); i++) {
+                ByteBuf frame = frames.get(i);
+                boolean isLast = i == frames.size() - 1;
+                assertThat(frame.readableBytes(), lessThanOrEqualTo(64));
+                assertThat(frame.getByte(0), is(RouterSocketV3.MESSAGE_TYPE_HEADER));
+                assertThat(frame.getByte(1), is((byte) (isLast ? 5 : 1)));
+                assertThat(frame.getInt(2), is(3));
+                decoder.decode(frame.nioBuffer(6, frame.readableBytes() - 6), isLast, (name, value) -> decoded.add(name + "=" + value));
+                if (!isLast) {
+                    assertThat(decoded.size(), is(0));
+                }
+            }
+        } finally {
+            frames.forEach(pool::release);
+        }
+        assertThat(decoded.size(), is(22));
+        assertThat(decoded.get(0), is(":method=POST"));
+        assertThat(decoded.get(21), is("x-header-19=some value number 19"));
+        assertThat(pool.outstanding(), is(0L));
+    }
+
+    @Test
+    public void aBlockThatCannotBeDecodedFailsEveryLaterBlockToo() {
+        assertThrows(HeaderCompression.HeaderBlockException.class, () -> decode(ByteBuffer.wrap(new byte[]{0})));
+        // the table may now differ from the encoder's, so even a valid block is rejected
+        ByteBuf valid = Unpooled.buffer();
+        encoder.encodeField(valid, ":status", "200");
+        assertThrows(HeaderCompression.HeaderBlockException.class, () -> decode(valid.nioBuffer()));
+    }
+
+    @Test
+    public void truncatedBlocksCannotBeDecoded() {
+        ByteBuf block = Unpooled.buffer();
+        encoder.encodeField(block, "x-header", "a value that is cut short");
+        assertThrows(HeaderCompression.HeaderBlockException.class, () -> decode(block.nioBuffer(0, block.readableBytes() - 5)));
+        assertThrows(HeaderCompression.HeaderBlockException.class, () -> decode(ByteBuffer.wrap(new byte[]{(byte) 0xff})));
+    }
+
+    @Test
+    public void blocksLargerThanTheMaximumAreRejectedBeforeBeingBuffered() {
+        HeaderCompression.Decoder small = new HeaderCompression.Decoder(10);
+        small.decode(ByteBuffer.wrap(new byte[6]), false, null);
+        assertThrows(HeaderCompression.HeaderBlockException.class, () -> small.decode(ByteBuffer.wrap(new byte[6]), true, null));
+    }
+
+    @Test
+    public void smallExchangesAreSentAsOneFrameWithTheHeadBodyAndEndOfStream() {
+        FrameBufferPool pool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+        RequestHeadEncoder headEncoder = new RequestHeadEncoder(pool, 1024);
+        ByteBuf body = Unpooled.copiedBuffer("{\"hello\":\"world\"}", StandardCharsets.UTF_8);
+        List<ByteBuf> frames = headEncoder.encodeSingleFrame(7, "POST", "/api/things", Map.of("content-type", "application/json").entrySet(), body, encoder);
+        assertThat(frames.size(), is(1));
+        ByteBuf frame = frames.get(0);
+        try {
+            assertThat(frame.getByte(0), is(RouterSocketV3.MESSAGE_TYPE_HEADER_DATA));
+            assertThat(frame.getByte(1), is((byte) 5));
+            assertThat(frame.getInt(2), is(7));
+            int blockLength = frame.getInt(6);
+            assertThat(decode(frame.nioBuffer(10, blockLength)), contains(":method=POST", ":path=/api/things", "content-type=application/json"));
+            assertThat(frame.toString(10 + blockLength, frame.readableBytes() - 10 - blockLength, StandardCharsets.UTF_8), is("{\"hello\":\"world\"}"));
+            assertThat(body.readableBytes(), is(17));
+        } finally {
+            pool.release(frame);
+        }
+        assertThat(pool.outstanding(), is(0L));
+    }
+
+    @Test
+    public void headsThatDoNotFitWithTheirBodyAreSentAsHeaderFramesWithoutEndOfStream() {
+        FrameBufferPool pool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+        RequestHeadEncoder headEncoder = new RequestHeadEncoder(pool, 64);
+        ByteBuf body = Unpooled.wrappedBuffer(new byte[60]);
+        List<ByteBuf> frames = headEncoder.encodeSingleFrame(9, "PUT", "/upload", Map.of("x-header", "a value").entrySet(), body, encoder);
+        List<String> decoded = new ArrayList<>();
+        try {
+            for (int i = 0; i < frames.size(); i++) {
+                ByteBuf frame = frames.get(i);
+                boolean isLast = i == frames.size() - 1;
+                assertThat(frame.getByte(0), is(RouterSocketV3.MESSAGE_TYPE_HEADER));
+                assertThat(frame.getByte(1), is((byte) (isLast ? 4 : 0)));
+                decoder.decode(frame.nioBuffer(6, frame.readableBytes() - 6), isLast, (name, value) -> decoded.add(name + "=" + value));
+            }
+        } finally {
+            frames.forEach(pool::release);
+        }
+        assertThat(decoded, contains(":method=PUT", ":path=/upload", "x-header=a value"));
+        assertThat(pool.outstanding(), is(0L));
+    }
+
+    @Test
+    public void compressedResponseHeadsSkipHeadersThatAreNotSentBack() {
+        HeaderCompression.Encoder connectorEncoder = new HeaderCompression.Encoder();
+        ByteBuf block = Unpooled.buffer();
+        connectorEncoder.encodeField(block, ":status", "404");
+        connectorEncoder.encodeField(block, "content-type", "text/plain");
+        connectorEncoder.encodeField(block, "Connection", "keep-alive");
+        connectorEncoder.encodeField(block, "server", "hidden");
+        connectorEncoder.encodeField(block, "X-Custom", "yes");
+
+        ResponseHeadParser head = new ResponseHeadParser();
+        decoder.decode(block.nioBuffer(), true, head);
+        head.finish();
+        assertThat(head.status(), is(404));
+        assertThat(head.headerCount(), is(2));
+        assertThat(head.name(0) + "=" + head.value(0), is("content-type=text/plain"));
+        assertThat(head.name(1) + "=" + head.value(1), is("x-custom=yes"));
+    }
+
+    private List<String> decode(ByteBuffer block) {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(block, true, (name, value) -> fields.add(name + "=" + value));
+        return fields;
+    }
+}
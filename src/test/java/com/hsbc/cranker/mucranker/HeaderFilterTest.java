@@ -0,0 +1,53 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class HeaderFilterTest {
+
+    @Test
+    public void namesAreMatchedInAnyCase() {
+        HeaderFilter filter = HeaderFilter.compile(CrankerMuHandler.REPRESSED);
+        for (String name : CrankerMuHandler.REPRESSED) {
+            assertThat(filter.contains(name), is(true));
+            assertThat(filter.contains(name.toUpperCase()), is(true));
+        }
+        assertThat(filter.contains("Transfer-Encoding"), is(true));
+        assertThat(filter.contains("X-Forwarded-For"), is(true));
+        assertThat(filter.contains("content-length"), is(false));
+        assertThat(filter.contains("t"), is(false));
+        assertThat(filter.contains("tee"), is(false));
+        assertThat(filter.contains(""), is(false));
+        assertThat(filter.contains("x-host: via", 8, 11), is(true));
+    }
+
+    @Test
+    public void manyNamesCanBeCompiled() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("X-Header-" + i);
+        }
+        HeaderFilter filter = HeaderFilter.compile(names);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(filter.contains("x-header-" + i), is(true));
+            assertThat(filter.contains("x-header-" + (i + 1000)), is(false));
+        }
+    }
+
+    @Test
+    public void connectionOptionsAreCommaSeparatedWithOptionalWhitespace() {
+        assertThat(HeaderFilter.isConnectionOption(" close ,X-Custom,  , x-other\t", "x-other"), is(true));
+        assertThat(HeaderFilter.isConnectionOption(" close ,X-Custom,  , x-other\t", "X-Custom"), is(true));
+        assertThat(HeaderFilter.isConnectionOption(" close ,X-Custom,  , x-other\t", ""), is(false));
+        assertThat(HeaderFilter.isConnectionOption(null, "x-custom"), is(false));
+        assertThat(HeaderFilter.isConnectionOption("close, X-Custom", "x-custom"), is(true));
+        assertThat(HeaderFilter.isConnectionOption("close, X-Custom", "X-CUSTOM"), is(true));
+        assertThat(HeaderFilter.isConnectionOption("close, X-Custom-2", "x-custom"), is(false));
+        assertThat(HeaderFilter.isConnectionOption("close,x-custom", "close"), is(true));
+    }
+}
@@ -163,6 +163,32 @@ public class HeaderProxyingTest extends BaseEndToEndTest {
         }
     }
 
+    @RepeatedTest(3)
+    public void forwardedHeadersFollowTheClientHeadersOfEachRequestOnAConnection(RepetitionInfo repetitionInfo) throws Exception {
+        this.targetServer = httpServer()
+            .addHandler(Method.GET, "/", (request, response, pathParams) -> {
+                response.write(request.headers().getAll("forwarded").size() + " " + request.headers().forwarded().get(0).host()
+                    + " " + request.headers().get("x-forwarded-for"));
+            })
+            .start();
+        startRouterAndConnector(crankerRouter().withSendLegacyForwardedHeaders(true).withSupportedCrankerProtocols(List.of("cranker_1.0", "cranker_3.0")), preferredProtocols(repetitionInfo));
+        for (int i = 0; i < 2; i++) {
+            try (Response resp = call(request(router.uri()).header("Host", "example.org"))) {
+                assert resp.body() != null;
+                assertThat(resp.body().string(), allOf(startsWith("1 example.org "), not(endsWith(" 126.0.0.0"))));
+            }
+            try (Response resp = call(request(router.uri()).header("Host", "example.org")
+                .header("Forwarded", new ForwardedHeader(null, "126.0.0.0", "forwarded.example.org", "http", null).toString()))) {
+                assert resp.body() != null;
+                assertThat(resp.body().string(), is("2 forwarded.example.org 126.0.0.0"));
+            }
+            try (Response resp = call(request(router.uri()).header("Host", "other.example.org"))) {
+                assert resp.body() != null;
+                assertThat(resp.body().string(), allOf(startsWith("1 other.example.org "), not(endsWith(" 126.0.0.0"))));
+            }
+        }
+    }
+
     @RepeatedTest(3)
     public void hostIsProxiedByForwardHeader(RepetitionInfo repetitionInfo) throws Exception {
         this.targetServer = httpServer()
@@ -0,0 +1,118 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class IndexedQueueTest {
+
+    @Test
+    public void itemsArePolledInOrder() {
+        IndexedQueue<String> queue = new IndexedQueue<>();
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("c");
+        assertThat(queue.size(), is(3));
+        assertThat(queue.poll(), is("a"));
+        assertThat(queue.poll(), is("b"));
+        assertThat(queue.poll(), is("c"));
+        assertThat(queue.poll(), is(nullValue()));
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void nodesCanBeRemovedOnlyOnce() {
+        IndexedQueue<String> queue = new IndexedQueue<>();
+        queue.offer("a");
+        IndexedQueue.Node<String> b = queue.offer("b");
+        queue.offer("c");
+
+        assertThat(b.isIn(queue), is(true));
+        assertThat(b.remove(), is(true));
+        assertThat(b.remove(), is(false));
+        assertThat(b.isIn(queue), is(false));
+        assertThat(queue.size(), is(2));
+        assertThat(queue.snapshot(), contains("a", "c"));
+        assertThat(queue.poll(), is("a"));
+        assertThat(queue.poll(), is("c"));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void polledNodesCannotBeRemoved() {
+        IndexedQueue<String> queue = new IndexedQueue<>();
+        IndexedQueue.Node<String> a = queue.offer("a");
+        assertThat(queue.poll(), is("a"));
+        assertThat(a.remove(), is(false));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void manyRemovalsArePurged() {
+        IndexedQueue<Integer> queue = new IndexedQueue<>();
+        List<IndexedQueue.Node<Integer>> nodes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            nodes.add(queue.offer(i));
+        }
+        for (int i = 0; i < 999; i++) {
+            assertThat(nodes.get(i).remove(), is(true));
+        }
+        assertThat(queue.size(), is(1));
+        assertThat(queue.snapshot(), contains(999));
+        assertThat(queue.poll(), is(999));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void removedNodesAreCountedUntilTheyAreUnlinked() {
+        IndexedQueue<Integer> queue = new IndexedQueue<>();
+        for (int i = 0; i < 1000; i++) {
+            IndexedQueue.Node<Integer> removed = queue.offer(i);
+            queue.offer(-i);
+            assertThat(removed.remove(), is(true));
+            assertThat(queue.removedNodes(), is(1));
+            assertThat(queue.poll(), is(-i));
+            assertThat(queue.removedNodes(), is(0));
+        }
+        assertThat(queue.poll(), is(nullValue()));
+        assertThat(queue.removedNodes(), is(0));
+    }
+
+    @Test
+    public void removedNodesAreNeverMiscountedWhenRemovalsRacePollsAndPurges() throws InterruptedException {
+        IndexedQueue<Integer> queue = new IndexedQueue<>();
+        int threads = 4;
+        int perThread = 20_000;
+        AtomicInteger lowestCount = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                List<IndexedQueue.Node<Integer>> mine = new ArrayList<>();
+                for (int i = 0; i < perThread; i++) {
+                    mine.add(queue.offer(i));
+                    if (i % 3 == 0) {
+                        queue.poll();
+                    } else {
+                        mine.get(i / 2).remove();
+                    }
+                    lowestCount.accumulateAndGet(queue.removedNodes(), Math::min);
+                }
+            }));
+        }
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join(30_000);
+
+        assertThat(lowestCount.get(), greaterThanOrEqualTo(0));
+        int remaining = queue.size();
+        for (int i = 0; i < remaining; i++) {
+            assertThat(queue.poll(), is(notNullValue()));
+        }
+        assertThat(queue.poll(), is(nullValue()));
+        assertThat(queue.removedNodes(), is(0));
+    }
+}
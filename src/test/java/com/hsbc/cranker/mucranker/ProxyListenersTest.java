@@ -0,0 +1,69 @@
+package com.hsbc.cranker.mucranker;
+
+import io.muserver.Headers;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class ProxyListenersTest {
+
+    private final ProxyListener metrics = new ProxyListener() {
+        @Override
+        public void onComplete(ProxyInfo proxyInfo) {
+        }
+    };
+    private final ProxyListener bodyInspector = new ProxyListener() {
+        @Override
+        public void onBeforeRequestBodyChunkSentToTarget(ProxyInfo info, ByteBuffer chunk) {
+        }
+
+        @Override
+        public void onComplete(ProxyInfo proxyInfo) {
+        }
+    };
+    private final ProxyListener headerChecker = new HeaderChecker();
+
+    @Test
+    public void listenersAreOnlyCalledForTheEventsTheyOverride() {
+        ProxyListeners listeners = ProxyListeners.of(List.of(metrics, bodyInspector, headerChecker));
+        assertThat(listeners.complete, arrayContaining(metrics, bodyInspector));
+        assertThat(listeners.beforeRequestBodyChunkSentToTarget, arrayContaining(bodyInspector));
+        assertThat(listeners.requestBodyChunkSentToTarget.length, is(0));
+        assertThat(listeners.responseBodyChunkReceivedFromTarget.length, is(0));
+        assertThat(listeners.afterProxyToTargetHeadersSent, arrayContaining(headerChecker));
+        assertThat(listeners.requestWithoutBodySent, arrayContaining(headerChecker));
+        assertThat(listeners.requestSentInOneFrame, arrayContaining(headerChecker));
+        assertThat(listeners.responseHeadersReceived, arrayContaining(headerChecker));
+        assertThat(listeners.beforeProxyToTarget.length, is(0));
+    }
+
+    @Test
+    public void inheritedOverridesAreFound() {
+        ProxyListeners listeners = ProxyListeners.of(List.of(new HeaderChecker() {
+        }));
+        assertThat(listeners.afterProxyToTargetHeadersSent.length, is(1));
+        assertThat(listeners.complete.length, is(0));
+    }
+
+    @Test
+    public void noListenersIsShared() {
+        assertThat(ProxyListeners.of(List.of()), sameInstance(ProxyListeners.NONE));
+        assertThat(ProxyListeners.NONE.complete.length, is(0));
+    }
+
+    private static class HeaderChecker implements ProxyListener {
+        @Override
+        public void onAfterProxyToTargetHeadersSent(ProxyInfo info, Headers headers) {
+        }
+
+        @Override
+        public void onBeforeRespondingToClient(ProxyInfo info) {
+        }
+    }
+}
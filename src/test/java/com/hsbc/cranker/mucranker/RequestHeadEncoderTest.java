@@ -0,0 +1,68 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class RequestHeadEncoderTest {
+
+    @Test
+    public void aTypicalHeadIsOneFrame() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("host", "localhost:8443");
+        headers.put("accept", "*/*");
+        List<ByteBuf> frames = new RequestHeadEncoder(new FrameBufferPool(PooledByteBufAllocator.DEFAULT), RequestHeadEncoder.DEFAULT_MAX_FRAME_SIZE)
+            .encode(42, true, "GET", "/my-service/hello", "a=1", headers.entrySet());
+        try {
+            assertThat(frames.size(), is(1));
+            ByteBuf frame = frames.get(0);
+            assertThat(frame.getByte(0), is(RouterSocketV3.MESSAGE_TYPE_HEADER));
+            assertThat(frame.getByte(1), is((byte) 5)); // stream end and header end
+            assertThat(frame.getInt(2), is(42));
+            assertThat(payload(frame), is("GET /my-service/hello?a=1 HTTP/1.1\nhost:localhost:8443\naccept:*/*\n\n"));
+        } finally {
+            frames.forEach(ByteBuf::release);
+        }
+    }
+
+    @Test
+    public void largeHeadsAreSplitBetweenCharactersAtTheMaximumFrameSize() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            value.append("a\u00e9\u4e2d\ud83d\ude00");
+        }
+        Map<String, String> headers = Map.of("x-big", value.toString());
+        String expected = "POST /path HTTP/1.1\nx-big:" + value + "\n\n";
+        List<ByteBuf> frames = new RequestHeadEncoder(new FrameBufferPool(PooledByteBufAllocator.DEFAULT), 100)
+            .encode(7, false, "POST", "/path", null, headers.entrySet());
+        try {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            for (int i = 0; i < frames.size(); i++) {
+                ByteBuf frame = frames.get(i);
+                assertThat(frame.readableBytes(), lessThanOrEqualTo(100));
+                assertThat(frame.getByte(1), is((byte) (i == frames.size() - 1 ? 4 : 0)));
+                // each frame is valid UTF-8 on its own
+                String text = payload(frame);
+                assertThat(text.getBytes(StandardCharsets.UTF_8).length, is(frame.readableBytes() - 6));
+                all.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+            }
+            assertThat(new String(all.toByteArray(), StandardCharsets.UTF_8), is(expected));
+        } finally {
+            frames.forEach(ByteBuf::release);
+        }
+    }
+
+    private static String payload(ByteBuf frame) {
+        return frame.toString(6, frame.readableBytes() - 6, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ResponseHeadParserTest {
+
+    private static final String HEAD = "HTTP/1.1 201 Created\n" +
+        "Content-Type:text/plain;charset=utf-8\n" +
+        "Connection:keep-alive\n" +
+        "X-Custom-Header:Some Value\n" +
+        "SERVER:hidden\n" +
+        "Transfer-Encoding:chunked\n" +
+        "set-cookie:a=1\n" +
+        "Set-Cookie:b=2\n" +
+        "x-unicode:caf\u00e9\n";
+
+    @Test
+    public void statusAndForwardedHeadersAreParsedWithLowerCaseNames() {
+        ResponseHeadParser parser = new ResponseHeadParser();
+        parser.feed(ByteBuffer.wrap(HEAD.getBytes(StandardCharsets.UTF_8)));
+        parser.finish();
+        assertThat(parser.status(), is(201));
+        assertThat(headers(parser), contains("content-type=text/plain;charset=utf-8", "x-custom-header=Some Value",
+            "set-cookie=a=1", "set-cookie=b=2", "x-unicode=caf\u00e9"));
+        assertThat(parser.byteCount(), is((long) HEAD.getBytes(StandardCharsets.UTF_8).length));
+    }
+
+    @Test
+    public void theConnectionHeaderIsKeptSoThatTheHeadersItListsCanBeSkipped() {
+        ResponseHeadParser parser = new ResponseHeadParser();
+        parser.feed(ByteBuffer.wrap("HTTP/1.1 200 OK\nConnection:close\nx-a:1\nCONNECTION: X-A\n".getBytes(StandardCharsets.UTF_8)));
+        parser.finish();
+        assertThat(parser.connection(), is("close, X-A"));
+        assertThat(HeaderFilter.isConnectionOption(parser.connection(), parser.name(0)), is(true));
+
+        parser.reset().header(":status", "200");
+        assertThat(parser.connection(), is(nullValue()));
+        parser.header("Connection", "x-b");
+        parser.finish();
+        assertThat(parser.connection(), is("x-b"));
+        assertThat(parser.headerCount(), is(0));
+    }
+
+    @Test
+    public void headsSplitAcrossFramesAtAnyByteAreParsedTheSame() {
+        byte[] bytes = HEAD.getBytes(StandardCharsets.UTF_8);
+        ResponseHeadParser whole = new ResponseHeadParser();
+        whole.feed(ByteBuffer.wrap(bytes));
+        whole.finish();
+        for (int split = 0; split <= bytes.length; split++) {
+            ResponseHeadParser parser = new ResponseHeadParser();
+            ByteBuffer first = ByteBuffer.allocateDirect(split).put(bytes, 0, split).flip();
+            parser.feed(first);
+            parser.feed(ByteBuffer.wrap(bytes, split, bytes.length - split));
+            parser.finish();
+            assertThat("split at " + split, parser.status(), is(201));
+            assertThat("split at " + split, headers(parser), is(headers(whole)));
+        }
+    }
+
+    @Test
+    public void theLastLineDoesNotNeedANewLine() {
+        ResponseHeadParser parser = new ResponseHeadParser();
+        parser.feed(ByteBuffer.wrap("HTTP/1.1 200 OK\nContent-Le".getBytes(StandardCharsets.UTF_8)));
+        parser.feed(ByteBuffer.wrap("ngth:12".getBytes(StandardCharsets.UTF_8)));
+        parser.finish();
+        assertThat(parser.status(), is(200));
+        assertThat(headers(parser), contains("content-length=12"));
+    }
+
+    @Test
+    public void aResetParserCanBeReusedForAnotherHead() {
+        ResponseHeadParser parser = new ResponseHeadParser();
+        parser.feed(ByteBuffer.wrap("HTTP/1.1 200 OK\nX-First:1\nX-Sec".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IllegalArgumentException.class, () -> parser.reset().finish());
+
+        parser.feed(ByteBuffer.wrap(HEAD.getBytes(StandardCharsets.UTF_8)));
+        parser.finish();
+        assertThat(parser.status(), is(201));
+        assertThat(headers(parser), contains("content-type=text/plain;charset=utf-8", "x-custom-header=Some Value",
+            "set-cookie=a=1", "set-cookie=b=2", "x-unicode=caf\u00e9"));
+        assertThat(parser.byteCount(), is((long) HEAD.getBytes(StandardCharsets.UTF_8).length));
+
+        parser.reset().header(":status", "404");
+        parser.finish();
+        assertThat(parser.status(), is(404));
+        assertThat(parser.headerCount(), is(0));
+    }
+
+    @Test
+    public void anInvalidStatusLineIsRejected() {
+        ResponseHeadParser parser = new ResponseHeadParser();
+        assertThrows(NumberFormatException.class, () -> parser.feed(ByteBuffer.wrap("HTTP/1.1 OK\n".getBytes(StandardCharsets.UTF_8))));
+        assertThrows(IllegalArgumentException.class, () -> new ResponseHeadParser().finish());
+
+        // a decoded status that is not a number is only reported once the whole block has been decoded
+        ResponseHeadParser decoded = new ResponseHeadParser();
+        decoded.header(":status", "2OO");
+        decoded.header("x-after", "still decoded");
+        assertThat(decoded.headerCount(), is(1));
+        assertThrows(IllegalArgumentException.class, decoded::finish);
+        decoded.reset().header(":status", "1000");
+        assertThrows(IllegalArgumentException.class, decoded::finish);
+    }
+
+    private static List<String> headers(ResponseHeadParser parser) {
+        List<String> headers = new ArrayList<>();
+        for (int i = 0; i < parser.headerCount(); i++) {
+            headers.add(parser.name(i) + "=" + parser.value(i));
+        }
+        return headers;
+    }
+}
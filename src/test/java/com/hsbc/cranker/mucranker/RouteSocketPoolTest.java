@@ -0,0 +1,239 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class RouteSocketPoolTest {
+
+    private final Set<DarkHost> darkHosts = ConcurrentHashMap.newKeySet();
+    private final RouteSocketPool.WaitingLimits waitingLimits = new RouteSocketPool.WaitingLimits(100, 100);
+    private final RouteSocketPool pool = new RouteSocketPool("my-service",
+        new ConnectorLatencies(LoadBalancingStrategy.LEAST_IN_FLIGHT), waitingLimits, darkHosts);
+
+    @Test
+    public void aHostCanBeTurnedDarkAndBackAgain() throws Exception {
+        HostSocket first = new HostSocket("10.0.0.1");
+        HostSocket second = new HostSocket("10.0.0.2");
+        pool.offer(first);
+        pool.offer(second);
+
+        setDark("10.0.0.1", true);
+        assertThat(pool.poll(), sameInstance(second));
+        assertThat(pool.poll(), nullValue());
+        assertThat(pool.idleCount(), is(1));
+        assertThat(pool.isEmpty(), is(false));
+
+        setDark("10.0.0.1", false);
+        assertThat(pool.poll(), sameInstance(first));
+        assertThat(pool.poll(), nullValue());
+        assertThat(pool.isEmpty(), is(true));
+    }
+
+    @Test
+    public void socketsOfADarkHostAreKeptFromWaitingRequestsUntilTheHostIsLit() throws Exception {
+        HostSocket socket = new HostSocket("10.0.0.1");
+        pool.offer(socket);
+        assertThat(pool.poll(), sameInstance(socket));
+        setDark("10.0.0.1", true);
+
+        List<RouterSocket> received = new ArrayList<>();
+        WebSocketFarm.WaitingSocketTask task = new WebSocketFarm.WaitingSocketTask("/my-service/hello").onSuccess(received::add);
+        assertThat(pool.pollOrWait(task), is(RouteSocketPool.WaitOutcome.ACCEPTED));
+        pool.offer(socket);
+        assertThat(task.isNotified(), is(false));
+        assertThat(pool.waitingCount(), is(1));
+        assertThat(pool.idleCount(), is(1));
+
+        setDark("10.0.0.1", false);
+        assertThat(received, contains(socket));
+        assertThat(pool.waitingCount(), is(0));
+        assertThat(waitingLimits.total(), is(0));
+        assertThat(pool.idleCount(), is(0));
+    }
+
+    @Test
+    public void aSocketOfAHostThatIsAlreadyDarkIsNotIdleForRequests() throws Exception {
+        darkHosts.add(DarkHost.create(InetAddress.getByName("10.0.0.1"), Instant.now(), "testing"));
+        HostSocket socket = new HostSocket("10.0.0.1");
+        pool.offer(socket);
+        assertThat(pool.poll(), nullValue());
+        assertThat(pool.idleSockets(), contains(socket));
+        assertThat(pool.remove(socket), is(true));
+        assertThat(pool.isEmpty(), is(true));
+    }
+
+    @Test
+    public void aPrunedHostGroupIsCreatedAgainWithTheCurrentDarkMode() throws Exception {
+        HostSocket socket = new HostSocket("10.0.0.1");
+        HostSocket other = new HostSocket("10.0.0.2");
+        pool.offer(socket);
+        pool.offer(other);
+        assertThat(pool.poll(), sameInstance(socket));
+
+        // only the group without idle sockets is discarded
+        pool.pruneHostGroups();
+        setDark("10.0.0.2", true);
+        assertThat(pool.poll(), nullValue());
+        setDark("10.0.0.2", false);
+        assertThat(pool.poll(), sameInstance(other));
+
+        darkHosts.add(DarkHost.create(InetAddress.getByName("10.0.0.1"), Instant.now(), "testing"));
+        pool.pruneHostGroups();
+        pool.offer(socket);
+        assertThat(pool.poll(), nullValue());
+
+        setDark("10.0.0.1", false);
+        assertThat(pool.poll(), sameInstance(socket));
+        pool.pruneHostGroups();
+        pool.offer(socket);
+        assertThat(pool.poll(), sameInstance(socket));
+        assertThat(pool.idleSockets(), is(empty()));
+    }
+
+    @Test
+    public void socketsAreNeverLostOrSharedWhenOffersRaceWaitsAndCancellations() throws Exception {
+        RouteSocketPool racedPool = new RouteSocketPool("my-service", new ConnectorLatencies(LoadBalancingStrategy.LEAST_IN_FLIGHT),
+            new RouteSocketPool.WaitingLimits(Integer.MAX_VALUE, Integer.MAX_VALUE), darkHosts);
+        int socketCount = 8;
+        int requesters = 4;
+        int requestsEach = 20_000;
+        for (int i = 0; i < socketCount; i++) {
+            racedPool.offer(new HostSocket("10.0.0." + (i % 3 + 1)));
+        }
+
+        Set<RouterSocket> inUse = ConcurrentHashMap.newKeySet();
+        Queue<RouterSocket> toReturn = new ConcurrentLinkedQueue<>();
+        Queue<WebSocketFarm.WaitingSocketTask> toTimeOut = new ConcurrentLinkedQueue<>();
+        Set<WebSocketFarm.WaitingSocketTask> allTasks = ConcurrentHashMap.newKeySet();
+        Set<WebSocketFarm.WaitingSocketTask> cancelled = ConcurrentHashMap.newKeySet();
+        AtomicInteger sharedSockets = new AtomicInteger();
+        AtomicInteger notifiedTwice = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(requesters * requestsEach);
+        Consumer<RouterSocket> use = socket -> {
+            if (!inUse.add(socket)) sharedSockets.incrementAndGet();
+            toReturn.add(socket);
+            finished.countDown();
+        };
+
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < requesters; r++) {
+            int seed = r;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < requestsEach; i++) {
+                    RouterSocket idle = racedPool.poll();
+                    if (idle != null) {
+                        use.accept(idle);
+                        continue;
+                    }
+                    AtomicBoolean notified = new AtomicBoolean();
+                    WebSocketFarm.WaitingSocketTask task = new WebSocketFarm.WaitingSocketTask("/my-service/" + i);
+                    task.onSuccess(socket -> {
+                        if (!notified.compareAndSet(false, true)) notifiedTwice.incrementAndGet();
+                        use.accept(socket);
+                    });
+                    allTasks.add(task);
+                    if (racedPool.pollOrWait(task) != RouteSocketPool.WaitOutcome.ACCEPTED) {
+                        throw new AssertionError("The task was not accepted");
+                    }
+                    if (random.nextInt(3) == 0) {
+                        // cancelled by another thread, as the timer does when a wait times out
+                        toTimeOut.add(task);
+                    }
+                }
+            }));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Runnable returner = () -> {
+            while (running.get()) {
+                RouterSocket socket = toReturn.poll();
+                if (socket != null) {
+                    inUse.remove(socket);
+                    racedPool.offer(socket);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        };
+        Runnable timer = () -> {
+            while (running.get()) {
+                WebSocketFarm.WaitingSocketTask task = toTimeOut.poll();
+                if (task == null) {
+                    Thread.onSpinWait();
+                } else if (racedPool.cancel(task)) {
+                    cancelled.add(task);
+                    finished.countDown();
+                }
+            }
+        };
+        threads.add(new Thread(returner));
+        threads.add(new Thread(returner));
+        threads.add(new Thread(timer));
+        for (Thread thread : threads) thread.start();
+
+        assertThat(finished.await(60, TimeUnit.SECONDS), is(true));
+        running.set(false);
+        for (Thread thread : threads) thread.join(10_000);
+        RouterSocket socket;
+        while ((socket = toReturn.poll()) != null) {
+            inUse.remove(socket);
+            racedPool.offer(socket);
+        }
+
+        assertThat(sharedSockets.get(), is(0));
+        assertThat(notifiedTwice.get(), is(0));
+        for (WebSocketFarm.WaitingSocketTask task : allTasks) {
+            assertThat(task.getTarget(), task.isNotified(), is(!cancelled.contains(task)));
+        }
+        assertThat(racedPool.waitingCount(), is(0));
+        assertThat(racedPool.idleCount(), is(socketCount));
+        assertThat(new HashSet<>(racedPool.idleSockets()).size(), is(socketCount));
+    }
+
+    private void setDark(String ip, boolean dark) throws Exception {
+        final InetAddress address = InetAddress.getByName(ip);
+        if (dark) {
+            darkHosts.add(DarkHost.create(address, Instant.now(), "testing"));
+        } else {
+            darkHosts.removeIf(darkHost -> darkHost.sameHost(address));
+        }
+        pool.setDarkMode(address, dark);
+    }
+
+    static class HostSocket extends RouterSocket {
+        private final InetSocketAddress address;
+
+        HostSocket(String ip) {
+            super("my-service", "my-component", null, "instance-" + ip, ProxyListeners.NONE, "127.0.0.1");
+            this.address = new InetSocketAddress(ip, 12000);
+        }
+
+        @Override
+        public InetSocketAddress serviceAddress() {
+            return address;
+        }
+    }
+}
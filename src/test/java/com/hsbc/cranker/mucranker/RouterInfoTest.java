@@ -82,6 +82,11 @@ public class RouterInfoTest {
         ConnectorInstance ci = connectorService.connectors().get(0);
         assertThat(ci.ip(), is("127.0.0.1"));
         assertThat(ci.connections().size(), is(oneOf(1, 2))); // 1 if it's not been replaced
+
+        // each request is resolved at most once per farm: the domain V3 farm, the any-domain V3 farm and the V1 farm
+        assertThat(info.routedRequests(), is(2L));
+        assertThat(info.routeResolutions(), is(greaterThanOrEqualTo(2L)));
+        assertThat(info.routeResolutions(), is(lessThanOrEqualTo(6L)));
     }
 
     @RepeatedTest(3)
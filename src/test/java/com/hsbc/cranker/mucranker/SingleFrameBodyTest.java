@@ -0,0 +1,56 @@
+package com.hsbc.cranker.mucranker;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SingleFrameBodyTest {
+
+    private final FrameBufferPool pool = new FrameBufferPool(PooledByteBufAllocator.DEFAULT);
+
+    @AfterEach
+    public void close() {
+        pool.close();
+    }
+
+    @Test
+    public void aBodyOfItsContentLengthIsCollectedAcrossChunks() {
+        SingleFrameBody body = new SingleFrameBody(pool, 11);
+        assertThat(body.append(ByteBuffer.wrap("hello ".getBytes(UTF_8))), is(true));
+        assertThat(body.append(ByteBuffer.wrap("world".getBytes(UTF_8))), is(true));
+        assertThat(body.buffer().toString(UTF_8), is("hello world"));
+        body.release();
+        assertThat(pool.outstanding(), is(0L));
+    }
+
+    @Test
+    public void aBodyLongerThanItsContentLengthIsRejectedEvenWhenThePooledBufferHasRoom() {
+        SingleFrameBody body = new SingleFrameBody(pool, 5);
+        assertThat(body.buffer().capacity() > 5, is(true));
+        ByteBuffer chunk = ByteBuffer.wrap("x".repeat(60).getBytes(UTF_8));
+        assertThat(body.append(chunk), is(false));
+        assertThat(chunk.remaining(), is(60));
+        assertThat(body.buffer().readableBytes(), is(0));
+
+        assertThat(body.append(ByteBuffer.wrap("abc".getBytes(UTF_8))), is(true));
+        assertThat(body.append(ByteBuffer.wrap("def".getBytes(UTF_8))), is(false));
+        assertThat(body.append(ByteBuffer.wrap("de".getBytes(UTF_8))), is(true));
+        assertThat(body.buffer().toString(UTF_8), is("abcde"));
+        body.release();
+    }
+
+    @Test
+    public void releasingMoreThanOnceGivesTheBufferBackOnce() {
+        SingleFrameBody body = new SingleFrameBody(pool, 5);
+        body.release();
+        body.release();
+        assertThat(pool.outstanding(), is(0L));
+        assertThat(pool.reused() + pool.allocated(), is(1L));
+    }
+}
@@ -0,0 +1,93 @@
+package com.hsbc.cranker.mucranker;
+
+import com.hsbc.cranker.connector.CrankerConnectorBuilder;
+import com.hsbc.cranker.connector.RegistrationUriSuppliers;
+import io.muserver.Method;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+
+import static com.hsbc.cranker.connector.CrankerConnectorBuilder.CRANKER_PROTOCOL_3;
+import static io.muserver.MuServerBuilder.httpServer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static scaffolding.AssertUtils.assertEventually;
+import static scaffolding.ClientUtils.call;
+import static scaffolding.ClientUtils.request;
+
+public class SlowClientTest extends BaseEndToEndTest {
+
+    private static final byte[] CHUNK = "0123456789abcdef".repeat(4096).getBytes(UTF_8);
+    private static final int CHUNK_COUNT = 512;
+
+    @Test
+    public void aSlowClientOnlyHoldsBackItsOwnRequestOnASharedSocket() throws Exception {
+        targetServer = httpServer()
+            .addHandler(Method.GET, "/my-service/large", (request, response, pathParams) -> {
+                response.contentType("application/octet-stream");
+                try (OutputStream out = response.outputStream()) {
+                    for (int i = 0; i < CHUNK_COUNT; i++) {
+                        out.write(CHUNK);
+                    }
+                }
+            })
+            .addHandler(Method.GET, "/my-service/small", (request, response, pathParams) -> response.write("small"))
+            .start();
+        crankerRouter = CrankerRouterBuilder.crankerRouter()
+            .withSupportedCrankerProtocols(List.of(CRANKER_PROTOCOL_3))
+            .withV3ClientQueueLimits(64 * 1024, 64 * 1024 * 1024)
+            .start();
+        router = httpsServerForTest()
+            .addHandler(crankerRouter.createRegistrationHandler())
+            .addHandler(crankerRouter.createHttpHandler())
+            .start();
+
+        // a single socket, so that both requests share it
+        connector = CrankerConnectorBuilder.connector()
+            .withPreferredProtocols(List.of(CRANKER_PROTOCOL_3))
+            .withHttpClient(CrankerConnectorBuilder.createHttpClient(true).build())
+            .withDomain("*")
+            .withRouterUris(RegistrationUriSuppliers.fixedUris(List.of(URI.create("ws" + router.uri().toString().substring(4)))))
+            .withComponentName("junit")
+            .withRoute("my-service")
+            .withTarget(targetServer.uri())
+            .withSlidingWindowSize(1)
+            .start();
+        waitForRegistration("my-service", connector.connectorId(), 1, new CrankerRouter[]{crankerRouter});
+
+        try (Response slow = call(request(router.uri().resolve("/my-service/large")))) {
+            assertThat(slow.code(), is(200));
+            InputStream body = slow.body().byteStream();
+            // read a little and then stop, so that the response backs up in the router
+            long received = body.readNBytes(1024).length;
+
+            for (int i = 0; i < 5; i++) {
+                try (Response fast = call(request(router.uri().resolve("/my-service/small")))) {
+                    assertThat(fast.code(), is(200));
+                    assertThat(fast.body().string(), is("small"));
+                }
+            }
+
+            received += body.readAllBytes().length;
+            assertThat(received, is((long) CHUNK.length * CHUNK_COUNT));
+        }
+        assertEventually(this::queuedToClientBytes, is(0L));
+    }
+
+    private long queuedToClientBytes() {
+        long queued = 0;
+        for (ConnectorService service : crankerRouter.collectInfo().services()) {
+            for (ConnectorInstance instance : service.connectors()) {
+                for (ConnectorConnection connection : instance.connections()) {
+                    queued += (Long) connection.toMap().getOrDefault("queuedToClientBytes", 0L);
+                }
+            }
+        }
+        return queued;
+    }
+}
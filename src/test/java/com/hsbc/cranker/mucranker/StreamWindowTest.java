@@ -0,0 +1,90 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StreamWindowTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void fixedWindowsNeverGrow() {
+        StreamWindow window = new StreamWindow(FlowControlWindow.DEFAULT, new AtomicLong(1024 * 1024), now::get);
+        sendRoundTrips(window, 10, 64 * 1024);
+        assertThat(window.highWaterMark(), is(64 * 1024));
+        assertThat(window.lowWaterMark(), is(16 * 1024));
+    }
+
+    @Test
+    public void autoTunedWindowsGrowWhileTheyAreTheLimitUpToTheMaximum() {
+        AtomicLong budget = new AtomicLong(10 * 1024 * 1024);
+        StreamWindow window = new StreamWindow(FlowControlWindow.autoTuned(16 * 1024, 256 * 1024), budget, now::get);
+
+        sendRoundTrips(window, 1, 16 * 1024);
+        assertThat(window.highWaterMark(), is(32 * 1024));
+        sendRoundTrips(window, 1, 32 * 1024);
+        assertThat(window.highWaterMark(), is(64 * 1024));
+        for (int i = 0; i < 10; i++) {
+            sendRoundTrips(window, 1, window.highWaterMark());
+        }
+        assertThat(window.highWaterMark(), is(256 * 1024));
+        assertThat(budget.get(), is(10L * 1024 * 1024 - 240 * 1024));
+
+        window.release();
+        assertThat(budget.get(), is(10L * 1024 * 1024));
+    }
+
+    @Test
+    public void autoTunedWindowsDoNotGrowWhenTheSenderIsTheLimit() {
+        StreamWindow window = new StreamWindow(FlowControlWindow.autoTuned(64 * 1024, 1024 * 1024), new AtomicLong(10 * 1024 * 1024), now::get);
+        sendRoundTrips(window, 10, 8 * 1024);
+        assertThat(window.highWaterMark(), is(64 * 1024));
+    }
+
+    @Test
+    public void slowerRoundTripsThanTheFastestAreDiscountedAsQueueing() {
+        StreamWindow window = new StreamWindow(FlowControlWindow.autoTuned(16 * 1024, 1024 * 1024), new AtomicLong(10 * 1024 * 1024), now::get);
+        sendRoundTrips(window, 1, 16 * 1024);
+        assertThat(window.highWaterMark(), is(32 * 1024));
+        // the same bytes taking four times as long means the connector is slow, not far away
+        window.onSent(32 * 1024);
+        now.addAndGet(40_000_000);
+        window.onAcked(32 * 1024);
+        assertThat(window.highWaterMark(), is(32 * 1024));
+    }
+
+    @Test
+    public void windowsOnlyGrowWithinTheSocketBudget() {
+        AtomicLong budget = new AtomicLong(20 * 1024);
+        StreamWindow first = new StreamWindow(FlowControlWindow.autoTuned(16 * 1024, 1024 * 1024), budget, now::get);
+        StreamWindow second = new StreamWindow(FlowControlWindow.autoTuned(16 * 1024, 1024 * 1024), budget, now::get);
+        sendRoundTrips(first, 1, 16 * 1024);
+        sendRoundTrips(second, 1, 16 * 1024);
+        assertThat(first.highWaterMark(), is(32 * 1024));
+        assertThat(second.highWaterMark(), is(20 * 1024));
+        assertThat(budget.get(), is(0L));
+
+        first.release();
+        sendRoundTrips(second, 1, 20 * 1024);
+        assertThat(second.highWaterMark(), is(36 * 1024));
+    }
+
+    @Test
+    public void invalidWindowsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> FlowControlWindow.fixed(100));
+        assertThrows(IllegalArgumentException.class, () -> FlowControlWindow.autoTuned(64 * 1024, 32 * 1024));
+    }
+
+    private void sendRoundTrips(StreamWindow window, int count, int bytesPerTrip) {
+        for (int i = 0; i < count; i++) {
+            window.onSent(bytesPerTrip);
+            now.addAndGet(10_000_000);
+            window.onAcked(bytesPerTrip);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class WebSocketFarmV3Test {
+
+    private final WebSocketFarmV3Holder holder = holderWithDefaults(LoadBalancingStrategy.LEAST_IN_FLIGHT, new ConnectorLatencies(LoadBalancingStrategy.LEAST_IN_FLIGHT));
+    private final WebSocketFarmV3 farm = holder.getOrCreateWebSocketFarmV3("*");
+
+    @AfterEach
+    public void stop() {
+        holder.stop();
+    }
+
+    @Test
+    public void noSocketsMeansNoSelection() {
+        assertThat(farm.getWebSocket("my-service"), nullValue());
+    }
+
+    @Test
+    public void aSingleSocketIsAlwaysSelectedHoweverBusy() {
+        LoadedSocket only = addSocket("connector-1", 50, 1024);
+        for (int i = 0; i < 10; i++) {
+            assertThat(farm.getWebSocket("my-service"), sameInstance(only));
+        }
+    }
+
+    @Test
+    public void theSocketWithFewerRequestsInFlightIsSelectedFromTwo() {
+        LoadedSocket busy = addSocket("connector-1", 3, 0);
+        LoadedSocket idle = addSocket("connector-2", 0, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            assertThat(farm.getWebSocket("my-service"), sameInstance(idle));
+        }
+        busy.inFlight = 0;
+        idle.inFlight = 1;
+        for (int i = 0; i < 10; i++) {
+            assertThat(farm.getWebSocket("my-service"), sameInstance(busy));
+        }
+    }
+
+    @Test
+    public void unackedBytesBreakTiesBetweenEquallyBusySockets() {
+        addSocket("connector-1", 2, 64 * 1024);
+        LoadedSocket lessUnacked = addSocket("connector-2", 2, 1024);
+        for (int i = 0; i < 10; i++) {
+            assertThat(farm.getWebSocket("my-service"), sameInstance(lessUnacked));
+        }
+    }
+
+    @Test
+    public void aBusySocketIsNeverSelectedWhenTheOtherCandidateIsIdle() {
+        LoadedSocket busy = addSocket("connector-1", 10, 0);
+        Map<RouterSocketV3, Integer> selections = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            selections.put(addSocket("connector-" + (i + 2), 0, 0), 0);
+        }
+        for (int i = 0; i < 300; i++) {
+            RouterSocketV3 selected = farm.getWebSocket("my-service");
+            assertThat(selected, not(sameInstance(busy)));
+            selections.merge(selected, 1, Integer::sum);
+        }
+        // the first candidate is taken in turn, so idle sockets share the requests
+        for (int count : selections.values()) {
+            assertThat(count > 50, is(true));
+        }
+    }
+
+    @Test
+    public void anUnsampledInstanceIsNotFreeWhenItAlreadyHasRequestsInFlight() {
+        ConnectorLatencies latencies = new ConnectorLatencies(LoadBalancingStrategy.PEAK_EWMA_LATENCY);
+        WebSocketFarmV3Holder latencyHolder = holderWithDefaults(LoadBalancingStrategy.PEAK_EWMA_LATENCY, latencies);
+        try {
+            WebSocketFarmV3 latencyFarm = latencyHolder.getOrCreateWebSocketFarmV3("*");
+            LoadedSocket sampled = addSocket(latencyFarm, "sampled", 0, 0);
+            LoadedSocket cold = addSocket(latencyFarm, "cold", 10, 0);
+            latencyFarm.recordTimeToFirstByte("my-service", "sampled", 50_000_000);
+            for (int i = 0; i < 10; i++) {
+                assertThat(latencyFarm.getWebSocket("my-service"), sameInstance(sampled));
+            }
+            cold.inFlight = 0;
+            sampled.inFlight = 1;
+            for (int i = 0; i < 10; i++) {
+                assertThat(latencyFarm.getWebSocket("my-service"), sameInstance(cold));
+            }
+        } finally {
+            latencyHolder.stop();
+        }
+    }
+
+    @Test
+    public void selectionRacingAddsAndRemovesOnlyReturnsRegisteredSockets() throws Exception {
+        raceSelectionAgainstChurn(farm);
+        WebSocketFarmV3Holder roundRobinHolder = holderWithDefaults(LoadBalancingStrategy.ROUND_ROBIN, new ConnectorLatencies(LoadBalancingStrategy.ROUND_ROBIN));
+        try {
+            raceSelectionAgainstChurn(roundRobinHolder.getOrCreateWebSocketFarmV3("*"));
+        } finally {
+            roundRobinHolder.stop();
+        }
+    }
+
+    private static void raceSelectionAgainstChurn(WebSocketFarmV3 farm) throws Exception {
+        LoadedSocket anchor = addSocket(farm, "anchor", 0, 0);
+        int churners = 2;
+        int socketsEach = 5_000;
+        AtomicLong epoch = new AtomicLong();
+        Map<RouterSocketV3, Long> removedAt = new ConcurrentHashMap<>();
+        Set<RouterSocketV3> kept = ConcurrentHashMap.newKeySet();
+        AtomicInteger nullSelections = new AtomicInteger();
+        AtomicInteger staleSelections = new AtomicInteger();
+        AtomicBoolean churning = new AtomicBoolean(true);
+
+        List<Thread> churnThreads = new ArrayList<>();
+        for (int c = 0; c < churners; c++) {
+            int churner = c;
+            churnThreads.add(new Thread(() -> {
+                for (int i = 0; i < socketsEach; i++) {
+                    LoadedSocket socket = addSocket(farm, "churn-" + churner + "-" + i, i % 3, 0);
+                    if (i % 10 == 0) {
+                        kept.add(socket);
+                    } else if (farm.removeWebSocket(socket)) {
+                        removedAt.put(socket, epoch.incrementAndGet());
+                    }
+                }
+            }));
+        }
+        List<Thread> selectors = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            selectors.add(new Thread(() -> {
+                while (churning.get()) {
+                    long start = epoch.get();
+                    RouterSocketV3 selected = farm.getWebSocket("my-service");
+                    if (selected == null) {
+                        nullSelections.incrementAndGet();
+                    } else {
+                        Long removed = removedAt.get(selected);
+                        if (removed != null && removed <= start) staleSelections.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : selectors) thread.start();
+        for (Thread thread : churnThreads) thread.start();
+        for (Thread thread : churnThreads) thread.join(60_000);
+        churning.set(false);
+        for (Thread thread : selectors) thread.join(10_000);
+
+        assertThat(nullSelections.get(), is(0));
+        assertThat(staleSelections.get(), is(0));
+        assertThat(removedAt.size() + kept.size(), is(churners * socketsEach));
+        Set<RouterSocketV3> registered = new HashSet<>(farm.getSockets().get("my-service"));
+        kept.add(anchor);
+        assertThat(registered, is(kept));
+        assertThat(farm.idleCount(), is(kept.size()));
+    }
+
+    /**
+     * Creates V3 farms with the default settings of the router builder, which must be stopped after the test
+     */
+    static WebSocketFarmV3Holder holderWithDefaults(LoadBalancingStrategy loadBalancingStrategy, ConnectorLatencies latencies) {
+        return new WebSocketFarmV3Holder(new RouteResolver() {}, loadBalancingStrategy, latencies,
+            RequestHeadEncoder.DEFAULT_MAX_FRAME_SIZE, ResponseHeadParser.DEFAULT_MAX_HEAD_SIZE, WindowUpdateCoalescer.DEFAULT_THRESHOLD,
+            new FlowControlSettings(FlowControlWindow.DEFAULT, Map.of(), FlowControlSettings.DEFAULT_SOCKET_BUDGET,
+                FlowControlSettings.DEFAULT_STREAM_CLIENT_QUEUE_LIMIT, FlowControlSettings.DEFAULT_SOCKET_CLIENT_QUEUE_LIMIT));
+    }
+
+    private LoadedSocket addSocket(String connectorInstanceID, int inFlight, long unackedBytes) {
+        return addSocket(farm, connectorInstanceID, inFlight, unackedBytes);
+    }
+
+    private static LoadedSocket addSocket(WebSocketFarmV3 farm, String connectorInstanceID, int inFlight, long unackedBytes) {
+        LoadedSocket socket = new LoadedSocket(farm, connectorInstanceID);
+        socket.inFlight = inFlight;
+        socket.unacked = unackedBytes;
+        farm.addWebSocket("my-service", socket);
+        return socket;
+    }
+
+    /**
+     * A socket that is never connected, with a load set by the test
+     */
+    static class LoadedSocket extends RouterSocketV3 {
+        volatile int inFlight;
+        volatile long unacked;
+        volatile InetSocketAddress address;
+
+        LoadedSocket(WebSocketFarmV3 farm, String connectorInstanceID) {
+            super("my-service", "my-component", farm, connectorInstanceID, ProxyListeners.NONE,
+                new ForwardingHeaders(false, false, "muc"), HeaderFilter.compile(CrankerMuHandler.REPRESSED), "127.0.0.1", false);
+        }
+
+        @Override
+        int inFlightCount() {
+            return inFlight;
+        }
+
+        @Override
+        long unackedBytes() {
+            return unacked;
+        }
+
+        @Override
+        public InetSocketAddress serviceAddress() {
+            return address;
+        }
+    }
+}
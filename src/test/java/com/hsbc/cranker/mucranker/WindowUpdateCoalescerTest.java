@@ -0,0 +1,121 @@
+package com.hsbc.cranker.mucranker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+public class WindowUpdateCoalescerTest {
+
+    private final WindowUpdateCoalescer coalescer = new WindowUpdateCoalescer(WindowUpdateCoalescer.DEFAULT_THRESHOLD);
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<Integer> windowUpdates = new ArrayList<>();
+    private final WindowUpdateCoalescer.Stream stream = coalescer.newStream((task, delay, unit) -> {
+        assertThat(unit.toMillis(delay), is(WindowUpdateCoalescer.MAX_DELAY_MILLIS));
+        scheduled.add(task);
+    }, windowUpdates::add);
+
+    @Test
+    public void manySmallChunksAreAcknowledgedInFewWindowUpdates() {
+        for (int i = 0; i < 100; i++) {
+            stream.acknowledge(100, false);
+        }
+        // the threshold is reached once, and the rest waits for the one delayed flush
+        assertThat(windowUpdates, contains(8200));
+        assertThat(scheduled.size(), is(1));
+        runScheduled();
+        assertThat(windowUpdates, contains(8200, 1800));
+        assertThat(stream.pendingBytes(), is(0));
+    }
+
+    @Test
+    public void everyForwardedByteIsAcknowledgedExactlyOnce() {
+        Random random = new Random(42);
+        long forwarded = 0;
+        for (int i = 0; i < 10_000; i++) {
+            int bytes = 1 + random.nextInt(3000);
+            forwarded += bytes;
+            stream.acknowledge(bytes, random.nextInt(500) == 0);
+            if (random.nextInt(20) == 0) {
+                runScheduled();
+            }
+        }
+        runScheduled();
+        long acknowledged = 0;
+        for (int bytes : windowUpdates) acknowledged += bytes;
+        assertThat(acknowledged, is(forwarded));
+        assertThat(windowUpdates.size() < 10_000 / 2, is(true));
+    }
+
+    @Test
+    public void theEndOfAStreamIsAcknowledgedStraightAway() {
+        stream.acknowledge(10, false);
+        stream.acknowledge(5, true);
+        assertThat(windowUpdates, contains(15));
+        // the flush that was scheduled by the first chunk has nothing left to send
+        runScheduled();
+        assertThat(windowUpdates, contains(15));
+    }
+
+    @Test
+    public void withheldBytesAreOnlySentWithTheNextAcknowledgement() {
+        stream.acknowledge(100, false);
+        stream.withhold(20_000);
+        // neither the threshold nor the delayed flush sends bytes while the client is behind
+        runScheduled();
+        assertThat(windowUpdates, empty());
+        stream.withhold(300);
+        assertThat(stream.pendingBytes(), is(20_400));
+
+        stream.acknowledge(50, false);
+        assertThat(windowUpdates, contains(20_450));
+    }
+
+    @Test
+    public void aZeroThresholdAcknowledgesEveryFrame() {
+        List<Integer> sent = new ArrayList<>();
+        WindowUpdateCoalescer.Stream unbuffered = new WindowUpdateCoalescer(0).newStream((task, delay, unit) -> scheduled.add(task), sent::add);
+        unbuffered.acknowledge(1, false);
+        unbuffered.acknowledge(2, false);
+        assertThat(sent, contains(1, 2));
+        assertThat(scheduled, empty());
+    }
+
+    @Test
+    public void theRouterSchedulerFlushesAfterTheDelay() throws InterruptedException {
+        CountDownLatch flushed = new CountDownLatch(1);
+        WindowUpdateCoalescer.Stream delayed = coalescer.newStream(coalescer.scheduler(), bytes -> flushed.countDown());
+        try {
+            delayed.acknowledge(10, false);
+            assertThat(flushed.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(delayed.pendingBytes(), is(0));
+        } finally {
+            coalescer.stop();
+        }
+    }
+
+    @Test
+    public void acknowledgementsAreSentStraightAwayOnceTheRouterIsStopped() {
+        List<Integer> sent = new ArrayList<>();
+        WindowUpdateCoalescer stopped = new WindowUpdateCoalescer(WindowUpdateCoalescer.DEFAULT_THRESHOLD);
+        stopped.stop();
+        stopped.newStream(stopped.scheduler(), sent::add).acknowledge(10, false);
+        assertThat(sent, contains(10));
+    }
+
+    private void runScheduled() {
+        List<Runnable> tasks = new ArrayList<>(scheduled);
+        scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}